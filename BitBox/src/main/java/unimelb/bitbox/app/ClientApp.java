@@ -84,8 +84,14 @@ public class ClientApp {
                                 System.out.println("error:");
                                 System.out.println(result.getString("message"));
                             } else {
-                                if (command == ClientCommand.PING) {
+                                if (command == ClientCommand.PING || command == ClientCommand.RELOAD) {
                                     System.out.println("OK");
+                                } else if (command == ClientCommand.STATS) {
+                                    var stats = result.getStringArray("stats").get();
+                                    System.out.println("Statistics:");
+                                    for (var line : stats) {
+                                        System.out.println("\t" + line);
+                                    }
                                 } else {
                                     var peers = result.getStringArray("peers").get();
                                     System.out.println("Peers:");
@@ -9,6 +9,8 @@ public enum ClientCommand {
     STOP,
     PING,
     LIST,
+    STATS,
+    RELOAD,
     START;
 
     public static boolean isValid(String command) {
@@ -1,6 +1,7 @@
 package unimelb.bitbox.client;
 
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.ConfigException;
 import unimelb.bitbox.util.config.Configuration;
 import unimelb.bitbox.util.network.JSONDocument;
 
@@ -88,6 +89,27 @@ public class ClientServer {
                     return new JSONDocument().append("command", "LIST_RESPONSE")
                             .append("peers", peersStr)
                             .append("status", true);
+                case RELOAD:
+                    try {
+                        Configuration.reloadBandwidthLimits();
+                        PeerServer.log().info("Reloaded bandwidth limits");
+                        return new JSONDocument().append("command", "RELOAD_RESPONSE")
+                                .append("status", true);
+                    } catch (ConfigException e) {
+                        return new JSONDocument().append("command", "RELOAD_RESPONSE")
+                                .append("message", e.getMessage())
+                                .append("status", false);
+                    }
+                case STATS:
+                    var stats = new ArrayList<String>();
+                    for (var peer : PeerServer.connection().getActivePeers()) {
+                        for (var line : peer.getStats()) {
+                            stats.add(peer.getForeignName() + " " + line);
+                        }
+                    }
+                    return new JSONDocument().append("command", "STATS_RESPONSE")
+                            .append("stats", stats)
+                            .append("status", true);
             }
         }
 
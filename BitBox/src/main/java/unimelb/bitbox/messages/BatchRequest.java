@@ -0,0 +1,36 @@
+package unimelb.bitbox.messages;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * BATCH_REQUEST message. Carries several file and directory requests at once; the peer replies with a single
+ * BATCH_RESPONSE holding a response for each one, in the same order.
+ *
+ * @author Eleanor McMurtry
+ */
+public class BatchRequest extends Message {
+    private final List<String> paths;
+
+    public BatchRequest(List<Message> items) {
+        super("BATCH:" + items.size());
+        paths = items.stream()
+                     .flatMap(item -> item.orderedPaths().stream())
+                     .distinct()
+                     .collect(Collectors.toList());
+        document.append("command", MessageType.BATCH_REQUEST);
+        document.append("items", items);
+
+        // The batch is as urgent as its most urgent item
+        items.stream()
+             .map(Message::getPriority)
+             .min(Comparator.naturalOrder())
+             .ifPresent(this::setPriority);
+    }
+
+    @Override
+    public List<String> orderedPaths() {
+        return paths;
+    }
+}
@@ -0,0 +1,55 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.concurrency.OrderedExecutor;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * BATCH_RESPONSE message. Each item has its own status and message, exactly as if it had been sent on its own.
+ *
+ * @author Eleanor McMurtry
+ */
+public class BatchResponse extends Response {
+    private final List<Response> items;
+
+    public BatchResponse(Peer peer, List<Response> items) {
+        super("BATCH:" + items.size(), peer);
+        this.items = items;
+
+        document.append("command", MessageType.BATCH_RESPONSE);
+    }
+
+    /**
+     * Prepares each item as though it had been sent by itself, so that it is ordered correctly against other
+     * responses for the same paths, then finishes once every item is done.
+     */
+    @Override
+    public CompletableFuture<Void> prepare(OrderedExecutor io) {
+        return CompletableFuture.allOf(items.stream()
+                                            .map(item -> item.prepare(io))
+                                            .toArray(CompletableFuture[]::new))
+                                .thenRun(this::prepareNow);
+    }
+
+    @Override
+    public List<String> orderedPaths() {
+        return items.stream()
+                    .flatMap(item -> item.orderedPaths().stream())
+                    .distinct()
+                    .collect(Collectors.toList());
+    }
+
+    @Override
+    void onSent() {
+        // Handle any items that weren't prepared already in order, so that a directory is created before the files
+        // inside it
+        items.forEach(Response::prepareNow);
+
+        document.append("items", items);
+        document.append("message", "processed " + items.size() + " items");
+        document.append("status", true);
+    }
+}
@@ -0,0 +1,15 @@
+package unimelb.bitbox.messages;
+
+/**
+ * BULK_CHANNEL_REQUEST message. Sent as the first message on a second connection to a peer, to ask for it to be used
+ * for file bytes.
+ *
+ * @author Eleanor McMurtry
+ */
+public class BulkChannelRequest extends Message {
+    public BulkChannelRequest(String token) {
+        super("BULK_CHANNEL");
+        document.append("command", MessageType.BULK_CHANNEL_REQUEST);
+        document.append("token", token);
+    }
+}
@@ -1,5 +1,6 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileManagerException;
@@ -21,6 +22,11 @@ public class DirectoryDeleteResponse extends Response {
         document.append("pathName", pathName);
     }
 
+    @Override
+    Maybe<String> lockedPath() {
+        return Maybe.just(pathName);
+    }
+
     @Override
     void onSent() {
         String reply = SUCCESS;
@@ -0,0 +1,31 @@
+package unimelb.bitbox.messages;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.network.JSONDocument;
+
+/**
+ * The response to an item of a BATCH_REQUEST that couldn't be understood. It stands in for the response the item
+ * would have had, so the rest of the batch can still be answered.
+ *
+ * @author Eleanor McMurtry
+ */
+public class FailedItemResponse extends Response {
+    /**
+     * @param command the response the item should have had, if its command was recognised
+     * @param item    the item as it was received; its pathName and fileDescriptor are echoed back, if it had them
+     * @param reason  why the item couldn't be handled
+     */
+    public FailedItemResponse(Peer peer, Maybe<MessageType> command, JSONDocument item, String reason) {
+        super("FAILED:" + item.getString("pathName").orElse("?"), peer);
+
+        command.consume(type -> document.append("command", type));
+        item.getString("pathName").ifOk(pathName -> document.append("pathName", pathName));
+        item.getJSON("fileDescriptor").ifOk(fd -> document.append("fileDescriptor", fd));
+        document.append("message", reason);
+        document.append("status", false);
+    }
+
+    @Override
+    void onSent() {}
+}
@@ -1,6 +1,5 @@
 package unimelb.bitbox.messages;
 
-import unimelb.bitbox.util.config.Configuration;
 import unimelb.bitbox.util.fs.FileDescriptor;
 
 /**
@@ -10,17 +9,19 @@ import unimelb.bitbox.util.fs.FileDescriptor;
  */
 public class FileBytesRequest extends Message {
     public static FileBytesRequest retry(FileBytesResponse response) {
-        return new FileBytesRequest(response.fileDescriptor, response.position);
+        return new FileBytesRequest(response.fileDescriptor, response.position, response.length);
     }
 
-    public FileBytesRequest(FileDescriptor fileDescriptor, long position) {
+    public FileBytesRequest(FileDescriptor fileDescriptor, long position, long length) {
         super("BYTES:" + fileDescriptor + ":" + position);
 
-        long length = Math.min(fileDescriptor.fileSize() - position, Configuration.getBlockSize());
+        length = Math.min(fileDescriptor.fileSize() - position, length);
 
         document.append("command", MessageType.FILE_BYTES_REQUEST);
         document.join(fileDescriptor.toJSON());
         document.append("position", position);
         document.append("length", length);
+        // We can read raw payloads, so let the peer skip base 64 if it's able to
+        document.append("raw", true);
     }
 }
\ No newline at end of file
@@ -1,12 +1,15 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.concurrency.OrderedExecutor;
 import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.network.Base64Payload;
 import unimelb.bitbox.util.network.FilePacket;
 
-import java.util.Base64;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * FILE_BYTES_RESPONSE message.
@@ -18,7 +21,8 @@ public class FileBytesResponse extends Response {
     final FileDescriptor fileDescriptor;
     final String pathName;
     final long position;
-    private final long length;
+    final long length;
+    private final boolean raw;
 
     public FileBytesResponse(FilePacket packet) {
         super("BYTES:" + packet.fd() + ":" + packet.position, packet.peer());
@@ -26,6 +30,7 @@ public class FileBytesResponse extends Response {
         pathName = packet.pathName();
         position = packet.position;
         length = packet.length;
+        raw = packet.raw;
 
         // Prepare the message
         document.append("command", MessageType.FILE_BYTES_RESPONSE);
@@ -34,29 +39,49 @@ public class FileBytesResponse extends Response {
         document.append("position", position);
     }
 
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
+    /**
+     * File bytes are read on the read/write threads already, so there is no need to move elsewhere.
+     */
+    @Override
+    public CompletableFuture<Void> prepare(OrderedExecutor io) {
+        prepareNow();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    Maybe<String> lockedPath() {
+        return Maybe.just(pathName);
+    }
+
     @Override
     void onSent() {
-        AtomicReference<String> content = new AtomicReference<>("");
         AtomicBoolean shouldRetry = new AtomicBoolean(true);
 
-        String reply = PeerServer.fsManager().readFile(fileDescriptor.md5(), position, length)
-                                 .matchThen(maybeBuffer -> maybeBuffer.matchThen(
-                                              byteBuffer -> {
-                                                  content.set(Base64.getEncoder().encodeToString(byteBuffer.array()));
-                                                  return SUCCESS;
-                                              },
-                                              () -> {
-                                                  // If the file was missing, there's no point retrying
-                                                  shouldRetry.set(false);
-                                                  return "file not found";
-                                              }),
-                                         error -> {
-                                             // If reading caused an error, we can probably retry later
-                                             PeerServer.log().warning(peer + ": failed reading bytes of file " + pathName +
-                                                     " at [" + position + "/" + fileDescriptor.fileSize() + "]: "
-                                                     + error.getMessage());
-                                             return "failed to read bytes: " + error.getMessage();
-                                         });
+        // The bytes are never read into memory here: they are either copied straight to the socket if the peer can
+        // take them raw, or base 64 encoded on their way to the socket otherwise
+        String reply = PeerServer.fsManager().openRegion(fileDescriptor.md5(), position, length)
+                                 .matchThen(maybeRegion -> maybeRegion.matchThen(
+                                         region -> {
+                                             // Lets the peer check the block before writing it
+                                             try {
+                                                 document.append("checksum", region.checksum());
+                                             } catch (IOException e) {
+                                                 return readFailed(e);
+                                             }
+                                             attachPayload(raw ? region : new Base64Payload(region));
+                                             return SUCCESS;
+                                         },
+                                         () -> {
+                                             // If the file was missing, there's no point retrying
+                                             shouldRetry.set(false);
+                                             return "file not found";
+                                         }),
+                                         this::readFailed);
 
         boolean successful = reply.equals(SUCCESS);
         if (successful) {
@@ -64,9 +89,19 @@ public class FileBytesResponse extends Response {
             shouldRetry.set(false);
         }
 
-        document.append("content", content.get());
+        if (raw || !successful) {
+            document.append("content", "");
+        }
         document.append("message", reply);
         document.append("status", successful);
         document.append("retry", shouldRetry.get());
     }
+
+    private String readFailed(IOException error) {
+        // If reading caused an error, we can probably retry later
+        PeerServer.log().warning(peer + ": failed reading bytes of file " + pathName +
+                " at [" + position + "/" + fileDescriptor.fileSize() + "]: "
+                + error.getMessage());
+        return "failed to read bytes: " + error.getMessage();
+    }
 }
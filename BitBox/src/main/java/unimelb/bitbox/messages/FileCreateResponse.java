@@ -1,5 +1,6 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileDescriptor;
@@ -44,6 +45,11 @@ public class FileCreateResponse extends Response {
         return SUCCESS;
     }
 
+    @Override
+    Maybe<String> lockedPath() {
+        return Maybe.just(fd.pathName);
+    }
+
     @Override
     void onSent() {
         String reply;
@@ -66,9 +72,12 @@ public class FileCreateResponse extends Response {
                           if (!res) {
                               PeerServer.log().fine(peer.getForeignName() + ": file " + fd.pathName +
                                       " not available locally. Send a FILE_BYTES_REQUEST");
-                              PeerServer.rwManager().addFile(peer, fd);
+                              settleWhen(PeerServer.rwManager().addFile(peer, fd));
                           }
                       }, err -> PeerServer.log().severe(peer.getForeignName() + ": error checking shortcut for " + fd.pathName));
+        } else {
+            // If we're already downloading this file from someone else, the peer can help
+            PeerServer.rwManager().addSource(peer, fd);
         }
     }
 }
@@ -1,5 +1,6 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileDescriptor;
@@ -23,6 +24,11 @@ public class FileDeleteResponse extends Response {
         document.join(fileDescriptor.toJSON());
     }
 
+    @Override
+    Maybe<String> lockedPath() {
+        return Maybe.just(fd.pathName);
+    }
+
     @Override
     void onSent() {
         // Try cancelling the file loader first
@@ -1,5 +1,6 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileDescriptor;
@@ -23,6 +24,11 @@ public class FileModifyResponse extends Response {
         document.join(fileDescriptor.toJSON());
     }
 
+    @Override
+    Maybe<String> lockedPath() {
+        return Maybe.just(fd.pathName);
+    }
+
     @Override
     void onSent() {
         String reply = SUCCESS;
@@ -45,7 +51,10 @@ public class FileModifyResponse extends Response {
         document.append("message", reply);
         document.append("status", successful);
         if (successful) {
-            PeerServer.rwManager().addFile(peer, fd);
+            settleWhen(PeerServer.rwManager().addFile(peer, fd));
+        } else {
+            // If we're already downloading this file from someone else, the peer can help
+            PeerServer.rwManager().addSource(peer, fd);
         }
     }
 }
@@ -1,5 +1,8 @@
 package unimelb.bitbox.messages;
 
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.peers.PeerFeature;
+import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.config.Configuration;
 import unimelb.bitbox.util.network.HostPort;
 
@@ -10,10 +13,15 @@ import unimelb.bitbox.util.network.HostPort;
  * @author Eleanor McMurtry
  */
 public class HandshakeRequest extends Message {
-    public HandshakeRequest() {
+    public HandshakeRequest(Peer peer) {
         super("HANDSHAKE");
         document.append("command", MessageType.HANDSHAKE_REQUEST);
         document.append("hostPort", new HostPort(Configuration.getAdvertisedName(),
                                                       Configuration.getPort()).toJSON());
+        document.append("maximumBlockSize", Configuration.getMaximumBlockSize());
+        document.append("features", PeerFeature.supported());
+        document.append("journalId", PeerServer.fsManager().journal().id());
+        PeerServer.merkleSync().summary().consume(summary -> document.append("contentSummary", summary));
+        peer.udpInvitation().consume(document::join);
     }
 }
@@ -1,6 +1,8 @@
 package unimelb.bitbox.messages;
 
 import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.peers.PeerFeature;
+import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.config.Configuration;
 import unimelb.bitbox.util.network.HostPort;
 
@@ -18,6 +20,15 @@ public class HandshakeResponse extends Response {
 
         document.append("command", MessageType.HANDSHAKE_RESPONSE);
         document.append("hostPort", Configuration.getHostPort().toJSON());
+        document.append("maximumBlockSize", Configuration.getMaximumBlockSize());
+        document.append("features", PeerFeature.supported());
+        document.append("journalId", PeerServer.fsManager().journal().id());
+        PeerServer.merkleSync().summary().consume(summary -> document.append("contentSummary", summary));
+        if (Configuration.useBulkChannel()) {
+            // Invite the peer to open a second connection for file bytes
+            document.append("bulkToken", peer.getBulkToken());
+        }
+        peer.udpInvitation().consume(document::join);
     }
 
     @Override
@@ -0,0 +1,22 @@
+package unimelb.bitbox.messages;
+
+/**
+ * JOURNAL_REQUEST message. Asks the peer for the changes in its journal after the last one we saw, sent right after
+ * the handshake in place of a full sync.
+ *
+ * @author Eleanor McMurtry
+ */
+public class JournalRequest extends Message {
+    /**
+     * @param journalId the ID of the peer's journal that the sequence number belongs to, or empty if we've never
+     *                  seen any of it
+     * @param sequence  the last change we've seen
+     */
+    public JournalRequest(String journalId, long sequence) {
+        super("JOURNAL:" + journalId + ":" + sequence);
+        document.append("command", MessageType.JOURNAL_REQUEST);
+        document.append("journalId", journalId);
+        document.append("sequence", sequence);
+        setPriority(MessagePriority.SYNC);
+    }
+}
@@ -0,0 +1,33 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+
+/**
+ * JOURNAL_RESPONSE message. Sent after whatever the peer needed to catch up, to tell it how far through our journal
+ * that brought it.
+ *
+ * @author Eleanor McMurtry
+ */
+public class JournalResponse extends Response {
+    private final boolean resumed;
+
+    /**
+     * @param resumed whether only the missing changes were sent, rather than a full sync
+     */
+    public JournalResponse(String journalId, long sequence, boolean resumed, Peer peer) {
+        super("JOURNAL:" + journalId + ":" + sequence, peer);
+        this.resumed = resumed;
+
+        document.append("command", MessageType.JOURNAL_RESPONSE);
+        document.append("journalId", journalId);
+        document.append("sequence", sequence);
+        // Keep this behind the changes it follows
+        setPriority(MessagePriority.SYNC);
+    }
+
+    @Override
+    void onSent() {
+        document.append("message", resumed ? "sent changes since last seen" : "sent full synchronisation");
+        document.append("status", true);
+    }
+}
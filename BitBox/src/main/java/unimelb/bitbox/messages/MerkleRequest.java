@@ -0,0 +1,16 @@
+package unimelb.bitbox.messages;
+
+/**
+ * MERKLE_REQUEST message. Asks the peer how its copy of a path compares with ours, given our hash of it.
+ *
+ * @author Eleanor McMurtry
+ */
+public class MerkleRequest extends Message {
+    public MerkleRequest(String pathName, String hash) {
+        super("MERKLE:" + pathName);
+        document.append("command", MessageType.MERKLE_REQUEST);
+        document.append("pathName", pathName);
+        document.append("hash", hash);
+        setPriority(MessagePriority.SYNC);
+    }
+}
@@ -0,0 +1,44 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.fs.MerkleTree;
+import unimelb.bitbox.util.network.JSONDocument;
+
+/**
+ * MERKLE_RESPONSE message. Gives our hash of the requested path. If it differs from the peer's and the path is a
+ * directory, the hashes of its children are included too, so the peer can tell which of them to look into.
+ *
+ * @author Eleanor McMurtry
+ */
+public class MerkleResponse extends Response {
+    private final String pathName;
+    private final String hash;
+
+    public MerkleResponse(String pathName, String hash, Peer peer) {
+        super("MERKLE:" + pathName, peer);
+        this.pathName = pathName;
+        this.hash = hash;
+
+        document.append("command", MessageType.MERKLE_RESPONSE);
+        document.append("pathName", pathName);
+        setPriority(MessagePriority.SYNC);
+    }
+
+    @Override
+    void onSent() {
+        var node = PeerServer.merkleSync().tree().find(pathName);
+        // An empty hash never matches, so the peer knows we don't have the path at all
+        String ourHash = node.map(MerkleTree.Node::hash).orElse("");
+        document.append("hash", ourHash);
+
+        if (node.isJust() && node.get().isDirectory() && !ourHash.equals(hash)) {
+            JSONDocument children = new JSONDocument();
+            node.get().children().forEach(child -> children.append(child.name, child.hash()));
+            document.append("children", children);
+        }
+
+        document.append("message", node.isJust() ? "path found" : "path not found");
+        document.append("status", true);
+    }
+}
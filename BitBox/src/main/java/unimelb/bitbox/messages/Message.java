@@ -1,10 +1,18 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import functional.algebraic.Result;
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.concurrency.OrderedExecutor;
+import unimelb.bitbox.util.fs.FileSystemManager;
 import unimelb.bitbox.util.network.IJSONData;
 import unimelb.bitbox.util.network.JSONDocument;
 import unimelb.bitbox.util.network.JSONException;
+import unimelb.bitbox.util.network.RawPayload;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Base class for all Messages that peers can send.
@@ -15,6 +23,8 @@ import unimelb.bitbox.util.network.JSONException;
 public abstract class Message implements IJSONData {
     protected JSONDocument document;
     private final String summary;
+    private Maybe<RawPayload> payload = Maybe.nothing();
+    private Maybe<MessagePriority> priority = Maybe.nothing();
 
     Message(String summary) {
         this.summary = summary;
@@ -31,10 +41,85 @@ public abstract class Message implements IJSONData {
                        .andThen(MessageType::fromString);
     }
 
+    /**
+     * @return whether this message mostly consists of file bytes, and should be kept apart from other messages
+     */
+    public boolean isBulk() {
+        return false;
+    }
+
+    /**
+     * Overrides the priority this message would otherwise have, based on its type.
+     */
+    public void setPriority(MessagePriority priority) {
+        this.priority = Maybe.just(priority);
+    }
+
+    public MessagePriority getPriority() {
+        return priority.orElse(() -> getCommand().map(MessagePriority::of).orElse(MessagePriority.LIVE));
+    }
+
+    /**
+     * @return the paths this message is about. It is never sent before an earlier message about the same path, even
+     *         one with a lower priority.
+     */
+    public List<String> orderedPaths() {
+        // Each block of file bytes says where it belongs, so blocks can go in any order
+        MessageType command = getCommand().orElse(null);
+        if (command == MessageType.FILE_BYTES_REQUEST || command == MessageType.FILE_BYTES_RESPONSE) {
+            return Collections.emptyList();
+        }
+        return document.getString("pathName")
+                       .map(FileSystemManager::separatorsToSlash)
+                       .matchThen(Collections::singletonList, err -> Collections.emptyList());
+    }
+
+    /**
+     * Tags the message with the journal sequence number of the change it describes, so the peer knows how far
+     * through our journal it has got.
+     */
+    public void setSequence(long sequence) {
+        document.append("sequence", sequence);
+    }
+
+    /**
+     * Tags the message with the ID of the change it describes, which stays the same as the change is passed from peer
+     * to peer.
+     */
+    public void setEventId(String eventId) {
+        document.append("eventId", eventId);
+    }
+
     public boolean isRequest() {
         return getCommand().map(c -> c.name().contains("REQUEST")).orElse(false);
     }
 
+    /**
+     * Attaches bytes to be written directly after this message, instead of inside it.
+     */
+    void attachPayload(RawPayload payload) {
+        this.payload = Maybe.just(payload);
+    }
+
+    public Maybe<RawPayload> getPayload() {
+        return payload;
+    }
+
+    /**
+     * Does any work the message needs before it can be encoded. Slow work is done on the given executor, so that
+     * the caller can get on with something else.
+     * @return a future that completes once the message is ready to encode
+     */
+    public CompletableFuture<Void> prepare(OrderedExecutor io) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public String networkEncode() {
+        String json = encode();
+        return payload.map(p -> p.frame(json)).orElse(json + "\n");
+    }
+
     public String getSummary() {
         return summary;
     }
@@ -0,0 +1,55 @@
+package unimelb.bitbox.messages;
+
+/**
+ * The classes of outgoing traffic, from most to least urgent. Each connection sends messages from the more urgent
+ * classes first, but every class gets a share of each round in proportion to its weight, so none of them starve.
+ *
+ * A priority only reorders messages about different paths: messages about the same path are always sent in the
+ * order they were queued (see {@link Message#orderedPaths()}).
+ *
+ * @author Eleanor McMurtry
+ */
+public enum MessagePriority {
+    /**
+     * Handshakes, errors, and anything else that manages the connection itself.
+     */
+    CONTROL(8),
+    /**
+     * Changes that have just happened to the share directory, and the responses to them.
+     */
+    LIVE(4),
+    /**
+     * Events generated by the periodic synchronisation, which are usually redundant.
+     */
+    SYNC(2),
+    /**
+     * File bytes.
+     */
+    BULK(1);
+
+    public final int weight;
+
+    MessagePriority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return the priority a message of the given type has unless it is told otherwise
+     */
+    static MessagePriority of(MessageType type) {
+        switch (type) {
+            case INVALID_PROTOCOL:
+            case CONNECTION_REFUSED:
+            case HANDSHAKE_REQUEST:
+            case HANDSHAKE_RESPONSE:
+            case BULK_CHANNEL_REQUEST:
+            case PING_REQUEST:
+            case PING_RESPONSE:
+                return CONTROL;
+            case FILE_BYTES_RESPONSE:
+                return BULK;
+            default:
+                return LIVE;
+        }
+    }
+}
@@ -24,7 +24,16 @@ public enum MessageType {
     DIRECTORY_CREATE_REQUEST,
     DIRECTORY_CREATE_RESPONSE,
     DIRECTORY_DELETE_REQUEST,
-    DIRECTORY_DELETE_RESPONSE;
+    DIRECTORY_DELETE_RESPONSE,
+    BULK_CHANNEL_REQUEST,
+    BATCH_REQUEST,
+    BATCH_RESPONSE,
+    MERKLE_REQUEST,
+    MERKLE_RESPONSE,
+    JOURNAL_REQUEST,
+    JOURNAL_RESPONSE,
+    PING_REQUEST,
+    PING_RESPONSE;
 
     /**
      * Convert a String to a MessageType.
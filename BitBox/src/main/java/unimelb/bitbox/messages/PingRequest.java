@@ -0,0 +1,17 @@
+package unimelb.bitbox.messages;
+
+/**
+ * PING_REQUEST message. Sent every so often to measure the round-trip time to the peer.
+ *
+ * @author Eleanor McMurtry
+ */
+public class PingRequest extends Message {
+    /**
+     * @param sent when the ping was sent, from {@link System#nanoTime()}. The peer sends it back unchanged.
+     */
+    public PingRequest(long sent) {
+        super("PING:" + sent);
+        document.append("command", MessageType.PING_REQUEST);
+        document.append("sent", sent);
+    }
+}
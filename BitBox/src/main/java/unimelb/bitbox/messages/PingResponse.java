@@ -0,0 +1,23 @@
+package unimelb.bitbox.messages;
+
+import unimelb.bitbox.peers.Peer;
+
+/**
+ * PING_RESPONSE message. Echoes the time from a PING_REQUEST, so the peer can tell how long the round trip took.
+ *
+ * @author Eleanor McMurtry
+ */
+public class PingResponse extends Response {
+    public PingResponse(long sent, Peer peer) {
+        super("PING:" + sent, peer);
+
+        document.append("command", MessageType.PING_RESPONSE);
+        document.append("sent", sent);
+    }
+
+    @Override
+    void onSent() {
+        document.append("message", "pong");
+        document.append("status", true);
+    }
+}
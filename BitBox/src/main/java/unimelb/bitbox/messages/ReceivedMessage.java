@@ -1,21 +1,62 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.peers.Peer;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * This class represents a message that has been received but not processed.
  * It stores a raw message as a string, as well as the peer that the message was received from (important for error
  * checking).
  *
+ * A received message holds on to part of its connection's inbound queue until it has been dealt with, so that a peer
+ * can't send us more than we can keep up with.
+ *
  * @author Eleanor McMurtry
  */
 public class ReceivedMessage {
     public final String text;
     public final Peer peer;
+    public final Maybe<ByteBuffer> payload;
+    private final Runnable release;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private volatile boolean deferred = false;
 
     public ReceivedMessage(String text, Peer peer) {
+        this(text, peer, Maybe.nothing(), () -> {});
+    }
+
+    public ReceivedMessage(String text, Peer peer, Maybe<ByteBuffer> payload, Runnable release) {
         this.text = text;
         this.peer = peer;
+        this.payload = payload;
+        this.release = release;
+    }
+
+    /**
+     * Hands the message on to be finished elsewhere, so that {@link #processed()} no longer releases it.
+     * @return the function to call once the message has been fully dealt with
+     */
+    public Runnable defer() {
+        deferred = true;
+        return this::releaseOnce;
+    }
+
+    /**
+     * Called once the message has been processed. Frees its space in the queue, unless it was deferred.
+     */
+    public void processed() {
+        if (!deferred) {
+            releaseOnce();
+        }
+    }
+
+    private void releaseOnce() {
+        if (released.compareAndSet(false, true)) {
+            release.run();
+        }
     }
 
     @Override
@@ -1,6 +1,15 @@
 package unimelb.bitbox.messages;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.concurrency.OrderedExecutor;
+import unimelb.bitbox.util.concurrency.PathLocks;
+import unimelb.bitbox.util.fs.FileSystemManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Base class for all responses.
@@ -9,6 +18,9 @@ import unimelb.bitbox.peers.Peer;
  */
 public abstract class Response extends Message {
     final Peer peer;
+    private volatile boolean prepared = false;
+    private final CompletableFuture<Boolean> settled = new CompletableFuture<>();
+    private volatile boolean settlesLater = false;
 
     Response(String summary, Peer peer) {
         super(summary);
@@ -17,13 +29,80 @@ public abstract class Response extends Message {
     }
 
     /**
-     * A method that is called when the message is encoded; typically performs I/O.
+     * A method that is called before the message is encoded; typically performs I/O.
      */
     abstract void onSent();
 
+    /**
+     * @return completes with true once the request this answers has been carried out or turned down, or with false if
+     *         it was accepted but couldn't be carried out in the end. Most responses settle as soon as they're
+     *         prepared; those that start a download settle when it ends.
+     */
+    public CompletableFuture<Boolean> settled() {
+        return settled;
+    }
+
+    /**
+     * Called from {@link #onSent()} when the request is only carried out once the given work is done.
+     */
+    void settleWhen(CompletableFuture<Boolean> outcome) {
+        settlesLater = true;
+        outcome.thenAccept(settled::complete);
+    }
+
+    /**
+     * @return the path that {@link #onSent()} works on, if any. Other responses for the same path wait for it.
+     */
+    Maybe<String> lockedPath() {
+        return Maybe.nothing();
+    }
+
+    /**
+     * Runs {@link #onSent()} on the executor, after any earlier responses for paths in the same directory. A directory
+     * response also goes after earlier responses for paths inside the directory, and before later ones, so that (say)
+     * a directory is always created before the files inside it and deleted after them.
+     * Responses without a path are prepared straight away.
+     */
+    @Override
+    public CompletableFuture<Void> prepare(OrderedExecutor io) {
+        Maybe<String> path = lockedPath();
+        if (!path.isJust()) {
+            prepareNow();
+            return CompletableFuture.completedFuture(null);
+        }
+        String pathName = FileSystemManager.separatorsToSlash(path.get());
+        int separator = pathName.lastIndexOf('/');
+        String parent = separator < 0 ? "" : pathName.substring(0, separator);
+        MessageType command = getCommand().orElse(null);
+        List<String> directories = command == MessageType.DIRECTORY_CREATE_RESPONSE
+                                   || command == MessageType.DIRECTORY_DELETE_RESPONSE
+                                   ? Arrays.asList(parent, pathName)
+                                   : Collections.singletonList(parent);
+        return io.submit(directories, this::prepareNow);
+    }
+
+    /**
+     * Runs {@link #onSent()} on this thread, holding the lock for its path, unless it has already run.
+     */
+    final void prepareNow() {
+        if (prepared) {
+            return;
+        }
+        Maybe<String> path = lockedPath();
+        if (path.isJust()) {
+            PathLocks.run(path.get(), this::onSent);
+        } else {
+            onSent();
+        }
+        prepared = true;
+        if (!settlesLater) {
+            settled.complete(true);
+        }
+    }
+
     @Override
     public final String networkEncode() {
-        onSent();
+        prepareNow();
         return super.networkEncode();
     }
 }
@@ -0,0 +1,61 @@
+package unimelb.bitbox.peers;
+
+import unimelb.bitbox.util.concurrency.TokenBucket;
+import unimelb.bitbox.util.config.Configuration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the configured bandwidth limits. Every peer has its own upload and download buckets, and all peers share
+ * the node-wide buckets; traffic has to wait for whichever is slower.
+ *
+ * The limits are read from the {@link Configuration} every time, so changes to the schedule (or a reload of the
+ * configuration) apply straight away to existing connections.
+ *
+ * @author Eleanor McMurtry
+ */
+final class BandwidthShaper {
+    private static final TokenBucket upload = new TokenBucket(Configuration::getUploadLimit);
+    private static final TokenBucket download = new TokenBucket(Configuration::getDownloadLimit);
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    static TokenBucket peerUploadBucket() {
+        return new TokenBucket(Configuration::getPeerUploadLimit);
+    }
+
+    static TokenBucket peerDownloadBucket() {
+        return new TokenBucket(Configuration::getPeerDownloadLimit);
+    }
+
+    static boolean uploadLimited(TokenBucket peerBucket) {
+        return peerBucket.isLimited() || upload.isLimited();
+    }
+
+    /**
+     * Accounts for bytes about to be sent to a peer.
+     * @return how long to wait, in nanoseconds, before sending them
+     */
+    static long reserveUpload(TokenBucket peerBucket, long bytes) {
+        return Math.max(peerBucket.reserve(bytes), upload.reserve(bytes));
+    }
+
+    /**
+     * Accounts for bytes about to be requested from a peer.
+     * @return how long to wait, in nanoseconds, before requesting them
+     */
+    static long reserveDownload(TokenBucket peerBucket, long bytes) {
+        return Math.max(peerBucket.reserve(bytes), download.reserve(bytes));
+    }
+
+    /**
+     * Runs the task after the given delay, without tying up the calling thread.
+     */
+    static void later(Runnable task, long delayNanos) {
+        timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private BandwidthShaper() {
+    }
+}
@@ -0,0 +1,21 @@
+package unimelb.bitbox.peers;
+
+/**
+ * A way of sending messages to a peer: a TCP connection, or for file bytes, possibly UDP.
+ *
+ * @author Eleanor McMurtry
+ */
+interface Connection {
+    /**
+     * Queues a message to be sent, without waiting. Once the message has been sent, or dropped because the connection
+     * closed, its {@link OutgoingMessage#onSent} runs.
+     */
+    void send(OutgoingMessage message);
+
+    /**
+     * @return a summary of the traffic sent on this connection
+     */
+    String stats();
+
+    void close();
+}
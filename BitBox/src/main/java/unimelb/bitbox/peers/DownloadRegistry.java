@@ -0,0 +1,122 @@
+package unimelb.bitbox.peers;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.network.FileTransfer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * The files we're downloading, indexed by path and by the peers that can send them. Every block that arrives needs
+ * its download looked up, and every peer that disconnects needs the downloads it was part of, so neither should mean
+ * going through all of them.
+ *
+ * There is at most one download of each path at a time.
+ *
+ * @author Eleanor McMurtry
+ */
+class DownloadRegistry {
+    private final Map<String, FileTransfer> byPath = new ConcurrentHashMap<>();
+    private final Map<Peer, Set<FileTransfer>> byPeer = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a download, unless we're already downloading the same or a newer version of the file.
+     * @param replaced given the download of an older version, if this one takes its place
+     * @return whether the download was added
+     */
+    boolean add(FileTransfer ft, Consumer<FileTransfer> replaced) {
+        AtomicReference<FileTransfer> displaced = new AtomicReference<>();
+        FileTransfer current = byPath.compute(ft.pathName(), (path, existing) -> {
+            if (existing != null && existing.fileDescriptor.lastModified() >= ft.fileDescriptor.lastModified()) {
+                return existing;
+            }
+            displaced.set(existing);
+            return ft;
+        });
+        Maybe.of(displaced.get()).consume(old -> {
+            unindex(old);
+            replaced.accept(old);
+        });
+        if (current != ft) {
+            return false;
+        }
+        ft.sources().forEach(peer -> index(peer, ft));
+        return true;
+    }
+
+    /**
+     * @return the download of the file at this path, if any
+     */
+    Maybe<FileTransfer> get(String pathName) {
+        return Maybe.of(byPath.get(pathName));
+    }
+
+    /**
+     * Records that another peer can send us the file.
+     * @return whether we didn't know already
+     */
+    boolean addSource(FileTransfer ft, Peer peer) {
+        if (!ft.addSource(peer)) {
+            return false;
+        }
+        index(peer, ft);
+        // The download may have finished or been cancelled in the meantime
+        if (byPath.get(ft.pathName()) != ft) {
+            unindex(ft);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the download. The transfer given may be a copy, such as the one in a {@link
+     * unimelb.bitbox.util.network.FilePacket}, so long as it is for the same file.
+     * @return the download that was removed, or nothing if it had already been removed
+     */
+    Maybe<FileTransfer> remove(FileTransfer ft) {
+        FileTransfer registered = byPath.get(ft.pathName());
+        if (registered == null || !registered.equals(ft) || !byPath.remove(ft.pathName(), registered)) {
+            return Maybe.nothing();
+        }
+        unindex(registered);
+        return Maybe.just(registered);
+    }
+
+    /**
+     * Forgets the peer, which can no longer send us anything.
+     * @return the downloads it could have sent us
+     */
+    Collection<FileTransfer> removePeer(Peer peer) {
+        Set<FileTransfer> transfers = byPeer.remove(peer);
+        if (transfers == null) {
+            return Collections.emptyList();
+        }
+        return transfers.stream()
+                        .filter(ft -> byPath.get(ft.pathName()) == ft)
+                        .collect(Collectors.toList());
+    }
+
+    Collection<FileTransfer> all() {
+        return Collections.unmodifiableCollection(byPath.values());
+    }
+
+    boolean isEmpty() {
+        return byPath.isEmpty();
+    }
+
+    private void index(Peer peer, FileTransfer ft) {
+        byPeer.computeIfAbsent(peer, p -> ConcurrentHashMap.newKeySet()).add(ft);
+    }
+
+    private void unindex(FileTransfer ft) {
+        ft.sources().forEach(peer -> byPeer.computeIfPresent(peer, (p, transfers) -> {
+            transfers.remove(ft);
+            return transfers.isEmpty() ? null : transfers;
+        }));
+    }
+}
@@ -0,0 +1,270 @@
+package unimelb.bitbox.peers;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.config.DownloadOrder;
+import unimelb.bitbox.util.network.FileTransfer;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Decides when each download starts. Only so many run at once, both in total and from any one peer; the rest wait in
+ * line, in an order set in the configuration. Otherwise a first sync would start every file at once and interleave
+ * their blocks, so that none of them finished until near the end, and each would hold its file open the whole time.
+ *
+ * Downloads are identified by path, as there is only ever one download of a path at a time. Each waiting download is
+ * also in the line of every peer that has the file, so that when the peers with something to send us are all busy,
+ * we can tell without going through everything that's waiting. A download's source is only chosen once it starts.
+ *
+ * @author Eleanor McMurtry
+ */
+class DownloadScheduler {
+    private final BiFunction<FileTransfer, Predicate<Peer>, Maybe<Peer>> chooseSource;
+    private final BiConsumer<FileTransfer, Peer> start;
+
+    // Guarded by this
+    private final TreeSet<Waiting> waiting;
+    private final Map<String, Waiting> waitingByPath = new HashMap<>();
+    private final Map<Peer, TreeSet<Waiting>> waitingByPeer = new HashMap<>();
+    // The peer each running download counts against
+    private final Map<String, Peer> active = new HashMap<>();
+    private final Map<Peer, Integer> activeByPeer = new HashMap<>();
+    private long nextSequence = 0;
+
+    private static class Waiting {
+        final FileTransfer transfer;
+        final long sequence;
+        // The peers whose lines it is in
+        final Set<Peer> peers = new HashSet<>();
+
+        Waiting(FileTransfer transfer, long sequence) {
+            this.transfer = transfer;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * @param chooseSource picks the peer to download from when a download starts, out of those the predicate allows;
+     *                     it mustn't change the download, as the choice may not be taken up
+     * @param start        starts a download from the chosen peer; called without any lock held
+     */
+    DownloadScheduler(BiFunction<FileTransfer, Predicate<Peer>, Maybe<Peer>> chooseSource,
+                      BiConsumer<FileTransfer, Peer> start) {
+        this.chooseSource = chooseSource;
+        this.start = start;
+        waiting = new TreeSet<>(ordering(Configuration.getDownloadOrder(), Configuration.getDownloadPriority()));
+    }
+
+    /**
+     * Files under an earlier prefix in the priority list come first. Within the same priority, files are taken in the
+     * configured order, and then in the order they arrived.
+     */
+    private static Comparator<Waiting> ordering(DownloadOrder order, List<String> priority) {
+        Comparator<Waiting> byPriority = Comparator.comparingInt(entry -> priorityOf(entry.transfer.pathName(), priority));
+        switch (order) {
+            case SMALLEST:
+                byPriority = byPriority.thenComparingLong(entry -> entry.transfer.fileDescriptor.fileSize());
+                break;
+            case OLDEST:
+                break;
+        }
+        return byPriority.thenComparingLong(entry -> entry.sequence);
+    }
+
+    private static int priorityOf(String pathName, List<String> priority) {
+        for (int i = 0; i < priority.size(); ++i) {
+            if (pathName.startsWith(priority.get(i))) {
+                return i;
+            }
+        }
+        return priority.size();
+    }
+
+    /**
+     * Adds a download to the line, and starts it straight away if there's room.
+     */
+    void submit(FileTransfer ft) {
+        synchronized (this) {
+            Waiting entry = new Waiting(ft, nextSequence++);
+            waiting.add(entry);
+            waitingByPath.put(ft.pathName(), entry);
+            ft.sources().forEach(peer -> index(peer, entry));
+        }
+        dispatch();
+    }
+
+    /**
+     * Records that another peer can send us the file, in case it is waiting to start.
+     */
+    void sourceAdded(FileTransfer ft, Peer peer) {
+        synchronized (this) {
+            Waiting entry = waitingByPath.get(ft.pathName());
+            if (entry == null || entry.transfer != ft) {
+                return;
+            }
+            index(peer, entry);
+        }
+        dispatch();
+    }
+
+    /**
+     * Forgets the peer, which can no longer send us anything.
+     */
+    synchronized void peerRemoved(Peer peer) {
+        TreeSet<Waiting> line = waitingByPeer.remove(peer);
+        if (line != null) {
+            line.forEach(entry -> entry.peers.remove(peer));
+        }
+    }
+
+    /**
+     * Records that a download has finished or been cancelled, whether or not it had started, so another can start.
+     */
+    void finished(FileTransfer ft) {
+        synchronized (this) {
+            Waiting entry = waitingByPath.remove(ft.pathName());
+            if (entry != null) {
+                waiting.remove(entry);
+                unindex(entry);
+            }
+            Peer peer = active.remove(ft.pathName());
+            if (peer != null) {
+                release(peer);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Records that a running download has moved to another peer, which it now counts against.
+     */
+    void moved(FileTransfer ft, Peer peer) {
+        synchronized (this) {
+            Peer previous = active.get(ft.pathName());
+            if (previous == null || previous == peer) {
+                return;
+            }
+            active.put(ft.pathName(), peer);
+            release(previous);
+            activeByPeer.merge(peer, 1, Integer::sum);
+        }
+        dispatch();
+    }
+
+    synchronized boolean isActive(FileTransfer ft) {
+        return active.containsKey(ft.pathName());
+    }
+
+    synchronized int waitingCount() {
+        return waiting.size();
+    }
+
+    private void release(Peer peer) {
+        activeByPeer.computeIfPresent(peer, (p, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private void index(Peer peer, Waiting entry) {
+        if (entry.peers.add(peer)) {
+            waitingByPeer.computeIfAbsent(peer, p -> new TreeSet<>(waiting.comparator())).add(entry);
+        }
+    }
+
+    private void unindex(Waiting entry) {
+        entry.peers.forEach(peer -> waitingByPeer.computeIfPresent(peer, (p, line) -> {
+            line.remove(entry);
+            return line.isEmpty() ? null : line;
+        }));
+        entry.peers.clear();
+    }
+
+    /**
+     * Starts as many waiting downloads as there's room for, skipping any whose peer is already at its own limit.
+     */
+    private void dispatch() {
+        while (dispatchOnce()) {
+            // Another thread changed things while we were choosing; look again
+        }
+    }
+
+    /**
+     * Only the first few downloads in the line of each peer with room are looked at, as no more than that many could
+     * start. Choosing a source looks at every peer that has the file, so it's done without the lock, against a
+     * snapshot. Each choice is then checked again with the lock held before the download starts.
+     * @return whether there may still be room for a download that couldn't start because something changed
+     */
+    private boolean dispatchOnce() {
+        int peerLimit = Configuration.getMaximumPeerDownloads();
+        int room;
+        TreeSet<Waiting> candidates;
+        Map<Peer, Integer> counts;
+        Set<Peer> open = new HashSet<>();
+        synchronized (this) {
+            room = Configuration.getMaximumDownloads() - active.size();
+            if (room <= 0 || waiting.isEmpty()) {
+                return false;
+            }
+            counts = new HashMap<>(activeByPeer);
+            candidates = new TreeSet<>(waiting.comparator());
+            waitingByPeer.forEach((peer, line) -> {
+                if (counts.getOrDefault(peer, 0) < peerLimit) {
+                    open.add(peer);
+                    line.stream().limit(room).forEach(candidates::add);
+                }
+            });
+        }
+
+        Map<Waiting, Peer> chosen = new LinkedHashMap<>();
+        for (Waiting entry : candidates) {
+            if (chosen.size() >= room || open.isEmpty()) {
+                break;
+            }
+            chooseSource.apply(entry.transfer, open::contains).consume(source -> {
+                chosen.put(entry, source);
+                if (counts.merge(source, 1, Integer::sum) >= peerLimit) {
+                    open.remove(source);
+                }
+            });
+        }
+
+        Map<FileTransfer, Peer> starting = new LinkedHashMap<>();
+        boolean raced = false;
+        synchronized (this) {
+            for (Map.Entry<Waiting, Peer> choice : chosen.entrySet()) {
+                Waiting entry = choice.getKey();
+                Peer source = choice.getValue();
+                String pathName = entry.transfer.pathName();
+                if (waitingByPath.get(pathName) != entry) {
+                    // Started or cancelled by someone else
+                    continue;
+                }
+                if (active.size() >= Configuration.getMaximumDownloads()) {
+                    // Whoever filled the last place will look again when it frees up
+                    break;
+                }
+                if (activeByPeer.getOrDefault(source, 0) >= peerLimit) {
+                    // There's still room, just not with this peer
+                    raced = true;
+                    continue;
+                }
+                waiting.remove(entry);
+                waitingByPath.remove(pathName);
+                unindex(entry);
+                active.put(pathName, source);
+                activeByPeer.merge(source, 1, Integer::sum);
+                starting.put(entry.transfer, source);
+            }
+        }
+        starting.forEach(start);
+        return raced;
+    }
+}
@@ -0,0 +1,199 @@
+package unimelb.bitbox.peers;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.network.Base64Codec;
+import unimelb.bitbox.util.network.BufferPool;
+import unimelb.bitbox.util.network.RawPayload;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads newline-terminated messages, and any raw payloads that follow them, straight from a channel.
+ * Unlike a BufferedReader, this lets us switch between text and binary data on the same connection.
+ *
+ * The base 64 content of a FILE_BYTES_RESPONSE is decoded straight from the bytes we read into a pooled buffer, and
+ * left out of the message text, so that the block never exists as a String.
+ *
+ * @author Eleanor McMurtry
+ */
+class FrameReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] BYTES_RESPONSE = "\"command\":\"FILE_BYTES_RESPONSE\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT = "\"content\":\"".getBytes(StandardCharsets.UTF_8);
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // The line being read; grows as needed, and is reused for every line
+    private byte[] line = new byte[BUFFER_SIZE];
+    private int lineLength = 0;
+    private Maybe<ByteBuffer> content = Maybe.nothing();
+    private final long maximumLineLength = Configuration.getMaximumBlockSize() / 3L * 4L + BUFFER_SIZE;
+
+    /**
+     * A message, and the bytes that came with it: either a raw payload or its decoded base 64 content.
+     */
+    static class Frame {
+        final String text;
+        final Maybe<ByteBuffer> payload;
+
+        Frame(String text, Maybe<ByteBuffer> payload) {
+            this.text = text;
+            this.payload = payload;
+        }
+    }
+
+    FrameReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer.flip();
+    }
+
+    /**
+     * Reads the next message. If it has raw bytes attached, they are read too, so the stream stays in sync.
+     * @return the message, or nothing if the stream ended
+     * @throws ProtocolException if the message has a payload header we can't read, so the stream can't be read further
+     */
+    Maybe<Frame> readFrame() throws IOException {
+        Maybe<String> line = readLine();
+        if (!line.isJust()) {
+            return Maybe.nothing();
+        }
+        String message = line.get();
+
+        Maybe<Long> payloadLength = RawPayload.parseHeader(message, Configuration.getMaximumBlockSize()).get();
+        if (payloadLength.isJust()) {
+            ByteBuffer payload = readPayload(payloadLength.get().intValue());
+            return Maybe.just(new Frame(RawPayload.stripHeader(message), Maybe.just(payload)));
+        }
+        return Maybe.just(new Frame(message, takeContent()));
+    }
+
+    /**
+     * Refills the buffer if it's empty.
+     * @return false if the end of the stream was reached
+     */
+    private boolean fill() throws IOException {
+        if (buffer.hasRemaining()) {
+            return true;
+        }
+        buffer.clear();
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        buffer.flip();
+        return read > 0;
+    }
+
+    private void appendToLine(byte[] array, int start, int count) throws IOException {
+        // The longest sensible line is a block of base 64 content with its headers
+        if (lineLength + count > maximumLineLength) {
+            throw new IOException("line too long");
+        }
+        if (lineLength + count > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + count));
+        }
+        System.arraycopy(array, start, line, lineLength, count);
+        lineLength += count;
+    }
+
+    /**
+     * Reads a line of text, not including the line terminator.
+     * If the line had base 64 content that was decoded separately, it is available from {@link #takeContent()}.
+     * @return the line, or nothing if the stream ended
+     */
+    Maybe<String> readLine() throws IOException {
+        lineLength = 0;
+        content = Maybe.nothing();
+        while (fill()) {
+            byte[] array = buffer.array();
+            int start = buffer.position();
+            int end = buffer.limit();
+            for (int i = start; i < end; ++i) {
+                if (array[i] == '\n') {
+                    appendToLine(array, start, i - start);
+                    buffer.position(i + 1);
+                    return Maybe.just(decodeLine());
+                }
+            }
+            appendToLine(array, start, end - start);
+            buffer.position(end);
+        }
+        return Maybe.nothing();
+    }
+
+    /**
+     * @return the decoded content of the last line read, if it had any
+     */
+    Maybe<ByteBuffer> takeContent() {
+        Maybe<ByteBuffer> result = content;
+        content = Maybe.nothing();
+        return result;
+    }
+
+    private String decodeLine() {
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+            --length;
+        }
+
+        // Cut out the content of a FILE_BYTES_RESPONSE, leaving an empty string in its place
+        int contentStart = indexOf(line, length, CONTENT);
+        if (contentStart >= 0 && indexOf(line, length, BYTES_RESPONSE) >= 0) {
+            int valueStart = contentStart + CONTENT.length;
+            int valueEnd = valueStart;
+            while (valueEnd < length && line[valueEnd] != '"') {
+                ++valueEnd;
+            }
+
+            if (valueEnd > valueStart && valueEnd < length) {
+                ByteBuffer decoded = BufferPool.acquire(Base64Codec.decodedLength(valueEnd - valueStart));
+                if (Base64Codec.decode(line, valueStart, valueEnd, decoded)) {
+                    content = Maybe.just(decoded.flip());
+                    System.arraycopy(line, valueEnd, line, valueStart, length - valueEnd);
+                    length -= valueEnd - valueStart;
+                } else {
+                    // Leave it for the message processor to complain about
+                    BufferPool.release(decoded);
+                }
+            }
+        }
+
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] array, int length, byte[] target) {
+        outer:
+        for (int i = 0; i <= length - target.length; ++i) {
+            for (int j = 0; j < target.length; ++j) {
+                if (array[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads exactly the given number of bytes into a pooled buffer.
+     * @throws IOException if the stream ended first
+     */
+    ByteBuffer readPayload(int length) throws IOException {
+        ByteBuffer payload = BufferPool.acquire(length);
+        while (payload.hasRemaining()) {
+            if (!fill()) {
+                throw new IOException("stream ended during payload");
+            }
+            int count = Math.min(payload.remaining(), buffer.remaining());
+            payload.put(buffer.array(), buffer.position(), count);
+            buffer.position(buffer.position() + count);
+        }
+        return payload.flip();
+    }
+}
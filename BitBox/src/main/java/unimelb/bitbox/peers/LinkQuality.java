@@ -0,0 +1,142 @@
+package unimelb.bitbox.peers;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.util.network.Conversion;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps running estimates of the latency and throughput of the link to a peer. Throughput is measured from the time
+ * taken for FILE_BYTES_REQUESTs to be answered. Latency comes from pings if the peer answers them, since they aren't
+ * slowed down by the time taken to send a block; otherwise it is the quickest block we've seen.
+ *
+ * @author Eleanor McMurtry
+ */
+class LinkQuality {
+    // How much weight a new sample is given in the moving average
+    private static final double SMOOTHING = 0.25;
+    // Pings are frequent and noisy, so each one counts for less
+    private static final double PING_SMOOTHING = 0.125;
+    // A block that hasn't arrived after this long was probably lost or cancelled, so we stop waiting to time it
+    private static final long MAXIMUM_PENDING = TimeUnit.MINUTES.toNanos(2);
+
+    private final Map<String, PendingBlock> pendingBlocks = new ConcurrentHashMap<>();
+    private double throughput = 0;
+    private double latency = Double.MAX_VALUE;
+    private boolean measured = false;
+    private double roundTrip = 0;
+    private boolean pinged = false;
+
+    private static class PendingBlock {
+        final long sent;
+        // If we asked for the block more than once, we can't tell which request a response answers
+        final boolean repeated;
+
+        PendingBlock(long sent, boolean repeated) {
+            this.sent = sent;
+            this.repeated = repeated;
+        }
+    }
+
+    private static String blockKey(String md5, long position) {
+        return md5 + ":" + position;
+    }
+
+    /**
+     * Records that a block has been requested, so that we can time the response.
+     */
+    void blockRequested(String md5, long position) {
+        long now = System.nanoTime();
+        pendingBlocks.values().removeIf(pending -> now - pending.sent > MAXIMUM_PENDING);
+        pendingBlocks.compute(blockKey(md5, position),
+                              (key, existing) -> new PendingBlock(now, existing != null));
+    }
+
+    /**
+     * Records that a block has arrived, updating the estimates if we knew when it was requested. A block we asked for
+     * more than once isn't timed, as the response may be to the earlier request; a second response to it finds
+     * nothing pending, so isn't timed either.
+     */
+    void blockReceived(String md5, long position, long length) {
+        Maybe.of(pendingBlocks.remove(blockKey(md5, position)))
+             .consume(pending -> {
+                 if (!pending.repeated) {
+                     addSample(length, (System.nanoTime() - pending.sent) / 1e9);
+                 }
+             });
+    }
+
+    private synchronized void addSample(long bytes, double seconds) {
+        if (seconds <= 0) {
+            return;
+        }
+        // The quickest response we've seen bounds the round-trip time from above
+        latency = Math.min(latency, seconds);
+
+        double sample = bytes / seconds;
+        throughput = measured
+                   ? SMOOTHING * sample + (1 - SMOOTHING) * throughput
+                   : sample;
+        measured = true;
+    }
+
+    /**
+     * Records how long a ping took to be answered.
+     */
+    synchronized void pingAnswered(double seconds) {
+        if (seconds <= 0) {
+            return;
+        }
+        roundTrip = pinged
+                  ? PING_SMOOTHING * seconds + (1 - PING_SMOOTHING) * roundTrip
+                  : seconds;
+        pinged = true;
+    }
+
+    synchronized boolean isMeasured() {
+        return measured;
+    }
+
+    /**
+     * @return the estimated throughput in bytes per second
+     */
+    synchronized double throughput() {
+        return throughput;
+    }
+
+    /**
+     * @return the estimated round-trip time in seconds; if the peer hasn't answered a ping, this is an upper bound
+     */
+    synchronized double latency() {
+        if (pinged) {
+            return roundTrip;
+        }
+        return measured ? latency : 0;
+    }
+
+    /**
+     * @param fallbackThroughput the throughput to assume if we haven't measured it yet, in bytes per second
+     * @return how long we expect it to take to request and receive the given number of bytes, in seconds
+     */
+    synchronized double estimate(long bytes, double fallbackThroughput) {
+        double rate = measured ? throughput : fallbackThroughput;
+        return latency() + bytes / rate;
+    }
+
+    @Override
+    public synchronized String toString() {
+        String rtt;
+        if (pinged) {
+            rtt = String.format("%.1f ms", roundTrip * 1000);
+        } else if (measured) {
+            // Without pings, the quickest block only tells us how long the round trip can be at most
+            rtt = String.format("at most %.1f ms", latency * 1000);
+        } else {
+            rtt = "unknown";
+        }
+        String rate = measured ? Conversion.humanFileSize((long) throughput) + "/s" : "unknown";
+        return "round trip " + rtt + ", throughput " + rate;
+    }
+}
@@ -0,0 +1,225 @@
+package unimelb.bitbox.peers;
+
+import unimelb.bitbox.messages.MessagePriority;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of messages waiting to be written to a connection, with one queue per {@link MessagePriority}.
+ *
+ * Messages are taken in weighted round robin: in each round, a class may send as many messages as its weight,
+ * and the more urgent classes go first. A round ends once every class with messages waiting has used its share,
+ * so a busy urgent class delays the others but never stops them altogether.
+ *
+ * Messages about the same path are still sent in the order they were queued, whatever their classes: a message
+ * waits at the head of its class until every earlier message about any of its paths has gone. Otherwise a live
+ * FILE_DELETE could overtake the periodic sync's FILE_CREATE for the same file, and the peer would end up with a file
+ * we had deleted. File bytes aren't held back like this (see {@link unimelb.bitbox.messages.Message#orderedPaths()}),
+ * and messages about different paths may be sent in any order.
+ *
+ * The queue also keeps count of the bytes waiting in it. Adding a message never waits: file bytes, which make up most
+ * of what we send, are held back before they are read instead (see {@link Peer#upload}), so that no shared thread is
+ * ever stuck waiting on one peer's socket.
+ *
+ * @author Eleanor McMurtry
+ */
+class OutboundScheduler {
+    private static final MessagePriority[] CLASSES = MessagePriority.values();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final List<Queue<OutgoingMessage>> queues = new ArrayList<>(CLASSES.length);
+    // The messages waiting for each path, in the order they were queued
+    private final Map<String, Queue<OutgoingMessage>> byPath = new HashMap<>();
+    private final int[] credits = new int[CLASSES.length];
+    private int size = 0;
+    private long bytes = 0;
+    private boolean closed = false;
+
+    // Statistics, per class
+    private final long[] sent = new long[CLASSES.length];
+    private final long[] totalWait = new long[CLASSES.length];
+    private final long[] maxWait = new long[CLASSES.length];
+
+    OutboundScheduler() {
+        for (MessagePriority ignored : CLASSES) {
+            queues.add(new ArrayDeque<>());
+        }
+        refill();
+    }
+
+    /**
+     * Adds a message. If the queue has been closed, the message is dropped, and its {@link OutgoingMessage#onSent}
+     * runs straight away.
+     */
+    void add(OutgoingMessage message) {
+        lock.lock();
+        try {
+            if (!closed) {
+                enqueue(message);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        message.onSent.run();
+    }
+
+    /**
+     * Empties the queue for good, because nothing will be taken from it again.
+     * @return the messages that were waiting, which will never be sent
+     */
+    List<OutgoingMessage> close() {
+        lock.lock();
+        try {
+            closed = true;
+            List<OutgoingMessage> dropped = new ArrayList<>(size);
+            queues.forEach(queue -> {
+                dropped.addAll(queue);
+                queue.clear();
+            });
+            byPath.clear();
+            size = 0;
+            bytes = 0;
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the lock
+    private void enqueue(OutgoingMessage message) {
+        queues.get(message.priority.ordinal()).add(message);
+        message.paths.forEach(path -> byPath.computeIfAbsent(path, p -> new ArrayDeque<>()).add(message));
+        ++size;
+        bytes += message.size();
+        notEmpty.signal();
+    }
+
+    /**
+     * Waits for a message.
+     */
+    OutgoingMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to the given time for a message.
+     * @return the message, or null if none arrived
+     */
+    OutgoingMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes waiting to be written
+     */
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the lock, and there must be a message waiting.
+    // The oldest message waiting is always at the head of its class, and never has to wait for another, so this ends.
+    private OutgoingMessage next() {
+        while (true) {
+            for (int i = 0; i < CLASSES.length; ++i) {
+                Queue<OutgoingMessage> queue = queues.get(i);
+                if (credits[i] > 0 && !queue.isEmpty() && isNextForItsPaths(queue.peek())) {
+                    --credits[i];
+                    --size;
+                    OutgoingMessage message = queue.remove();
+                    message.paths.forEach(path -> byPath.computeIfPresent(path, (p, waiting) -> {
+                        waiting.remove();
+                        return waiting.isEmpty() ? null : waiting;
+                    }));
+                    bytes -= message.size();
+                    recordWait(i, System.nanoTime() - message.queuedAt);
+                    return message;
+                }
+            }
+            // Every class with messages waiting has had its turn
+            refill();
+        }
+    }
+
+    // Must hold the lock
+    private boolean isNextForItsPaths(OutgoingMessage message) {
+        return message.paths.stream().allMatch(path -> byPath.get(path).peek() == message);
+    }
+
+    private void refill() {
+        for (int i = 0; i < CLASSES.length; ++i) {
+            credits[i] = CLASSES[i].weight;
+        }
+    }
+
+    private void recordWait(int index, long wait) {
+        ++sent[index];
+        totalWait[index] += wait;
+        maxWait[index] = Math.max(maxWait[index], wait);
+    }
+
+    /**
+     * @return the queue depth and waiting times of each class
+     */
+    String stats() {
+        lock.lock();
+        try {
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < CLASSES.length; ++i) {
+                if (i > 0) {
+                    result.append("; ");
+                }
+                double averageWait = sent[i] == 0 ? 0 : totalWait[i] / (double) sent[i] / 1e6;
+                result.append(CLASSES[i])
+                      .append(": ").append(queues.get(i).size()).append(" queued")
+                      .append(String.format(", wait %.1f ms avg / %.1f ms max", averageWait, maxWait[i] / 1e6));
+            }
+            return result.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
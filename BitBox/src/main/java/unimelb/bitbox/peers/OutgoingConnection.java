@@ -1,14 +1,25 @@
 package unimelb.bitbox.peers;
 
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.concurrency.TokenBucket;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.network.Conversion;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Represents an outgoing connection to a peer.
@@ -16,32 +27,178 @@ import java.util.concurrent.LinkedBlockingQueue;
  * @author Eleanor McMurtry
  */
 class OutgoingConnection implements Runnable {
-    private final BlockingQueue<OutgoingMessage> messages = new LinkedBlockingQueue<>();
-    private final Socket socket;
+    private final OutboundScheduler messages = new OutboundScheduler();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final SocketChannel channel;
+    private static final int THROTTLE_CHUNK_SIZE = 16 * 1024;
 
-    OutgoingConnection(Socket socket) {
-        this.socket = socket;
+    // Messages are encoded into this buffer, so that many small messages go out in a single write
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(Configuration.getWriteBatchSize());
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                                                                 .onMalformedInput(CodingErrorAction.REPLACE)
+                                                                 .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final List<OutgoingMessage> batch = new ArrayList<>();
+
+    // The upload limit of the peer this connection belongs to, which may change if it becomes a bulk connection
+    private final Supplier<TokenBucket> uploadBucket;
+    // Used instead of the channel while an upload limit applies, so that payloads are sent at the right pace
+    private final WritableByteChannel throttledChannel = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int limit = src.limit();
+            src.limit(src.position() + Math.min(src.remaining(), THROTTLE_CHUNK_SIZE));
+            try {
+                throttle(src.remaining());
+                return channel.write(src);
+            } finally {
+                src.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    };
+
+    OutgoingConnection(SocketChannel channel, Supplier<TokenBucket> uploadBucket) {
+        this.channel = channel;
+        this.uploadBucket = uploadBucket;
     }
 
     final void addMessage(OutgoingMessage message) {
         messages.add(message);
     }
+    /**
+     * Drops everything still queued, letting whoever sent it know it's done with.
+     */
+    final void close() {
+        messages.close().forEach(message -> message.onSent.run());
+    }
     private OutgoingMessage takeMessage() throws InterruptedException {
         return messages.take();
     }
 
+    /**
+     * @return a summary of the traffic written so far
+     */
+    String stats() {
+        long writeCount = Math.max(1, writes.get());
+        return messagesSent.get() + " messages sent (" + Conversion.humanFileSize(bytesSent.get()) + "), "
+             + messages.size() + " queued (" + Conversion.humanFileSize(messages.bytes()) + "), "
+             + Conversion.humanFileSize(bytesSent.get() / writeCount) + " per write [" + messages.stats() + "]";
+    }
+
     public void run() {
-        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
-            while (!socket.isClosed()) {
-                OutgoingMessage message = takeMessage();
-                out.write(message.message);
-                out.flush();
-                message.onSent.run();
+        try {
+            while (channel.isOpen()) {
+                gatherBatch();
+                writeBatch();
             }
         } catch (IOException e) {
             PeerServer.log().severe("Error writing to socket: " + e.getMessage());
         } catch (InterruptedException e) {
             PeerServer.log().fine("thread interrupted: " + e.getMessage());
+        } finally {
+            // Whatever we were writing won't be sent now
+            batch.forEach(message -> message.onSent.run());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Waits for a message, then collects whatever else arrives before the batch is full or the batch delay passes.
+     * A message with a raw payload always ends the batch, since the payload has to follow it immediately.
+     */
+    private void gatherBatch() throws InterruptedException {
+        OutgoingMessage message = takeMessage();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Configuration.getWriteBatchDelay());
+        long size = 0;
+
+        while (true) {
+            batch.add(message);
+            size += message.message.length();
+            if (message.payload.isJust() || size >= buffer.capacity()) {
+                return;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            message = messages.poll(remaining, TimeUnit.NANOSECONDS);
+            if (message == null) {
+                return;
+            }
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        for (OutgoingMessage message : batch) {
+            encode(message.message);
+            // Raw payloads go straight from the file to the socket
+            if (message.payload.isJust()) {
+                flushBuffer();
+                boolean limited = BandwidthShaper.uploadLimited(uploadBucket.get());
+                message.payload.get().writeTo(limited ? throttledChannel : channel);
+                writes.incrementAndGet();
+                bytesSent.addAndGet(message.payload.get().length());
+            }
+        }
+        flushBuffer();
+
+        messagesSent.addAndGet(batch.size());
+        batch.forEach(message -> message.onSent.run());
+        batch.clear();
+    }
+
+    /**
+     * Encodes the text into the buffer, writing the buffer out whenever it fills up.
+     */
+    private void encode(String text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        CoderResult result;
+        while ((result = encoder.encode(chars, buffer, true)).isOverflow()) {
+            flushBuffer();
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        if (buffer.hasRemaining()) {
+            throttle(buffer.remaining());
+            bytesSent.addAndGet(buffer.remaining());
+            writes.incrementAndGet();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Waits until the upload limits allow the given number of bytes to be sent.
+     */
+    private void throttle(long bytes) throws IOException {
+        long wait = BandwidthShaper.reserveUpload(uploadBucket.get(), bytes);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while throttling");
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,44 @@
+package unimelb.bitbox.peers;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.MessagePriority;
+import unimelb.bitbox.util.network.RawPayload;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A class to pair a message with a function to run when the message is sent, or dropped because its connection closed.
+ *
+ * @author Eleanor McMurtry
+ */
+class OutgoingMessage {
+    public final String message;
+    public final Maybe<RawPayload> payload;
+    public final MessagePriority priority;
+    public final Runnable onSent;
+    // The paths the message is about, which it mustn't overtake other messages about
+    final List<String> paths;
+    // When the message was queued, to measure how long it waits
+    final long queuedAt = System.nanoTime();
+
+    OutgoingMessage(String message, Maybe<RawPayload> payload, MessagePriority priority, Runnable onSent) {
+        this(message, payload, priority, Collections.emptyList(), onSent);
+    }
+
+    OutgoingMessage(String message, Maybe<RawPayload> payload, MessagePriority priority, List<String> paths,
+                    Runnable onSent) {
+        this.message = message;
+        this.payload = payload;
+        this.priority = priority;
+        this.paths = paths;
+        this.onSent = onSent;
+    }
+
+    /**
+     * @return the number of bytes this message will take up on the wire
+     */
+    long size() {
+        return message.length() + payload.map(RawPayload::length).orElse(0L);
+    }
+}
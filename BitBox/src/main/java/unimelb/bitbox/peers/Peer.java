@@ -1,26 +1,42 @@
 package unimelb.bitbox.peers;
 
 import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.BulkChannelRequest;
+import unimelb.bitbox.messages.FileBytesRequest;
 import unimelb.bitbox.messages.Message;
 import unimelb.bitbox.messages.MessageType;
-import unimelb.bitbox.messages.ReceivedMessage;
+import unimelb.bitbox.messages.PingRequest;
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.concurrency.TokenBucket;
 import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.fs.ContentSummary;
+import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.fs.FileEventType;
+import unimelb.bitbox.util.network.Dialer;
 import unimelb.bitbox.util.network.HostPort;
+import unimelb.bitbox.util.network.JSONDocument;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * States a Peer can be in.
@@ -39,28 +55,56 @@ enum PeerState {
  * (used to read from the socket). The OutgoingConnection has a BlockingQueue; messages to be sent should be placed in
  * this queue. The IncomingConnectionTCP relays messages to the ServerThread's queue.
  *
+ * If both sides agree during the handshake, a second connection is opened that carries only file bytes, so that
+ * other messages never have to wait behind them.
+ *
  * @author Eleanor McMurtry
  * @author Andrea Law
  */
 public class Peer {
+    // Block sizing: never go below this, and aim for blocks that take this long to arrive
+    private static final long MINIMUM_BLOCK_SIZE = 16 * 1024;
+    private static final double TARGET_BLOCK_TIME = 0.25;
+    // After sending us this many blocks that fail their checksums, a peer is only downloaded from as a last resort
+    private static final int MAXIMUM_BAD_BLOCKS = 3;
+
     // Data
-    private final Socket socket;
     private final String name;
+    private final String bulkToken = UUID.randomUUID().toString();
+    // The peer puts this on the datagrams it sends us, if we both use UDP
+    private final long udpSession = UdpTransport.newSession();
     private final HostPort localHostPort;
     private HostPort hostPort;
+    // Whether the peer is on our local network, going by the address it connected from
+    private final boolean local;
 
     // Objects needed for work
     private final AtomicReference<PeerState> state = new AtomicReference<>();
-    private final OutgoingConnection outConn;
+    // Whether the handshake ever completed, which stays true after the peer closes
+    private volatile boolean wasActive = false;
+    private final PeerConnection primary;
+    private final AtomicReference<Maybe<PeerConnection>> bulk = new AtomicReference<>(Maybe.nothing());
+    private final AtomicReference<Maybe<UdpConnection>> udp = new AtomicReference<>(Maybe.nothing());
+    // For each path, completes once the last message sent about it has been queued (guarded by itself)
+    private final Map<String, CompletableFuture<Void>> lastQueued = new HashMap<>();
+    // Blocks of file bytes waiting for room in the outbound queue, and the bytes of those already in it (guarded by
+    // uploads)
+    private final Queue<PendingUpload> uploads = new ArrayDeque<>();
+    private long uploading = 0;
     private final List<Runnable> onClose = Collections.synchronizedList(new ArrayList<>());
-
-    // Handles outgoing/incoming connection threads
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
-    private static final Set<Future<?>> threads = ConcurrentHashMap.newKeySet();
-    private void submit(Runnable service) {
-        threads.add(executor.submit(service));
-        onClose.add(() -> threads.forEach(t -> t.cancel(true)));
-    }
+    private final LinkQuality link = new LinkQuality();
+    private final AtomicInteger badBlocks = new AtomicInteger();
+    // Until the peer tells us otherwise, assume it uses the same block size as us
+    private final AtomicLong blockSizeLimit = new AtomicLong(Configuration.getBlockSize());
+    // Bandwidth limits for this peer alone
+    final TokenBucket uploadBucket = BandwidthShaper.peerUploadBucket();
+    private final TokenBucket downloadBucket = BandwidthShaper.peerDownloadBucket();
+    // Protocol extensions the peer told us it understands during the handshake
+    private final Set<PeerFeature> features = ConcurrentHashMap.newKeySet();
+    // Empty until the peer tells us in the handshake
+    private volatile String journalId = "";
+    // Nothing if the peer didn't send one in the handshake
+    private volatile Maybe<ContentSummary> contentSummary = Maybe.nothing();
 
     void addCloseTask(Runnable task) {
         onClose.add(task);
@@ -72,6 +116,12 @@ public class Peer {
     public boolean isActive() {
         return state.get() == PeerState.ACTIVE;
     }
+    public boolean wasActive() {
+        return wasActive;
+    }
+    boolean isClosed() {
+        return state.get() == PeerState.CLOSED;
+    }
 
     // Activate the peer connection after a handshake is complete.
     public void activate(HostPort hostPort) {
@@ -85,6 +135,7 @@ public class Peer {
         if (state.compareAndSet(PeerState.WAIT_FOR_RESPONSE, PeerState.ACTIVE)
                 || state.compareAndSet(PeerState.WAIT_FOR_REQUEST, PeerState.ACTIVE)) {
             PeerServer.log().fine("Activating " + getForeignName());
+            wasActive = true;
 
             // Add to our tracker
             KnownPeerTracker.addAddress(localHostPort, hostPort);
@@ -92,6 +143,275 @@ public class Peer {
         }
     }
 
+    /**
+     * Sets the largest block the peer has told us it will accept during the handshake.
+     */
+    public void setBlockSizeLimit(long limit) {
+        blockSizeLimit.set(Math.max(MINIMUM_BLOCK_SIZE, Math.min(limit, Configuration.getMaximumBlockSize())));
+    }
+
+    /**
+     * Records the protocol extensions the peer announced during the handshake. Names we don't recognise are ignored.
+     */
+    public void setFeatures(List<String> names) {
+        names.forEach(name -> PeerFeature.fromString(name).consume(features::add));
+    }
+
+    /**
+     * Records the ID of the peer's change journal, as given in the handshake.
+     */
+    public void setJournalId(String journalId) {
+        this.journalId = journalId;
+    }
+
+    public String getJournalId() {
+        return journalId;
+    }
+
+    /**
+     * Records the summary of the peer's share, as given in the handshake.
+     */
+    public void setContentSummary(ContentSummary contentSummary) {
+        this.contentSummary = Maybe.just(contentSummary);
+    }
+
+    /**
+     * @return whether the peer almost certainly has the result of this change already, going by the summary it sent
+     * in the handshake
+     */
+    public boolean probablyHas(FileEventType event, FileDescriptor fileDescriptor) {
+        return contentSummary.map(summary -> summary.probablyHas(event, fileDescriptor)).orElse(false);
+    }
+
+    /**
+     * @return whether the peer is on our local network, in which case we would rather download from it than from a
+     * peer further away
+     */
+    public boolean isLocal() {
+        return local;
+    }
+
+    private static boolean isLocalAddress(InetAddress address) {
+        return address.isLoopbackAddress()
+            || address.isSiteLocalAddress()
+            || address.isLinkLocalAddress()
+            // IPv6 unique local addresses (fc00::/7), which Java doesn't count as site local
+            || (address instanceof Inet6Address && (address.getAddress()[0] & 0xfe) == 0xfc);
+    }
+
+    /**
+     * Sends a ping, to measure the round-trip time to the peer. Does nothing if the peer doesn't understand pings.
+     */
+    public void ping() {
+        if (isActive() && supports(PeerFeature.PING)) {
+            sendMessage(new PingRequest(System.nanoTime()));
+        }
+    }
+
+    /**
+     * This method is called when the peer answers a ping.
+     * @param sent the time the ping was sent, as echoed back by the peer
+     */
+    public void pingAnswered(long sent) {
+        double seconds = (System.nanoTime() - sent) / 1e9;
+        // The peer could send back anything; ignore times that we can't have sent
+        if (seconds > 0 && seconds < Configuration.getPingInterval() * 10) {
+            link.pingAnswered(seconds);
+        }
+    }
+
+    /**
+     * This method is called when a block from this peer didn't match its checksum.
+     */
+    public void blockCorrupted() {
+        badBlocks.incrementAndGet();
+    }
+
+    /**
+     * @return whether the peer has sent us enough bad blocks that we'd rather download from someone else
+     */
+    public boolean isUnreliable() {
+        return badBlocks.get() >= MAXIMUM_BAD_BLOCKS;
+    }
+
+    /**
+     * @return the throughput we've measured from this peer in bytes per second, or nothing if we haven't downloaded
+     * from it yet
+     */
+    public Maybe<Double> throughput() {
+        return link.isMeasured() ? Maybe.just(link.throughput()) : Maybe.nothing();
+    }
+
+    /**
+     * @param fallbackThroughput the throughput to assume if we haven't downloaded from this peer yet
+     * @return how long we expect it to take this peer to send us the given number of bytes, in seconds
+     */
+    public double estimateDownload(long bytes, double fallbackThroughput) {
+        return link.estimate(bytes, fallbackThroughput);
+    }
+
+    /**
+     * @return whether the peer announced that it understands the given protocol extension
+     */
+    public boolean supports(PeerFeature feature) {
+        return features.contains(feature);
+    }
+
+    /**
+     * Chooses how many bytes of the file to request starting at the given position, based on the size of the file
+     * and what we have measured of the link. Slow links get small blocks, so that other messages aren't stuck behind
+     * them; fast links get large blocks, so that we aren't dominated by per-message overhead.
+     */
+    long blockSizeFor(FileDescriptor fd, long position) {
+        long remaining = Math.max(0, fd.fileSize() - position);
+        long size = Configuration.getBlockSize();
+        if (link.isMeasured()) {
+            // Cover the round trip as well, so the link doesn't sit idle between blocks
+            size = (long) (link.throughput() * (TARGET_BLOCK_TIME + link.latency()));
+        }
+        size = Math.max(MINIMUM_BLOCK_SIZE, Math.min(size, blockSizeLimit.get()));
+        return Math.min(size, remaining);
+    }
+
+    /**
+     * Requests a block of the given file from this peer, starting at the given position.
+     * If a download limit applies, the request is sent once the limit allows it.
+     */
+    public void requestBytes(FileDescriptor fd, long position) {
+        long length = blockSizeFor(fd, position);
+        Runnable request = () -> {
+            link.blockRequested(fd.md5(), position);
+            sendMessage(new FileBytesRequest(fd, position, length));
+        };
+
+        long wait = BandwidthShaper.reserveDownload(downloadBucket, length);
+        if (wait > 0) {
+            BandwidthShaper.later(request, wait);
+        } else {
+            request.run();
+        }
+    }
+
+    /**
+     * This method is called when a block we requested from this peer has arrived.
+     */
+    public void bytesReceived(FileDescriptor fd, long position, long length) {
+        link.blockReceived(fd.md5(), position, length);
+    }
+
+    /**
+     * @return the token another connection must present to become this peer's bulk connection
+     */
+    public String getBulkToken() {
+        return bulkToken;
+    }
+
+    /**
+     * Opens a second connection to the peer to carry file bytes, presenting the token it gave us.
+     * Blocks while connecting.
+     */
+    public void openBulkChannel(String token) {
+        try {
+            InetSocketAddress remote = (InetSocketAddress) primary.channel().getRemoteAddress();
+            SocketChannel channel = Dialer.connect(List.of(remote.getAddress()), remote.getPort(),
+                                                   Configuration.getConnectTimeout());
+            PeerConnection connection = new PeerConnection(channel, this, "bulk");
+            // The request has to be the first thing the peer reads on the new connection
+            BulkChannelRequest request = new BulkChannelRequest(token);
+            request.setFriendlyName(name + "-" + Configuration.getHostPort());
+            connection.send(new OutgoingMessage(request.networkEncode(), Maybe.nothing(), request.getPriority(), () -> {}));
+            attachBulk(connection);
+        } catch (IOException e) {
+            PeerServer.log().warning(getForeignName() + ": failed opening bulk connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the fields to add to our handshake so that the peer sends file bytes to us over UDP, or nothing if we
+     * don't use UDP
+     */
+    public Maybe<JSONDocument> udpInvitation() {
+        return PeerServer.connection().udp().map(transport -> new JSONDocument().append("udpPort", transport.port())
+                                                                                .append("udpSession", udpSession));
+    }
+
+    /**
+     * Starts sending file bytes to the peer over UDP, as it invited us to in its handshake. Does nothing unless we use
+     * UDP too.
+     * @param port    the peer's UDP port
+     * @param session the session ID the peer wants on our datagrams
+     */
+    public void openUdpChannel(long port, long session) {
+        if (port <= 0 || port > 65535) {
+            PeerServer.log().warning(getForeignName() + ": invalid UDP port " + port);
+            return;
+        }
+        PeerServer.connection().udp().consume(transport -> {
+            InetSocketAddress address = new InetSocketAddress(primary.channel().socket().getInetAddress(), (int) port);
+            UdpConnection connection = new UdpConnection(transport, this, address, session, udpSession);
+            if (isClosed()) {
+                connection.close();
+                return;
+            }
+            udp.getAndSet(Maybe.just(connection)).consume(UdpConnection::close);
+            PeerServer.log().fine(getForeignName() + ": sending file bytes over UDP to " + address);
+        });
+    }
+
+    private void attachBulk(PeerConnection connection) {
+        if (isClosed()) {
+            connection.close();
+            return;
+        }
+        bulk.getAndSet(Maybe.just(connection)).consume(PeerConnection::close);
+        PeerServer.log().fine(getForeignName() + ": bulk connection established");
+    }
+
+    /**
+     * Called when this peer's connection turns out to be the bulk connection of another peer.
+     * Hands the connection over to that peer, and forgets about this one without closing the socket.
+     */
+    void adoptAsBulk(PeerConnection connection, String token) throws IOException {
+        Maybe<Peer> maybeOwner = PeerServer.connection().getPeerByBulkToken(token);
+        if (!maybeOwner.isJust() || maybeOwner.get() == this || connection != primary) {
+            throw new IOException("unknown bulk connection token");
+        }
+        Peer owner = maybeOwner.get();
+
+        state.set(PeerState.CLOSED);
+        PeerServer.connection().forgetPeer(this);
+        connection.becomeBulkFor(owner);
+        owner.attachBulk(connection);
+    }
+
+    /**
+     * Called when one of this peer's connections stops reading.
+     */
+    void connectionClosed(PeerConnection connection) {
+        if (connection == primary) {
+            close();
+        }
+
+        Maybe<PeerConnection> current = bulk.get();
+        if (current.isJust() && current.get() == connection && bulk.compareAndSet(current, Maybe.nothing())) {
+            // File bytes will go through the primary connection from now on
+            PeerServer.log().warning(getForeignName() + ": bulk connection closed");
+            connection.close();
+        }
+    }
+
+    /**
+     * @return a summary of the traffic sent on each of this peer's connections
+     */
+    public List<String> getStats() {
+        List<String> stats = new ArrayList<>();
+        stats.add(primary.stats());
+        bulk.get().consume(connection -> stats.add(connection.stats()));
+        udp.get().consume(connection -> stats.add(connection.stats()));
+        stats.add("link: " + link + (local ? " (local)" : "") + ", " + badBlocks.get() + " bad blocks");
+        return stats;
+    }
+
     /**
      * Returns a HostPort object representing the actual host and port of the connected peer,
      * to the best of our knowledge.
@@ -126,21 +446,19 @@ public class Peer {
      * @param name      the name to attach to this peer
      * @param type      whether the peer was an otugoing connection
      */
-    public Peer(String name, Socket socket, PeerType type) {
-        var host = socket.getInetAddress().getHostAddress();
-        var port = socket.getPort();
-        this.socket = socket;
-        outConn = new OutgoingConnection(socket);
+    public Peer(String name, SocketChannel channel, PeerType type) {
+        var address = channel.socket().getInetAddress();
+        var host = address.getHostAddress();
+        var port = channel.socket().getPort();
         PeerServer.log().fine("Peer created: " + name + " @ " + host + ":" + port);
         this.name = name;
 
         localHostPort = new HostPort(host, port);
         hostPort = localHostPort;
+        local = isLocalAddress(address);
 
         state.set(type == PeerType.OUTGOING ? PeerState.WAIT_FOR_RESPONSE : PeerState.WAIT_FOR_REQUEST);
-        submit(outConn);
-
-        submit(this::receiveMessages);
+        primary = new PeerConnection(channel, this, "primary");
     }
 
     /**
@@ -159,11 +477,9 @@ public class Peer {
             onClose.forEach(Runnable::run);
         }
 
-        try {
-            socket.close();
-        } catch (IOException e) {
-            PeerServer.log().severe("Error closing socket: " + e.getMessage());
-        }
+        primary.close();
+        bulk.getAndSet(Maybe.nothing()).consume(PeerConnection::close);
+        udp.getAndSet(Maybe.nothing()).consume(UdpConnection::close);
     }
 
     /**
@@ -180,33 +496,108 @@ public class Peer {
         sendMessage(message, this::close);
     }
 
-    private void sendMessage(Message message, Runnable onSent) {
+    /**
+     * Send a message to this peer.
+     * @param onSent run once the message has been written, or dropped because its connection closed
+     */
+    public final void sendMessage(Message message, Runnable onSent) {
         sendMessageInternal(message, onSent);
     }
 
+    /**
+     * Sends a block of file bytes once the blocks already on their way to this peer leave room for it in the outbound
+     * queue. Until then the block isn't even read: the request for it just waits here, still holding its space in
+     * the inbound queue. So a peer that stops reading what we send soon has its own requests stop being read, while
+     * our threads carry on serving everyone else.
+     * @param size the number of bytes in the block
+     * @param send reads the block and sends it, running the given callback once it has been written or dropped
+     */
+    public void upload(long size, Consumer<Runnable> send) {
+        synchronized (uploads) {
+            if (!hasRoomToUpload(size)) {
+                uploads.add(new PendingUpload(size, send));
+                return;
+            }
+            uploading += size;
+        }
+        send.accept(() -> uploadFinished(size));
+    }
+
+    private void uploadFinished(long size) {
+        List<PendingUpload> ready = new ArrayList<>();
+        synchronized (uploads) {
+            uploading -= size;
+            while (!uploads.isEmpty() && hasRoomToUpload(uploads.peek().size)) {
+                PendingUpload next = uploads.remove();
+                uploading += next.size;
+                ready.add(next);
+            }
+        }
+        ready.forEach(next -> next.send.accept(() -> uploadFinished(next.size)));
+    }
+
+    // Must hold the uploads lock. A block larger than the whole queue can still go once the queue is empty.
+    private boolean hasRoomToUpload(long size) {
+        return uploading == 0 || uploading + size <= Configuration.getOutboundQueueSize();
+    }
+
     private void sendMessageInternal(Message message, Runnable onSent) {
         if (state.get() == PeerState.CLOSED) {
+            onSent.run();
             return;
         }
 
         message.setFriendlyName(name + "-" + Configuration.getHostPort());
-        outConn.addMessage(new OutgoingMessage(message.networkEncode(), onSent));
-        PeerServer.log().fine(getForeignName() + " sent: " + message.toString());
+        // Responses may need to do disk work first, which happens on the I/O threads so we don't hold anything up
+        CompletableFuture<Void> prepared = message.prepare(PeerServer.ioExecutor());
+
+        // A message that is quick to prepare mustn't overtake an earlier one about the same path, so it waits for
+        // that one to be queued first. Messages about other paths go ahead as soon as they're ready.
+        List<String> paths = message.orderedPaths();
+        CompletableFuture<Void> queued = new CompletableFuture<>();
+        CompletableFuture<?>[] earlier;
+        synchronized (lastQueued) {
+            earlier = paths.stream()
+                           .map(lastQueued::get)
+                           .filter(Objects::nonNull)
+                           .distinct()
+                           .toArray(CompletableFuture[]::new);
+            paths.forEach(path -> lastQueued.put(path, queued));
+        }
+
+        // Queued on the send threads, whichever thread finished preparing it, so the I/O threads only do disk work
+        CompletableFuture.allOf(earlier)
+                         .thenCompose(__ -> prepared)
+                         .whenCompleteAsync((__, error) -> {
+                             if (error != null) {
+                                 PeerServer.log().warning(getForeignName() + ": failed preparing "
+                                                          + message.getSummary() + ": " + error.getMessage());
+                                 onSent.run();
+                             } else {
+                                 queueMessage(message, onSent);
+                             }
+                             synchronized (lastQueued) {
+                                 paths.forEach(path -> lastQueued.remove(path, queued));
+                             }
+                             queued.complete(null);
+                         }, task -> PeerServer.sendExecutor().submit(this, task));
     }
 
-    private void receiveMessages() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String message;
-            while (Maybe.of(message = in.readLine()).isJust()) {
-                PeerServer.enqueueMessage(new ReceivedMessage(message, this));
-            }
-        } catch (IOException e) {
-            if (state.get() != PeerState.CLOSED) {
-                PeerServer.log().severe("Error reading from socket: " + e.getMessage());
-            }
-        } finally {
-            close();
+    private void queueMessage(Message message, Runnable onSent) {
+        if (state.get() == PeerState.CLOSED) {
+            onSent.run();
+            return;
+        }
+
+        // File bytes go over UDP or the bulk connection if there is one
+        Connection connection = primary;
+        if (message.isBulk()) {
+            connection = udp.get().<Connection>map(c -> c).orElse(() -> bulk.get().orElse(() -> primary));
         }
+        String encoded = message.networkEncode();
+        connection.send(new OutgoingMessage(encoded, message.getPayload(), message.getPriority(),
+                                            message.orderedPaths(), onSent));
+        PeerServer.log().fine(() -> getForeignName() + " sent: " + encoded.trim());
     }
 
     /**
@@ -231,18 +622,14 @@ public class Peer {
 
         return name + " @ " + address;
     }
-}
 
+    private static class PendingUpload {
+        final long size;
+        final Consumer<Runnable> send;
 
-/**
- * A class to pair a message with a function to run when the message is sent.
- */
-class OutgoingMessage {
-    public final String message;
-    public final Runnable onSent;
-
-    OutgoingMessage(String message, Runnable onSent) {
-        this.message = message;
-        this.onSent = onSent;
+        PendingUpload(long size, Consumer<Runnable> send) {
+            this.size = size;
+            this.send = send;
+        }
     }
-}
\ No newline at end of file
+}
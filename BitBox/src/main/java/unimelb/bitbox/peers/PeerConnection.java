@@ -0,0 +1,141 @@
+package unimelb.bitbox.peers;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.InvalidProtocol;
+import unimelb.bitbox.messages.MessageType;
+import unimelb.bitbox.messages.ReceivedMessage;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.network.Conversion;
+import unimelb.bitbox.util.network.JSONDocument;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A single socket to a peer, with a thread reading from it and an {@link OutgoingConnection} writing to it.
+ * A Peer always has a primary connection, and may have a second connection reserved for file bytes.
+ *
+ * @author Eleanor McMurtry
+ */
+class PeerConnection implements Connection {
+    // Handles outgoing/incoming connection threads
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final SocketChannel channel;
+    private final OutgoingConnection outConn;
+    private final Set<Future<?>> threads = ConcurrentHashMap.newKeySet();
+    // Each permit is a byte of received messages that hasn't been dealt with yet
+    private final int inboundCapacity = Configuration.getInboundQueueSize();
+    private final Semaphore inbound = new Semaphore(inboundCapacity);
+    private volatile String description;
+    // The peer the messages we read are attributed to; changes if this becomes another peer's bulk connection
+    private volatile Peer owner;
+
+    PeerConnection(SocketChannel channel, Peer owner, String description) {
+        this.channel = channel;
+        this.owner = owner;
+        this.description = description;
+        outConn = new OutgoingConnection(channel, () -> this.owner.uploadBucket);
+
+        threads.add(executor.submit(outConn));
+        threads.add(executor.submit(this::receiveMessages));
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Hands this connection over to another peer, as its bulk connection.
+     */
+    void becomeBulkFor(Peer owner) {
+        this.owner = owner;
+        description = "bulk";
+    }
+
+    @Override
+    public void send(OutgoingMessage message) {
+        outConn.addMessage(message);
+    }
+
+    @Override
+    public String stats() {
+        return description + ": " + outConn.stats() + ", "
+             + Conversion.humanFileSize(inboundCapacity - inbound.availablePermits()) + " received and unprocessed";
+    }
+
+    @Override
+    public void close() {
+        outConn.close();
+        threads.forEach(t -> t.cancel(true));
+        try {
+            channel.close();
+        } catch (IOException e) {
+            PeerServer.log().severe("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    private void receiveMessages() {
+        boolean first = true;
+        try {
+            FrameReader in = new FrameReader(channel);
+            Maybe<FrameReader.Frame> frame;
+            while ((frame = in.readFrame()).isJust()) {
+                String message = frame.get().text;
+                Maybe<ByteBuffer> payload = frame.get().payload;
+
+                // A new connection might be a bulk connection for an existing peer. This has to be dealt with
+                // before we read anything else, so that later messages are attributed to the right peer.
+                if (first && isBulkChannelRequest(message)) {
+                    owner.adoptAsBulk(this, JSONDocument.parse(message).get().getString("token").get());
+                } else {
+                    // Stop reading until there's room, so that the peer's sending slows down to match us
+                    int size = inboundSize(message, payload, inboundCapacity);
+                    inbound.acquire(size);
+                    PeerServer.enqueueMessage(new ReceivedMessage(message, owner, payload, () -> inbound.release(size)));
+                }
+                first = false;
+            }
+        } catch (ProtocolException e) {
+            // Nothing more can be read from this stream, so tell the peer why before we disconnect
+            owner.sendMessageAndClose(new InvalidProtocol(owner, e.getMessage()));
+            return;
+        } catch (Exception e) {
+            if (!owner.isClosed()) {
+                PeerServer.log().severe("Error reading from socket: " + e.getMessage());
+            }
+        }
+        owner.connectionClosed(this);
+    }
+
+    /**
+     * @return how much of the inbound queue the message takes up. A message larger than the whole queue is counted
+     *         as filling it, so that it can still get through once the queue is empty.
+     */
+    static int inboundSize(String message, Maybe<ByteBuffer> payload, int inboundCapacity) {
+        long size = message.length() + payload.map(buffer -> (long) buffer.remaining()).orElse(0L);
+        return (int) Math.min(size, inboundCapacity);
+    }
+
+    private static boolean isBulkChannelRequest(String message) {
+        return message.contains(MessageType.BULK_CHANNEL_REQUEST.name())
+            && JSONDocument.parse(message)
+                           .andThen(doc -> doc.getString("command"))
+                           .map(command -> command.equals(MessageType.BULK_CHANNEL_REQUEST.name()))
+                           .orElse(false);
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,47 @@
+package unimelb.bitbox.peers;
+
+import functional.algebraic.Maybe;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Protocol extensions that peers announce to each other in the handshake. A peer only uses an extension if the
+ * other side announced it, so we can still talk to peers that predate it.
+ *
+ * @author Eleanor McMurtry
+ */
+public enum PeerFeature {
+    /**
+     * Understands BATCH_REQUEST and BATCH_RESPONSE.
+     */
+    BATCH,
+    /**
+     * Understands MERKLE_REQUEST and MERKLE_RESPONSE, so periodic syncs only send what differs.
+     */
+    MERKLE,
+    /**
+     * Understands JOURNAL_REQUEST and JOURNAL_RESPONSE, so a peer that reconnects only gets the changes it missed.
+     */
+    JOURNAL,
+    /**
+     * Understands PING_REQUEST and PING_RESPONSE, so we can measure the round-trip time.
+     */
+    PING;
+
+    /**
+     * @return the names of all the extensions we support, to be sent in the handshake
+     */
+    public static List<String> supported() {
+        return Stream.of(values())
+                     .map(Enum::name)
+                     .collect(Collectors.toList());
+    }
+
+    public static Maybe<PeerFeature> fromString(String name) {
+        return Maybe.of(Stream.of(values())
+                              .filter(feature -> feature.name().equals(name))
+                              .findFirst());
+    }
+}
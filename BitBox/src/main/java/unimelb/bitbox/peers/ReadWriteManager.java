@@ -1,21 +1,31 @@
 package unimelb.bitbox.peers;
 
+import functional.algebraic.Maybe;
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
 import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.fs.RangeSet;
+import unimelb.bitbox.util.network.BufferPool;
 import unimelb.bitbox.util.network.Conversion;
 import unimelb.bitbox.util.network.FilePacket;
 import unimelb.bitbox.util.network.FileTransfer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Stream;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
 
 /**
  * A ReadWriteThreadPool manages all the workers for reading file bytes and writing file bytes on this peer
@@ -25,50 +35,184 @@ import java.util.stream.Stream;
  * @author Eleanor McMurtry
  */
 public class ReadWriteManager {
-    private final ExecutorService executor = Executors.newCachedThreadPool();
-    private final Set<FileTransfer> downloads = ConcurrentHashMap.newKeySet();
+    // Another peer has to look this much quicker than the current one before we switch to it, so that two similar
+    // peers don't keep trading places
+    private static final double SWITCH_THRESHOLD = 0.8;
+    // What we assume about the throughput of a peer before we've downloaded anything from any of them
+    private static final double NOMINAL_THROUGHPUT = 1024 * 1024;
+
+    // A fixed number of threads, so a flood of requests queues up instead of starting a thread each. The queue itself
+    // is kept in check by the peers' inbound limits, since each task holds on to the message that caused it.
+    private final ExecutorService executor = Executors.newFixedThreadPool(Configuration.getReadWriteThreads());
+    private final DownloadRegistry downloads = new DownloadRegistry();
+    // Peers we've asked to tell us when they disconnect, so that we only ask each one once
+    private final Set<Peer> watching = ConcurrentHashMap.newKeySet();
+    private final DownloadScheduler scheduler = new DownloadScheduler(this::bestSource, this::startDownload);
 
     /**
      * Initiate a transfer.
      * @param ft the transfer object
+     * @return completes with true once the file has been written, or isn't needed after all, or with false if the
+     *         download was given up
      */
-    private void addFile(FileTransfer ft) {
-        // Check for existing transfers of the same file
-        for (Iterator<FileTransfer> it = downloads.iterator(); it.hasNext();) {
-            FileTransfer existing = it.next();
-            if (existing.pathName().equals(ft.pathName())) {
-                // If the existing transfer is for an older version, cancel it. Otherwise, cancel the new transfer
-                if (existing.fileDescriptor.lastModified() < ft.fileDescriptor.lastModified()) {
-                    PeerServer.fsManager().cancelFileLoader(existing);
-                    it.remove();
-                } else {
-                    PeerServer.log().fine(ft.peer.getForeignName() + ": received create/modify request, but was already transferring same or newer file");
-                    return;
-                }
+    private CompletableFuture<Boolean> addFile(FileTransfer ft) {
+        // If there's an existing transfer of an older version, cancel it. Otherwise, cancel the new transfer
+        if (!downloads.add(ft, existing -> {
+            PeerServer.fsManager().cancelFileLoader(existing);
+            scheduler.finished(existing);
+            existing.finished(true);
+        })) {
+            PeerServer.log().fine(ft.peer.getForeignName() + ": received create/modify request, but was already transferring same or newer file");
+            return CompletableFuture.completedFuture(true);
+        }
+        watch(ft.peer);
+        // The file is only opened once the first bytes arrive, so a download waiting its turn holds nothing open
+        scheduler.submit(ft);
+        return ft.outcome();
+    }
+
+    public CompletableFuture<Boolean> addFile(Peer peer, FileDescriptor fd) {
+        return addFile(new FileTransfer(peer, fd));
+    }
+
+    /**
+     * Records that a peer has offered us a file we're already downloading from someone else, so that we can switch
+     * to it if it turns out to be nearer or faster. Does nothing if we aren't downloading the same content.
+     */
+    public void addSource(Peer peer, FileDescriptor fd) {
+        findDownload(fd).consume(ft -> {
+            if (downloads.addSource(ft, peer)) {
+                PeerServer.log().fine(peer.getForeignName() + ": can also send us " + ft.pathName());
+                watch(peer);
+                scheduler.sourceAdded(ft, peer);
             }
+        });
+    }
+
+    /**
+     * When the peer closes, we need to cancel any transfers it was performing, or find someone else to finish them.
+     */
+    private void watch(Peer peer) {
+        if (watching.add(peer)) {
+            peer.addCloseTask(() -> {
+                watching.remove(peer);
+                cancelPeerFiles(peer);
+            });
         }
+    }
 
-        downloads.add(ft);
-        ft.sendInitialBytesRequest();
+    /**
+     * @return the download of a file with the same path and content, if any
+     */
+    private Maybe<FileTransfer> findDownload(FileDescriptor fd) {
+        return downloads.get(fd.pathName)
+                        .andThen(ft -> ft.fileDescriptor.md5().equals(fd.md5()) ? Maybe.just(ft) : Maybe.nothing());
+    }
+
+    /**
+     * Decides which peer to ask for the next block of a download. Peers on our local network are preferred to those
+     * further away; after that, we pick the one we expect to send the block soonest, going by the measured round-trip
+     * time and throughput. Peers the download has stalled with are skipped while there's anyone else.
+     * Moves the download to the chosen peer.
+     */
+    private Peer chooseSource(FileTransfer ft) {
+        Peer current = ft.source();
+        Peer best = bestSource(ft, peer -> true).orElse(current);
+        if (best != current) {
+            PeerServer.log().info("Switching download of " + ft.pathName() + " from " + current.getForeignName()
+                                  + " to " + best.getForeignName());
+            ft.setSource(best);
+        }
+        return best;
     }
 
-    public void addFile(Peer peer, FileDescriptor fd) {
-        addFile(new FileTransfer(peer, fd));
+    /**
+     * Picks a peer as {@link #chooseSource(FileTransfer)} does, out of those the filter allows, without moving the
+     * download. The current source is kept unless another is clearly better.
+     * @return nothing if no peer that can send the file is allowed
+     */
+    private Maybe<Peer> bestSource(FileTransfer ft, Predicate<Peer> allowed) {
+        Peer current = ft.source();
+        List<Peer> candidates = ft.sources().stream()
+                                  .filter(Peer::isActive)
+                                  .filter(allowed)
+                                  .filter(peer -> !ft.isAvoided(peer))
+                                  .collect(Collectors.toList());
+        if (candidates.stream().anyMatch(peer -> !peer.isUnreliable())) {
+            candidates.removeIf(Peer::isUnreliable);
+        }
+        if (candidates.stream().anyMatch(Peer::isLocal)) {
+            candidates.removeIf(peer -> !peer.isLocal());
+        }
+        if (candidates.isEmpty()) {
+            return Maybe.nothing();
+        }
+
+        long remaining = ft.fileDescriptor.fileSize() - ft.nextPosition();
+        long block = Math.max(1, Math.min(Configuration.getBlockSize(), remaining));
+        // A peer we haven't downloaded from yet is assumed to be as fast as the best one we have, so it gets a try
+        double fallback = candidates.stream()
+                                    .map(peer -> peer.throughput().orElse(0.0))
+                                    .max(Double::compare)
+                                    .filter(rate -> rate > 0)
+                                    .orElse(NOMINAL_THROUGHPUT);
+        Peer best = candidates.stream()
+                              .min(Comparator.comparingDouble(peer -> peer.estimateDownload(block, fallback)))
+                              .get();
+
+        if (best != current
+                && candidates.contains(current)
+                && best.estimateDownload(block, fallback)
+                   >= SWITCH_THRESHOLD * current.estimateDownload(block, fallback)) {
+            return Maybe.just(current);
+        }
+        return Maybe.just(best);
+    }
+
+    /**
+     * Starts a download that has waited its turn, from the peer the scheduler chose.
+     */
+    private void startDownload(FileTransfer ft, Peer source) {
+        if (source != ft.source()) {
+            PeerServer.log().fine("Downloading " + ft.pathName() + " from " + source.getForeignName() + " instead of "
+                                  + ft.source().getForeignName());
+            ft.setSource(source);
+        }
+        ft.sendInitialBytesRequest();
     }
 
 
     /**
-     * Read the provided chunk of the provided file, and send FILE_BYTES_RESPONSE to the peer
+     * Read the provided chunk of the provided file, and send FILE_BYTES_RESPONSE to the peer. The chunk isn't read
+     * until the peer has room for it (see {@link Peer#upload}), so no thread waits on a slow peer.
+     * @param onDone    run once the response has been queued
      */
-    public void readFile(FilePacket packet) {
-        executor.execute(packet::sendBytesResponse);
+    public void readFile(FilePacket packet, Runnable onDone) {
+        packet.peer().upload(packet.length, sent -> executor.execute(() -> {
+            try {
+                packet.sendBytesResponse(sent);
+            } finally {
+                onDone.run();
+            }
+        }));
     }
     /**
      * Write the provided chunk to the provided file, and send another FILE_BYTES_REQUEST if necessary
      * @param content   the actual bytes to write, encoded in base 64
+     * @param checksum  the CRC-32C of the bytes, if the peer sent one; the block is only written if it matches
+     * @param onDone    run once the bytes have been written
      */
-    public void writeFile(FilePacket packet, String content) {
-        executor.execute(new WriteWorker(packet, content));
+    public void writeFile(FilePacket packet, String content, Maybe<Long> checksum, Runnable onDone) {
+        executor.execute(new WriteWorker(packet, () -> ByteBuffer.wrap(Base64.getDecoder().decode(content)), false,
+                                         checksum, onDone));
+    }
+
+    /**
+     * Write the provided chunk to the provided file, as above.
+     * @param content   the bytes to write, in a buffer from the {@link BufferPool}; it is released once written
+     */
+    public void writeFile(FilePacket packet, ByteBuffer content, Maybe<Long> checksum, Runnable onDone) {
+        executor.execute(new WriteWorker(packet, () -> content, true, checksum, onDone));
     }
 
     public void reportDownloads() {
@@ -76,11 +220,11 @@ public class ReadWriteManager {
         AtomicReference<Long> totalDone = new AtomicReference<>(0L);
 
         StringBuilder inProgress = new StringBuilder();
-        downloads.forEach(ft -> {
-            float completion = ft.getCompletion();
-            if (completion == 0) {
-                ft.sendInitialBytesRequest();
+        downloads.all().forEach(ft -> {
+            if (!scheduler.isActive(ft)) {
+                return;
             }
+            float completion = ft.getCompletion();
 
             totalDone.updateAndGet(v -> v + (long) (completion / 100 * ft.fileDescriptor.fileSize()));
             totalWaiting.updateAndGet(v -> v + ft.fileDescriptor.fileSize());
@@ -97,29 +241,98 @@ public class ReadWriteManager {
                     .append(String.format("%.1f", completion))
                     .append("%)");
 
+            int queued = scheduler.waitingCount();
+            if (queued > 0) {
+                inProgress.append("\n").append(queued).append(" more waiting to start");
+            }
             PeerServer.log().info("\n" + inProgress);
         }
     }
 
+    /**
+     * Looks for downloads that haven't received anything for a while, e.g. because a request was lost or the peer is
+     * overloaded. The first time a download misses its deadline, we ask the same peer for every part of the file we're
+     * missing again. If it misses it again, we move the download to another peer that has the file, if there is one.
+     * Either way, the bytes we already have are kept.
+     */
+    public void checkDeadlines() {
+        long timeout = Configuration.getStallTimeout();
+        downloads.all().forEach(ft -> {
+            if (!scheduler.isActive(ft) || ft.secondsSinceProgress() < timeout) {
+                return;
+            }
+            Peer stalled = ft.source();
+            int stalls = ft.stalled();
+            PeerServer.log().warning("Download of " + ft.pathName() + " from " + stalled.getForeignName()
+                                     + " has stalled (" + stalls + " time" + (stalls == 1 ? "" : "s") + ")");
+
+            Peer source = stalled;
+            if (stalls > 1) {
+                ft.avoid(stalled);
+                source = chooseSource(ft);
+            }
+            scheduler.moved(ft, source);
+            // Whatever we asked for before evidently isn't coming
+            ft.clearRequests();
+            requestMissing(ft, source);
+        });
+    }
+
     private class WriteWorker implements Runnable {
-        private final String content;
+        private final Supplier<ByteBuffer> content;
+        // Whether the content came from the BufferPool, and so should go back to it
+        private final boolean pooled;
         private final FilePacket packet;
+        private final Maybe<Long> checksum;
+        private final Runnable onDone;
 
-        WriteWorker(FilePacket packet, String content) {
+        WriteWorker(FilePacket packet, Supplier<ByteBuffer> content, boolean pooled, Maybe<Long> checksum,
+                    Runnable onDone) {
             this.content = content;
+            this.pooled = pooled;
             this.packet = packet;
-            updateFile(packet);
-
-            // When the peer that responded closes, we need to cancel any transfers they were performing
-            packet.peer().addCloseTask(() -> cancelPeerFiles(packet.peer()));
+            this.checksum = checksum;
+            this.onDone = onDone;
         }
 
         @Override
         public void run() {
+            try {
+                writeAndContinue();
+            } finally {
+                onDone.run();
+            }
+        }
+
+        private boolean checksumMatches(ByteBuffer bytes) {
+            return checksum.map(expected -> {
+                CRC32C crc = new CRC32C();
+                crc.update(bytes.duplicate());
+                return crc.getValue() == expected;
+            }).orElse(true);
+        }
+
+        private void release(ByteBuffer bytes) {
+            if (pooled) {
+                BufferPool.release(bytes);
+            }
+        }
+
+        private void writeAndContinue() {
+            ByteBuffer bytes = content.get();
+            if (!checksumMatches(bytes)) {
+                release(bytes);
+                blockCorrupted(packet);
+                return;
+            }
+
             // Write bytes
             try {
-                ByteBuffer decoded = ByteBuffer.wrap(Base64.getDecoder().decode(content));
-                packet.writeData(decoded);
+                packet.writeData(bytes);
+                downloads.get(packet.pathName()).consume(ft -> {
+                    ft.answered(packet.position);
+                    ft.progressed(packet.peer());
+                });
                 PeerServer.log().fine(packet.peer().getForeignName() + ": wrote bytes to " + packet.pathName() +
                         " at position: [" + packet.position + "/" + packet.fd().fileSize() + "]");
             }
@@ -128,6 +341,8 @@ public class ReadWriteManager {
                         " at position: [" + packet.position + "/" + packet.fd().fileSize() + "]: " + e.getMessage());
                 cancelFile(packet);
                 return;
+            } finally {
+                release(bytes);
             }
 
 
@@ -136,13 +351,16 @@ public class ReadWriteManager {
                       .ifOk(res -> {
                           // If the write isn't finished, send another request
                           if (res) {
-                              downloads.remove(packet.transfer);
+                              downloads.remove(packet.transfer).consume(ft -> {
+                                  scheduler.finished(ft);
+                                  ft.finished(true);
+                              });
                               if (downloads.isEmpty()) {
                                   PeerServer.log().info("All downloads complete!");
                               }
                               PeerServer.log().fine(packet.peer().getForeignName() + ": received all bytes for " + packet.pathName() + ": file transfer successful");
                           } else {
-                              packet.sendBytesRequest();
+                              requestNext(packet);
                           }
                       })
                       .ifErr(err -> {
@@ -152,19 +370,65 @@ public class ReadWriteManager {
         }
     }
 
-    private void updateFile(FilePacket packet) {
-        downloads.forEach(ft -> {
-            if (ft.equals(packet.transfer)) {
-                ft.updatePacket(packet);
+    /**
+     * Asks for a block again after it failed its checksum. Once the peer that sent it has sent enough bad blocks, the
+     * block will come from another peer if there is one. A bad block doesn't count as progress, so if the new request
+     * is lost too, the download stalls and {@link #checkDeadlines()} asks for everything that's missing.
+     */
+    private void blockCorrupted(FilePacket packet) {
+        Peer peer = packet.peer();
+        peer.blockCorrupted();
+        PeerServer.log().warning(peer.getForeignName() + ": block of " + packet.pathName() + " at position "
+                                 + packet.position + " failed its checksum"
+                                 + (peer.isUnreliable() ? "; avoiding this peer where possible" : ""));
+        findDownload(packet.fd()).consume(ft -> {
+            Peer source = chooseSource(ft);
+            scheduler.moved(ft, source);
+            // The block did arrive, it was just no good
+            ft.answered(packet.position);
+            if (ft.markRequested(source, packet.position)) {
+                source.requestBytes(ft.fileDescriptor, packet.position);
             }
         });
     }
 
+    /**
+     * Asks for the first part of the file we're still missing after the packet (or before it, if we have everything
+     * after it), from whichever peer is now the best source.
+     */
+    private void requestNext(FilePacket packet) {
+        Maybe<FileTransfer> download = findDownload(packet.fd());
+        if (!download.isJust()) {
+            packet.sendBytesRequest(packet.peer(), packet.nextPosition());
+            return;
+        }
+        FileTransfer ft = download.get();
+        long position = ft.nextPosition(packet.nextPosition());
+        Peer source = chooseSource(ft);
+        scheduler.moved(ft, source);
+        if (ft.markRequested(source, position)) {
+            packet.sendBytesRequest(source, position);
+        }
+    }
+
+    /**
+     * Asks the peer for the start of every part of the file we don't have. Each one then carries on by itself as its
+     * blocks arrive, until it runs into a part that has arrived or been asked for already.
+     */
+    private void requestMissing(FileTransfer ft, Peer source) {
+        for (RangeSet.Range gap : ft.missingRanges()) {
+            if (ft.markRequested(source, gap.start)) {
+                source.requestBytes(ft.fileDescriptor, gap.start);
+            }
+        }
+    }
+
     public void cancelFile(FileDescriptor fd) {
-        downloads.stream()
-                 .filter(transfer -> transfer.fileDescriptor.equals(fd))
-                 .findFirst()
-                 .ifPresent(this::cancelFile);
+        downloads.get(fd.pathName).consume(transfer -> {
+            if (transfer.fileDescriptor.equals(fd)) {
+                cancelFile(transfer);
+            }
+        });
     }
 
     private void cancelFile(FilePacket packet) {
@@ -174,9 +438,12 @@ public class ReadWriteManager {
     private void cancelFile(FileTransfer transfer) {
         PeerServer.fsManager().cancelFileLoader(transfer);
 
-        if (!downloads.remove(transfer)) {
+        Maybe<FileTransfer> removed = downloads.remove(transfer);
+        if (!removed.isJust()) {
             PeerServer.log().warning("tried to remove " + transfer + " but was not found");
         } else {
+            scheduler.finished(transfer);
+            removed.get().finished(false);
             PeerServer.log().info("Removed download of " + transfer.pathName() + ".");
             if (downloads.isEmpty()) {
                 PeerServer.log().info("All downloads complete!");
@@ -185,17 +452,44 @@ public class ReadWriteManager {
     }
 
     private void cancelPeerFiles(Peer peer) {
-        Stream<FileTransfer> toRemove = downloads.stream().filter(ft -> ft.peer == peer);
-        // Clear any file transfers associated with this peer
+        List<FileTransfer> toRemove = new ArrayList<>();
+        scheduler.peerRemoved(peer);
+        for (FileTransfer ft : downloads.removePeer(peer)) {
+            ft.removeSource(peer);
+            if (!scheduler.isActive(ft)) {
+                // A download that hasn't started yet chooses its source when it does; it just needs someone to ask
+                if (!bestSource(ft, other -> true).isJust()) {
+                    toRemove.add(ft);
+                }
+                continue;
+            }
+            if (ft.source() != peer) {
+                continue;
+            }
+            // Carry on from where we got to with another peer that has the file, if there is one
+            Peer next = chooseSource(ft);
+            if (next == peer) {
+                toRemove.add(ft);
+            } else {
+                scheduler.moved(ft, next);
+                // Any blocks the peer hadn't sent yet are lost with it
+                ft.clearRequests();
+                requestMissing(ft, next);
+            }
+        }
+
+        // Clear any file transfers that nobody else can finish
         toRemove.forEach(ft -> {
             downloads.remove(ft);
+            scheduler.finished(ft);
+            ft.finished(false);
             PeerServer.fsManager().cancelFileLoader(ft)
                     .ifOk(res -> {
                         if (res) {
-                            PeerServer.log().fine(ft.peer.getForeignName() + ": cancelling transfer of " + ft.pathName());
+                            PeerServer.log().fine(peer.getForeignName() + ": cancelling transfer of " + ft.pathName());
                         }
                     })
-                    .ifErr(err -> PeerServer.log().warning(ft.peer.getForeignName() + ": failed cancelling file loader: "+ err.getMessage()));
+                    .ifErr(err -> PeerServer.log().warning(peer.getForeignName() + ": failed cancelling file loader: "+ err.getMessage()));
         });
     }
 }
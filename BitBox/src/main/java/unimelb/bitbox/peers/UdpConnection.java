@@ -0,0 +1,583 @@
+package unimelb.bitbox.peers;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.ReceivedMessage;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.network.Conversion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries file bytes to and from a peer over UDP, for links where TCP does badly, such as those with a long round
+ * trip that lose packets. Everything else still goes over TCP.
+ *
+ * Each message is split into datagrams, and every datagram gets a sequence number. The receiver acknowledges every
+ * datagram it gets, with the sequence number below which it has everything, plus the ranges it has above that. When
+ * it sees a gap, it also tells us straight away which datagrams are missing. We send a datagram again if it is
+ * reported missing, if several datagrams sent after it have arrived, or if nothing has been acknowledged for a while.
+ *
+ * How many datagrams may be unacknowledged at once is governed by a congestion window, as in TCP: it grows by one
+ * datagram per acknowledgement at first, then by one datagram per round trip, and halves when datagrams are lost.
+ * It is also capped by how much the receiver says it has room for.
+ *
+ * @author Eleanor McMurtry
+ */
+class UdpConnection implements Connection {
+    // DATA datagrams: type, session, sequence number, message ID, fragment number, number of fragments
+    private static final int DATA_HEADER = Byte.BYTES + 2 * Long.BYTES + 3 * Integer.BYTES;
+    private static final int FRAGMENT_SIZE = UdpTransport.MAXIMUM_DATAGRAM - DATA_HEADER;
+    // ACK datagrams: type, session, cumulative acknowledgement, window, number of ranges, then the ranges
+    private static final int ACK_HEADER = Byte.BYTES + 2 * Long.BYTES + Integer.BYTES + Short.BYTES;
+    private static final int MAXIMUM_RANGES = 32;
+
+    // Congestion window limits, in datagrams
+    private static final int INITIAL_WINDOW = 10;
+    private static final int MINIMUM_WINDOW = 2;
+    private static final int MAXIMUM_WINDOW = 8192;
+    // A datagram is taken to be lost once this many sent after it have been acknowledged
+    private static final int REORDERING = 3;
+    private static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+    // A few timer ticks; unlike TCP, the peer acknowledges straight away, so there's no delayed ACK to allow for
+    private static final long MINIMUM_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(30);
+    private static final long MAXIMUM_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+    // The most messages we'll have partly received at once; fragments of any more are dropped and sent again later
+    private static final int MAXIMUM_ASSEMBLIES = 256;
+
+    // Hands complete messages on, so that a full inbound queue doesn't stop the socket being read
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final UdpTransport transport;
+    private final Peer owner;
+    // Where the peer's datagrams come from, which is where we send ours
+    private volatile SocketAddress address;
+    // The session ID the peer asked us to put on our datagrams, and the one it puts on its datagrams
+    private final long sendSession;
+    private final long receiveSession;
+    private final int inboundCapacity = Configuration.getInboundQueueSize();
+    private final Semaphore inbound = new Semaphore(inboundCapacity);
+    private final long maximumFragments = (Configuration.getMaximumBlockSize() / 3L * 4L + 64 * 1024) / FRAGMENT_SIZE + 1;
+
+    // Sending; guarded by this
+    private final Deque<Fragment> unsent = new ArrayDeque<>();
+    private final TreeMap<Long, Fragment> inFlight = new TreeMap<>();
+    private final TreeSet<Long> lost = new TreeSet<>();
+    private boolean closed = false;
+    private long nextSequence = 0;
+    private int nextMessageId = 0;
+    private long queuedBytes = 0;
+    private double window = INITIAL_WINDOW;
+    private double threshold = MAXIMUM_WINDOW;
+    private int peerWindow = MAXIMUM_WINDOW;
+    // Losses among datagrams sent before this point belong to a congestion event we've already backed off for
+    private long recoveryPoint = 0;
+    private long highestAcknowledged = -1;
+    private long lastProgress = System.nanoTime();
+    private boolean rttMeasured = false;
+    private double smoothedRtt = 0;
+    private double rttVariance = 0;
+    private long timeout = INITIAL_TIMEOUT;
+    // How many times in a row the timeout has expired; each doubles the next timeout
+    private int backoff = 0;
+    // When an upload limit applies, the next datagram has to wait until this time
+    private long nextSendTime = 0;
+    private long datagramsSent = 0;
+    private long datagramsResent = 0;
+
+    // Receiving; guarded by receiving
+    private final Object receiving = new Object();
+    private long expected = 0;
+    private long highestReceived = -1;
+    private final TreeSet<Long> received = new TreeSet<>();
+    private final Map<Integer, Assembly> assemblies = new HashMap<>();
+    // Bytes of messages we've received at least part of, but not yet handed on
+    private final AtomicLong buffered = new AtomicLong();
+
+    /**
+     * A message being sent, which is done once all of its fragments have been acknowledged.
+     */
+    private static class Outgoing {
+        final OutgoingMessage message;
+        final long size;
+        int unacknowledged;
+
+        Outgoing(OutgoingMessage message, long size, int fragments) {
+            this.message = message;
+            this.size = size;
+            unacknowledged = fragments;
+        }
+    }
+
+    private static class Fragment {
+        final Outgoing outgoing;
+        final int messageId;
+        final int index;
+        final int count;
+        final byte[] data;
+        final int offset;
+        final int length;
+        long sequence;
+        long sentAt;
+        boolean resent = false;
+
+        Fragment(Outgoing outgoing, int messageId, int index, int count, byte[] data, int offset, int length) {
+            this.outgoing = outgoing;
+            this.messageId = messageId;
+            this.index = index;
+            this.count = count;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A message being received, one fragment at a time.
+     */
+    private static class Assembly {
+        final byte[][] fragments;
+        int missing;
+        int size = 0;
+
+        Assembly(int count) {
+            fragments = new byte[count][];
+            missing = count;
+        }
+
+        /**
+         * @return the number of new bytes
+         */
+        int add(int index, byte[] data) {
+            if (fragments[index] != null) {
+                return 0;
+            }
+            fragments[index] = data;
+            --missing;
+            size += data.length;
+            return data.length;
+        }
+
+        byte[] join() {
+            byte[] joined = new byte[size];
+            int position = 0;
+            for (byte[] fragment : fragments) {
+                System.arraycopy(fragment, 0, joined, position, fragment.length);
+                position += fragment.length;
+            }
+            return joined;
+        }
+    }
+
+    UdpConnection(UdpTransport transport, Peer owner, SocketAddress address, long sendSession, long receiveSession) {
+        this.transport = transport;
+        this.owner = owner;
+        this.address = address;
+        this.sendSession = sendSession;
+        this.receiveSession = receiveSession;
+        transport.register(receiveSession, this);
+    }
+
+    @Override
+    public void send(OutgoingMessage message) {
+        byte[] bytes;
+        try {
+            bytes = encode(message);
+        } catch (IOException e) {
+            PeerServer.log().warning(owner.getForeignName() + ": failed encoding message for UDP: " + e.getMessage());
+            message.onSent.run();
+            return;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                message.onSent.run();
+                return;
+            }
+
+            int count = Math.max(1, (bytes.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE);
+            Outgoing outgoing = new Outgoing(message, bytes.length, count);
+            int messageId = nextMessageId++;
+            for (int i = 0; i < count; ++i) {
+                int offset = i * FRAGMENT_SIZE;
+                unsent.add(new Fragment(outgoing, messageId, i, count, bytes, offset,
+                                        Math.min(FRAGMENT_SIZE, bytes.length - offset)));
+            }
+            queuedBytes += bytes.length;
+            pump(System.nanoTime());
+        }
+    }
+
+    /**
+     * @return the message exactly as it would be written to a TCP connection
+     */
+    private static byte[] encode(OutgoingMessage message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, message.size()));
+        out.write(message.message.getBytes(StandardCharsets.UTF_8));
+        if (message.payload.isJust()) {
+            message.payload.get().writeTo(Channels.newChannel(out));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Sends whatever the window allows: first anything that was lost, then new fragments.
+     */
+    private void pump(long now) {
+        int limit = Math.max(1, Math.min((int) window, peerWindow));
+        while (now >= nextSendTime && inFlight.size() - lost.size() < limit) {
+            Long sequence = lost.pollFirst();
+            if (sequence != null) {
+                Fragment fragment = inFlight.get(sequence);
+                fragment.resent = true;
+                ++datagramsResent;
+                transmit(fragment, now);
+            } else if (!unsent.isEmpty()) {
+                Fragment fragment = unsent.poll();
+                if (inFlight.isEmpty()) {
+                    lastProgress = now;
+                }
+                fragment.sequence = nextSequence++;
+                inFlight.put(fragment.sequence, fragment);
+                transmit(fragment, now);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void transmit(Fragment fragment, long now) {
+        ByteBuffer datagram = ByteBuffer.allocate(DATA_HEADER + fragment.length);
+        datagram.put(UdpTransport.DATA)
+                .putLong(sendSession)
+                .putLong(fragment.sequence)
+                .putInt(fragment.messageId)
+                .putInt(fragment.index)
+                .putInt(fragment.count)
+                .put(fragment.data, fragment.offset, fragment.length)
+                .flip();
+        fragment.sentAt = now;
+        ++datagramsSent;
+        transport.send(datagram, address);
+
+        if (BandwidthShaper.uploadLimited(owner.uploadBucket)) {
+            nextSendTime = now + BandwidthShaper.reserveUpload(owner.uploadBucket, datagram.limit());
+        }
+    }
+
+    /**
+     * Called regularly, to send anything that was waiting on an upload limit and to notice when nothing has been
+     * acknowledged for too long.
+     */
+    void tick() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (!inFlight.isEmpty() && now - lastProgress > Math.min(MAXIMUM_TIMEOUT, timeout << backoff)) {
+                // Nothing is getting through, so assume everything outstanding was lost and start again slowly
+                lost.addAll(inFlight.keySet());
+                threshold = Math.max(MINIMUM_WINDOW, window / 2);
+                window = MINIMUM_WINDOW;
+                recoveryPoint = nextSequence;
+                backoff = Math.min(backoff + 1, 16);
+                lastProgress = now;
+            }
+            pump(now);
+        }
+    }
+
+    /**
+     * Called by the transport when a datagram for this connection arrives.
+     */
+    void received(byte type, ByteBuffer datagram, SocketAddress source) {
+        // Follow the peer if its address changes, for example behind a NAT
+        address = source;
+        switch (type) {
+            case UdpTransport.DATA:
+                dataReceived(datagram);
+                break;
+            case UdpTransport.ACK:
+                ackReceived(datagram);
+                break;
+            case UdpTransport.NACK:
+                nackReceived(datagram);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void ackReceived(ByteBuffer datagram) {
+        long cumulative = datagram.getLong();
+        int advertised = datagram.getInt();
+        int ranges = Math.min(MAXIMUM_RANGES, datagram.getShort());
+        List<Runnable> finished = new ArrayList<>();
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            peerWindow = Math.max(0, Math.min(MAXIMUM_WINDOW, advertised));
+            acknowledge(inFlight.headMap(cumulative), now, finished);
+            for (int i = 0; i < ranges; ++i) {
+                long start = datagram.getLong();
+                long end = datagram.getLong();
+                if (start < end) {
+                    acknowledge(inFlight.subMap(start, end), now, finished);
+                }
+            }
+
+            // Anything sent well before a datagram that has since arrived has probably been lost
+            for (Fragment fragment : inFlight.headMap(highestAcknowledged - REORDERING + 1).values()) {
+                if (probablyLost(fragment, now)) {
+                    markLost(fragment);
+                }
+            }
+            pump(now);
+        }
+        finished.forEach(Runnable::run);
+    }
+
+    private void acknowledge(SortedMap<Long, Fragment> fragments, long now, List<Runnable> finished) {
+        for (Iterator<Fragment> it = fragments.values().iterator(); it.hasNext();) {
+            Fragment fragment = it.next();
+            it.remove();
+            lost.remove(fragment.sequence);
+            // Something is getting through, so stop backing off
+            lastProgress = now;
+            backoff = 0;
+            highestAcknowledged = Math.max(highestAcknowledged, fragment.sequence);
+            // A resent fragment's acknowledgement could be for either copy, so it doesn't tell us the round trip
+            if (!fragment.resent) {
+                sampleRoundTrip(now - fragment.sentAt);
+            }
+            window = Math.min(MAXIMUM_WINDOW, window < threshold ? window + 1 : window + 1 / window);
+
+            if (--fragment.outgoing.unacknowledged == 0) {
+                queuedBytes -= fragment.outgoing.size;
+                finished.add(fragment.outgoing.message.onSent);
+            }
+        }
+    }
+
+    private void nackReceived(ByteBuffer datagram) {
+        long start = datagram.getLong();
+        long end = datagram.getLong();
+        if (start >= end) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Fragment fragment : inFlight.subMap(start, end).values()) {
+                if (probablyLost(fragment, now)) {
+                    markLost(fragment);
+                }
+            }
+            pump(now);
+        }
+    }
+
+    /**
+     * @return whether a fragment that has been reported missing should be sent again. If we've already resent it,
+     * the new copy gets a round trip to arrive first.
+     */
+    private boolean probablyLost(Fragment fragment, long now) {
+        if (lost.contains(fragment.sequence)) {
+            return false;
+        }
+        long wait = rttMeasured ? (long) (smoothedRtt * 5 / 4) : timeout;
+        return !fragment.resent || now - fragment.sentAt > wait;
+    }
+
+    private void markLost(Fragment fragment) {
+        lost.add(fragment.sequence);
+        if (fragment.sequence >= recoveryPoint) {
+            // Back off once for each window of datagrams that has losses
+            threshold = Math.max(MINIMUM_WINDOW, window / 2);
+            window = threshold;
+            recoveryPoint = nextSequence;
+        }
+    }
+
+    private void sampleRoundTrip(long sample) {
+        if (!rttMeasured) {
+            smoothedRtt = sample;
+            rttVariance = sample / 2.0;
+            rttMeasured = true;
+        } else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - sample);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * sample;
+        }
+        timeout = Math.max(MINIMUM_TIMEOUT, Math.min(MAXIMUM_TIMEOUT, (long) (smoothedRtt + 4 * rttVariance)));
+    }
+
+    private void dataReceived(ByteBuffer datagram) {
+        long sequence = datagram.getLong();
+        int messageId = datagram.getInt();
+        int index = datagram.getInt();
+        int count = datagram.getInt();
+        if (sequence < 0 || count <= 0 || count > maximumFragments || index < 0 || index >= count) {
+            return;
+        }
+        byte[] data = new byte[datagram.remaining()];
+        datagram.get(data);
+
+        Assembly complete = null;
+        ByteBuffer ack;
+        synchronized (receiving) {
+            // Far beyond anything the peer could have sent yet
+            if (sequence >= expected + 4L * MAXIMUM_WINDOW) {
+                return;
+            }
+
+            if (sequence >= expected && !received.contains(sequence)) {
+                Assembly assembly = assemblies.get(messageId);
+                if (assembly == null) {
+                    if (assemblies.size() >= MAXIMUM_ASSEMBLIES) {
+                        return;
+                    }
+                    assembly = new Assembly(count);
+                    assemblies.put(messageId, assembly);
+                } else if (assembly.fragments.length != count) {
+                    return;
+                }
+
+                if (sequence > highestReceived + 1) {
+                    sendNack(Math.max(expected, highestReceived + 1), sequence);
+                }
+                highestReceived = Math.max(highestReceived, sequence);
+                received.add(sequence);
+                while (!received.isEmpty() && received.first() == expected) {
+                    received.pollFirst();
+                    ++expected;
+                }
+
+                buffered.addAndGet(assembly.add(index, data));
+                if (assembly.missing == 0) {
+                    assemblies.remove(messageId);
+                    complete = assembly;
+                }
+            }
+            ack = buildAck();
+        }
+        transport.send(ack, address);
+
+        if (complete != null) {
+            Assembly message = complete;
+            executor.execute(() -> deliver(message));
+        }
+    }
+
+    private ByteBuffer buildAck() {
+        List<long[]> ranges = new ArrayList<>();
+        for (long sequence : received) {
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] == sequence) {
+                ++last[1];
+            } else if (ranges.size() < MAXIMUM_RANGES) {
+                ranges.add(new long[] { sequence, sequence + 1 });
+            } else {
+                break;
+            }
+        }
+
+        ByteBuffer ack = ByteBuffer.allocate(ACK_HEADER + ranges.size() * 2 * Long.BYTES);
+        ack.put(UdpTransport.ACK)
+           .putLong(sendSession)
+           .putLong(expected)
+           .putInt(advertisedWindow())
+           .putShort((short) ranges.size());
+        for (long[] range : ranges) {
+            ack.putLong(range[0]).putLong(range[1]);
+        }
+        return ack.flip();
+    }
+
+    private void sendNack(long start, long end) {
+        ByteBuffer nack = ByteBuffer.allocate(Byte.BYTES + 3 * Long.BYTES);
+        nack.put(UdpTransport.NACK)
+            .putLong(sendSession)
+            .putLong(start)
+            .putLong(end)
+            .flip();
+        transport.send(nack, address);
+    }
+
+    /**
+     * @return how many more datagrams we have room for, going by the space left in the inbound queue
+     */
+    private int advertisedWindow() {
+        long room = inbound.availablePermits() - buffered.get();
+        return (int) Math.max(0, Math.min(MAXIMUM_WINDOW, room / FRAGMENT_SIZE));
+    }
+
+    /**
+     * Reads the message out of a complete assembly, and hands it on to be processed as if it came over TCP.
+     */
+    private void deliver(Assembly assembly) {
+        byte[] bytes = assembly.join();
+        try {
+            FrameReader in = new FrameReader(Channels.newChannel(new ByteArrayInputStream(bytes)));
+            Maybe<FrameReader.Frame> frame = in.readFrame();
+            if (frame.isJust() && !owner.isClosed()) {
+                String message = frame.get().text;
+                Maybe<ByteBuffer> payload = frame.get().payload;
+                int size = PeerConnection.inboundSize(message, payload, inboundCapacity);
+                inbound.acquire(size);
+                PeerServer.enqueueMessage(new ReceivedMessage(message, owner, payload, () -> inbound.release(size)));
+            }
+        } catch (IOException e) {
+            PeerServer.log().warning(owner.getForeignName() + ": bad message over UDP: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            buffered.addAndGet(-bytes.length);
+        }
+    }
+
+    @Override
+    public synchronized String stats() {
+        String rtt = rttMeasured ? String.format("%.1f ms", smoothedRtt / 1e6) : "unknown";
+        return "udp: " + datagramsSent + " datagrams sent (" + datagramsResent + " resent), "
+             + inFlight.size() + " in flight, window " + (int) window + ", round trip " + rtt + ", "
+             + Conversion.humanFileSize(queuedBytes) + " queued";
+    }
+
+    @Override
+    public void close() {
+        Set<Outgoing> dropped = new HashSet<>();
+        synchronized (this) {
+            closed = true;
+            unsent.forEach(fragment -> dropped.add(fragment.outgoing));
+            inFlight.values().forEach(fragment -> dropped.add(fragment.outgoing));
+            unsent.clear();
+            inFlight.clear();
+            lost.clear();
+            queuedBytes = 0;
+        }
+        transport.unregister(receiveSession, this);
+        dropped.forEach(outgoing -> outgoing.message.onSent.run());
+    }
+}
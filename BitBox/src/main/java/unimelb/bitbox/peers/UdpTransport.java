@@ -0,0 +1,115 @@
+package unimelb.bitbox.peers;
+
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.concurrency.KeepAlive;
+import unimelb.bitbox.util.config.Configuration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The UDP socket that file bytes are sent and received on, shared by every peer that has a {@link UdpConnection}.
+ *
+ * Each datagram starts with a type and the session ID that the receiving peer gave us in its handshake, so we can
+ * tell which peer a datagram is from without trusting its address, and ignore anything that wasn't meant for us.
+ *
+ * @author Eleanor McMurtry
+ */
+public class UdpTransport {
+    // Small enough to cross any network without being fragmented
+    static final int MAXIMUM_DATAGRAM = 1200;
+    static final byte DATA = 0;
+    static final byte ACK = 1;
+    static final byte NACK = 2;
+    // How often to check for datagrams that need sending again
+    private static final long TICK = 10;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final DatagramChannel channel;
+    private final Map<Long, UdpConnection> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    public UdpTransport(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+
+        KeepAlive.submit(this::receiveDatagrams);
+        timer.scheduleAtFixedRate(() -> sessions.values().forEach(UdpConnection::tick), TICK, TICK,
+                                  TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a new session ID, for a peer to put on the datagrams it sends us
+     */
+    static long newSession() {
+        return random.nextLong();
+    }
+
+    public int port() {
+        return channel.socket().getLocalPort();
+    }
+
+    void register(long session, UdpConnection connection) {
+        sessions.put(session, connection);
+    }
+
+    void unregister(long session, UdpConnection connection) {
+        sessions.remove(session, connection);
+    }
+
+    /**
+     * Sends a datagram, unless the configured artificial loss says to drop it.
+     */
+    void send(ByteBuffer datagram, SocketAddress address) {
+        int loss = Configuration.getUdpLossPercent();
+        if (loss > 0 && ThreadLocalRandom.current().nextInt(100) < loss) {
+            return;
+        }
+        try {
+            channel.send(datagram, address);
+        } catch (IOException e) {
+            // The datagram is as good as lost; it will be sent again if it matters
+            PeerServer.log().fine("failed sending datagram to " + address + ": " + e.getMessage());
+        }
+    }
+
+    private void receiveDatagrams() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAXIMUM_DATAGRAM);
+        while (channel.isOpen()) {
+            buffer.clear();
+            SocketAddress source;
+            try {
+                source = channel.receive(buffer);
+            } catch (IOException e) {
+                PeerServer.log().warning("error receiving datagram: " + e.getMessage());
+                continue;
+            }
+            buffer.flip();
+            if (buffer.remaining() < Byte.BYTES + Long.BYTES) {
+                continue;
+            }
+
+            byte type = buffer.get();
+            UdpConnection connection = sessions.get(buffer.getLong());
+            if (connection != null) {
+                try {
+                    connection.received(type, buffer, source);
+                } catch (RuntimeException e) {
+                    // A malformed datagram; all we can do is ignore it
+                    PeerServer.log().fine("ignoring bad datagram from " + source + ": " + e);
+                }
+            }
+        }
+    }
+}
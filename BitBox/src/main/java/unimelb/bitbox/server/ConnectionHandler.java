@@ -1,23 +1,22 @@
 package unimelb.bitbox.server;
 
 import functional.algebraic.Maybe;
-import unimelb.bitbox.messages.ConnectionRefused;
 import unimelb.bitbox.messages.HandshakeRequest;
 import unimelb.bitbox.messages.Message;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.peers.PeerType;
+import unimelb.bitbox.peers.UdpTransport;
 import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.network.Dialer;
 import unimelb.bitbox.util.network.HostPort;
+import unimelb.bitbox.util.network.HostResolver;
 import unimelb.bitbox.util.network.IJSONData;
 import unimelb.bitbox.util.network.JSONDocument;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.nio.charset.StandardCharsets;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -31,12 +30,19 @@ import java.util.stream.Collectors;
  */
 public class ConnectionHandler implements IJSONData {
     // Settings
-    private static final int PEER_RETRY_TIME = 60;
     private static final String DEFAULT_NAME = "Anonymous";
 
     // Objects for use by this class
-    private ServerSocket socket = null;
-    private final Set<HostPort> peerAddresses = ConcurrentHashMap.newKeySet();
+    // Sockets are backed by channels, so that file bytes can be sent without copying them
+    private ServerSocketChannel socket = null;
+    // Only if UDP is turned on in the configuration
+    private final Maybe<UdpTransport> udp;
+    // Addresses we want to connect to, with how many times in a row connecting has failed
+    private final Map<HostPort, Integer> peerAddresses = new ConcurrentHashMap<>();
+    // Addresses with a connection attempt waiting or in progress, so that each only has one at a time
+    private final Set<HostPort> dialling = ConcurrentHashMap.newKeySet();
+    // The address we connected to for each outgoing peer, so we can connect again if it drops
+    private final Map<Peer, Dial> dialled = new ConcurrentHashMap<>();
     private final Queue<String> names = new ConcurrentLinkedQueue<>();
 
     // Adding and removing peers is uncommon compared to iterating over peers.
@@ -46,25 +52,96 @@ public class ConnectionHandler implements IJSONData {
     // Threading
     private final AtomicBoolean active = new AtomicBoolean(true);
     private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor();
+
+    private static class Dial {
+        final HostPort address;
+        // How many times in a row connecting had failed before this connection
+        final int failures;
+
+        Dial(HostPort address, int failures) {
+            this.address = address;
+            this.failures = failures;
+        }
+    }
 
     ConnectionHandler() {
         createNames();
+        udp = openUdp();
 
-        executor.submit(this::connectToPeers);
         executor.submit(this::acceptConnectionsPersistent);
     }
 
+    /**
+     * Starts connecting to the address in the background, retrying until it works.
+     */
     void addPeerAddress(HostPort peerHostPort) {
-        peerAddresses.add(peerHostPort);
+        if (peerAddresses.putIfAbsent(peerHostPort, 0) == null) {
+            scheduleAttempt(peerHostPort, 0);
+        }
     }
 
     void addPeerAddressAll(Collection<HostPort> addresses) {
-        peerAddresses.addAll(addresses);
+        addresses.forEach(this::addPeerAddress);
     }
 
+    /**
+     * Tries every address we aren't connected to again straight away, instead of waiting for its next retry.
+     */
     void retryPeers() {
-        // Remove all peers that successfully connect.
-        peerAddresses.removeIf(addr -> tryPeer(addr).isJust());
+        peerAddresses.keySet().forEach(address -> scheduleAttempt(address, 0));
+    }
+
+    private void scheduleAttempt(HostPort address, long delay) {
+        if (!dialling.add(address)) {
+            return;
+        }
+        // Connection attempts block, so they each get a thread from the pool
+        retryTimer.schedule(() -> executor.submit(() -> attempt(address)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(HostPort address) {
+        boolean done = true;
+        try {
+            Integer failures = peerAddresses.get(address);
+            // We can afford to wait a while for the name here, and the check for an existing peer needs it. The
+            // lookup counts towards the connect timeout, so the dialler only gets whatever time is left.
+            long deadline = System.currentTimeMillis() + Configuration.getConnectTimeout();
+            try {
+                HostResolver.resolve(address.hostname).get(Configuration.getConnectTimeout(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+                // The check makes do with the name as given, and with no time left the dialler gives up straight
+                // away, so this counts as a failed attempt and the lookup carries on in the background for next time
+            }
+            if (active.get() && failures != null && !hasPeer(address)) {
+                done = tryPeer(address, failures, deadline - System.currentTimeMillis()).isJust();
+            }
+        } catch (Exception e) {
+            PeerServer.log().severe("Connecting to `" + address + "` failed: " + e.getMessage());
+            e.printStackTrace();
+            done = false;
+        } finally {
+            dialling.remove(address);
+        }
+
+        if (done) {
+            peerAddresses.remove(address);
+            return;
+        }
+        int failures = peerAddresses.merge(address, 1, Integer::sum);
+        long delay = retryDelay(failures);
+        PeerServer.log().fine("Retrying `" + address + "` in " + delay + " ms");
+        scheduleAttempt(address, delay);
+    }
+
+    /**
+     * @return the time to wait after the given number of failures in a row: doubling each time up to the maximum,
+     * with some randomness so that peers that dropped together don't all retry together
+     */
+    private static long retryDelay(int failures) {
+        long delay = Math.min(Configuration.getMaximumReconnectDelay(),
+                              (long) Configuration.getReconnectDelay() << Math.min(failures - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
     }
 
     /**
@@ -83,12 +160,75 @@ public class ConnectionHandler implements IJSONData {
         getActivePeers().forEach(peer -> peer.sendMessage(message));
     }
 
+    private static Maybe<UdpTransport> openUdp() {
+        if (Configuration.getUdpPort() == 0) {
+            return Maybe.nothing();
+        }
+        try {
+            UdpTransport transport = new UdpTransport(Configuration.getUdpPort());
+            PeerServer.log().info("Accepting file bytes over UDP on port " + transport.port());
+            return Maybe.just(transport);
+        } catch (IOException e) {
+            PeerServer.log().severe("Failed opening UDP port " + Configuration.getUdpPort() + ", using TCP only: "
+                                    + e.getMessage());
+            return Maybe.nothing();
+        }
+    }
+
+    /**
+     * @return the socket for sending file bytes over UDP, if UDP is turned on
+     */
+    public Maybe<UdpTransport> udp() {
+        return udp;
+    }
+
+    /**
+     * Opens a bulk connection to the peer in the background.
+     */
+    void openBulkChannel(Peer peer, String token) {
+        executor.submit(() -> peer.openBulkChannel(token));
+    }
+
+    /**
+     * Finds the peer that handed out the given bulk connection token.
+     */
+    public Maybe<Peer> getPeerByBulkToken(String token) {
+        return Maybe.of(peers.stream()
+                             .filter(peer -> peer.getBulkToken().equals(token))
+                             .findFirst());
+    }
+
+    /**
+     * Removes a peer from the peer list without closing it, because its connection now belongs to another peer.
+     */
+    public void forgetPeer(Peer peer) {
+        dialled.remove(peer);
+        if (peers.remove(peer)) {
+            String plainName = peer.getName();
+            if (!plainName.equals(DEFAULT_NAME)) {
+                names.add(plainName);
+            }
+        }
+    }
+
     public void closeConnection(Peer peer) {
         if (peers.contains(peer)) {
             peers.remove(peer);
             peer.close();
+            PeerServer.journalSync().forget(peer);
+            PeerServer.merkleSync().forget(peer);
             PeerServer.log().fine("Removing " + peer.getForeignName() + " from peer list");
 
+            // If we connected to the peer, connect again once it's back. A peer that drops before the handshake
+            // finishes counts as another failure, so one that keeps hanging up on us isn't retried in a tight loop.
+            Dial dial = dialled.remove(peer);
+            if (dial != null && active.get()) {
+                int failures = peer.wasActive() ? 1 : dial.failures + 1;
+                if (peerAddresses.putIfAbsent(dial.address, failures) == null) {
+                    scheduleAttempt(dial.address, retryDelay(failures));
+                }
+            }
+
             // return the plain name to the queue, if it's not the default
             String plainName = peer.getName();
             if (!plainName.equals(DEFAULT_NAME)) {
@@ -118,7 +258,11 @@ public class ConnectionHandler implements IJSONData {
         peers.add(peer);
     }
 
-    private boolean canStorePeer() {
+    /**
+     * @return whether there's room for another peer. Only peers that have finished their handshake are counted, so an
+     *         incoming connection is checked against this once it says what it is for.
+     */
+    boolean canStorePeer() {
         return getActivePeers().size() < Configuration.getMaximumConnections();
     }
 
@@ -132,31 +276,17 @@ public class ConnectionHandler implements IJSONData {
         // Need to set and then await in case there was already a socket created
         PeerServer.log().fine("Listening on port " + Configuration.getPort());
 
-        while (!socket.isClosed()) {
+        while (socket.isOpen()) {
             try {
-                Socket clientSocket = socket.accept();
-                PeerServer.log().fine("Accepted connection: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
-
-                // check we have room for more peers
-                // (only count incoming connections)
-                if (canStorePeer()) {
-                    final Peer peer = new Peer(getAnyName(), clientSocket, PeerType.INCOMING);
-                    addPeer(peer);
-                    PeerServer.log().info("Connected to peer " + peer);
-                } else {
-                    // if not, write a CONNECTION_REFUSED message and close the connection
-                    try (var writer = new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8);
-                         var out = new BufferedWriter(writer)) {
-                        out.write(new ConnectionRefused("connection list full").networkEncode());
-                        out.flush();
-                        PeerServer.log().fine("Sending CONNECTION_REFUSED");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        PeerServer.log().warning("Failed writing CONNECTION_REFUSED");
-                    }
-                    clientSocket.close();
-                }
-            } catch (SocketTimeoutException ignored) {
+                SocketChannel clientSocket = socket.accept();
+                PeerServer.log().fine("Accepted connection: " + clientSocket.getRemoteAddress());
+
+                // We don't check whether there's room yet: the connection may turn out to be the bulk connection
+                // of a peer we already have, which we only find out from its first message. A new peer is refused
+                // when its handshake request arrives instead.
+                final Peer peer = new Peer(getAnyName(), clientSocket, PeerType.INCOMING);
+                addPeer(peer);
+                PeerServer.log().info("Connected to peer " + peer);
             } catch (IOException e) {
                 PeerServer.log().warning("Failed connecting to peer");
                 e.printStackTrace();
@@ -165,19 +295,22 @@ public class ConnectionHandler implements IJSONData {
         PeerServer.log().fine("No longer listening on port " + Configuration.getPort());
     }
 
-    private Maybe<Peer> tryPeer(HostPort peerHostPort) {
+    /**
+     * @param timeout how long to spend connecting, in milliseconds
+     */
+    private Maybe<Peer> tryPeer(HostPort peerHostPort, int failures, long timeout) {
         if (hasPeer(peerHostPort)) {
             return Maybe.nothing();
         }
-        addPeerAddress(peerHostPort);
 
         try {
-            Socket socket = new Socket(peerHostPort.hostname, peerHostPort.port);
+            SocketChannel socket = Dialer.connect(peerHostPort, timeout);
 
             // find a name
             String name = getAnyName();
             Peer peer = new Peer(name, socket, PeerType.OUTGOING);
-            peer.sendMessage(new HandshakeRequest());
+            peer.sendMessage(new HandshakeRequest(peer));
+            dialled.put(peer, new Dial(peerHostPort, failures));
             addPeer(peer);
             PeerServer.log().info("Connected to peer " + name + " @ " + peerHostPort);
             return Maybe.just(peer);
@@ -190,7 +323,8 @@ public class ConnectionHandler implements IJSONData {
 
     private void acceptConnectionsPersistent() {
         try {
-            socket = new ServerSocket(Configuration.getPort());
+            socket = ServerSocketChannel.open();
+            socket.bind(new InetSocketAddress(Configuration.getPort()));
             acceptConnections();
         } catch (Exception e) {
             PeerServer.log().severe("Accepting connections failed: " + e.getMessage());
@@ -203,25 +337,6 @@ public class ConnectionHandler implements IJSONData {
         }
     }
 
-    private void connectToPeers() {
-        try {
-            while (true) {
-                retryPeers();
-                Thread.sleep(PEER_RETRY_TIME * 1000);
-            }
-        } catch (InterruptedException ignored) {
-            // It's expected that we might get interrupted here.
-        } catch (Exception e) {
-            PeerServer.log().severe("Retrying peers failed: " + e.getMessage());
-            e.printStackTrace();
-        } finally {
-            if (active.get()) {
-                PeerServer.log().fine("Restarting peer retry thread");
-                executor.submit(this::connectToPeers);
-            }
-        }
-    }
-
     private void createNames() {
         names.add("Alice");
         names.add("Bob");
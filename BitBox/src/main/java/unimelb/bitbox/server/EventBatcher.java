@@ -0,0 +1,88 @@
+package unimelb.bitbox.server;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.BatchRequest;
+import unimelb.bitbox.messages.Message;
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.peers.PeerFeature;
+import unimelb.bitbox.util.config.Configuration;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds on to file system events for a short time, so that a burst of them (e.g. copying in a directory tree) can
+ * be sent to each peer as a few BATCH_REQUESTs instead of one message each.
+ *
+ * @author Eleanor McMurtry
+ */
+class EventBatcher {
+    private final List<Pending> pending = new ArrayList<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private boolean flushScheduled = false;
+
+    private static class Pending {
+        final Message message;
+        final Maybe<Peer> source;
+
+        Pending(Message message, Maybe<Peer> source) {
+            this.message = message;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Queues a message to be broadcast. It is sent once the batch is full, or the batch delay has passed.
+     * @param source the peer that passed the change to us, if any, which won't be sent it back
+     */
+    synchronized void add(Message message, Maybe<Peer> source) {
+        pending.add(new Pending(message, source));
+        if (pending.size() >= Configuration.getBatchSize() || Configuration.getBatchDelay() <= 0) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            timer.schedule(this::flush, Configuration.getBatchDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Broadcasts everything queued so far, to the peers {@link Gossip} picks for each message.
+     */
+    synchronized void flush() {
+        flushScheduled = false;
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Gossip gossip = PeerServer.gossip();
+        List<Peer> candidates = gossip.candidates(PeerServer.connection().getActivePeers());
+        Map<Peer, List<Message>> batches = new LinkedHashMap<>();
+        for (Pending item : pending) {
+            for (Peer peer : gossip.targets(candidates, item.source)) {
+                batches.computeIfAbsent(peer, ignored -> new ArrayList<>()).add(item.message);
+            }
+        }
+        pending.clear();
+        batches.forEach(EventBatcher::send);
+    }
+
+    /**
+     * Sends the messages to the peer in batches, if the peer understands them, or one at a time otherwise.
+     */
+    static void send(Peer peer, List<Message> messages) {
+        if (messages.size() <= 1 || !peer.supports(PeerFeature.BATCH)) {
+            messages.forEach(peer::sendMessage);
+            return;
+        }
+
+        int batchSize = Math.max(1, Configuration.getBatchSize());
+        for (int i = 0; i < messages.size(); i += batchSize) {
+            peer.sendMessage(new BatchRequest(messages.subList(i, Math.min(i + batchSize, messages.size()))));
+        }
+    }
+}
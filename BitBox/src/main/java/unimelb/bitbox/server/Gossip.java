@@ -0,0 +1,160 @@
+package unimelb.bitbox.server;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.Message;
+import unimelb.bitbox.messages.MessageType;
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.fs.FileEventType;
+import unimelb.bitbox.util.fs.FileSystemEvent;
+import unimelb.bitbox.util.network.JSONDocument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decides which peers hear about each change to the share.
+ *
+ * Every live change carries an event ID, made from the journal ID and sequence number of the peer where it happened.
+ * When a change we received from a peer turns up in our own share (i.e. once we've downloaded the file), we pass it on
+ * under the same ID, to everyone except the peer we got it from. An event we've already seen isn't passed on again,
+ * so each change travels along each connection at most about once.
+ *
+ * By default a change goes to every peer. With a gossip fan-out set, it goes to only that many peers, picked at random
+ * for each batch, and they pass it on in turn. So the peer where a file changed uploads a fixed number of copies
+ * however many peers there are, and the content spreads hop by hop. A peer that happens to be missed catches up at
+ * the next periodic sync.
+ *
+ * @author Eleanor McMurtry
+ */
+public class Gossip {
+    // How many event IDs and pending relays to remember; older ones are forgotten
+    private static final int REMEMBERED = 10000;
+
+    private final Map<String, Boolean> seen = bounded();
+    // Changes we've been told about but haven't seen in our share yet, by what they will look like when we do
+    private final Map<String, Relay> relays = bounded();
+
+    private static class Relay {
+        final String eventId;
+        final Peer source;
+
+        Relay(String eventId, Peer source) {
+            this.eventId = eventId;
+            this.source = source;
+        }
+    }
+
+    private static <V> Map<String, V> bounded() {
+        return Collections.synchronizedMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > REMEMBERED;
+            }
+        });
+    }
+
+    /**
+     * Notes a change request from a peer, so that we pass it on once the change reaches our share.
+     */
+    void received(Peer peer, MessageType command, JSONDocument document) {
+        document.getString("eventId").ifOk(eventId -> {
+            if (seen.put(eventId, true) != null) {
+                // Someone else already told us about this one
+                return;
+            }
+            Maybe<FileEventType> event = eventType(command);
+            String pathName = document.getString("pathName").orElse("");
+            String md5 = document.getJSON("fileDescriptor").andThen(fd -> fd.getString("md5")).orElse("");
+            event.consume(ev -> relays.put(key(ev, pathName, md5), new Relay(eventId, peer)));
+        });
+    }
+
+    /**
+     * Gives the message for a change in our share its event ID: the one it arrived with if we were passed it, or a
+     * new one if it happened here.
+     * @return the peer that passed the change to us, if any, which doesn't need to hear about it again
+     */
+    Maybe<Peer> tag(Message message, FileSystemEvent ev) {
+        boolean isFile = ev.event == FileEventType.FILE_CREATE || ev.event == FileEventType.FILE_MODIFY;
+        String md5 = isFile ? ev.fileDescriptor.md5() : "";
+        Relay relay = relays.remove(key(ev.event, ev.pathName, md5));
+        if (relay != null) {
+            message.setEventId(relay.eventId);
+            return Maybe.just(relay.source);
+        }
+
+        String eventId = ev.sequence()
+                           .map(sequence -> PeerServer.fsManager().journal().id() + ":" + sequence)
+                           .orElse(() -> UUID.randomUUID().toString());
+        seen.put(eventId, true);
+        message.setEventId(eventId);
+        return Maybe.nothing();
+    }
+
+    /**
+     * @return the peers to send a batch of changes to, in the order to try them
+     */
+    List<Peer> candidates(List<Peer> activePeers) {
+        List<Peer> candidates = new ArrayList<>(activePeers);
+        if (Configuration.getGossipFanout() > 0) {
+            Collections.shuffle(candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * @param candidates the peers from {@link #candidates(List)}
+     * @param source     the peer that passed the change to us, if any
+     * @return the peers that should hear about a change
+     */
+    List<Peer> targets(List<Peer> candidates, Maybe<Peer> source) {
+        int fanout = Configuration.getGossipFanout();
+        List<Peer> targets = new ArrayList<>();
+        for (Peer peer : candidates) {
+            if (fanout > 0 && targets.size() >= fanout) {
+                break;
+            }
+            if (!source.map(from -> from == peer).orElse(false)) {
+                targets.add(peer);
+            }
+        }
+        return targets;
+    }
+
+    private static Maybe<FileEventType> eventType(MessageType command) {
+        switch (command) {
+            case FILE_CREATE_REQUEST:
+                return Maybe.just(FileEventType.FILE_CREATE);
+            case FILE_MODIFY_REQUEST:
+                return Maybe.just(FileEventType.FILE_MODIFY);
+            case FILE_DELETE_REQUEST:
+                return Maybe.just(FileEventType.FILE_DELETE);
+            case DIRECTORY_CREATE_REQUEST:
+                return Maybe.just(FileEventType.DIRECTORY_CREATE);
+            case DIRECTORY_DELETE_REQUEST:
+                return Maybe.just(FileEventType.DIRECTORY_DELETE);
+            default:
+                return Maybe.nothing();
+        }
+    }
+
+    // A downloaded file may show up as either a create or a modify, so they share a key
+    private static String key(FileEventType event, String pathName, String md5) {
+        switch (event) {
+            case FILE_CREATE:
+            case FILE_MODIFY:
+                return "file:" + md5 + ":" + pathName;
+            case FILE_DELETE:
+                return "delete:" + pathName;
+            case DIRECTORY_CREATE:
+                return "mkdir:" + pathName;
+            default:
+                return "rmdir:" + pathName;
+        }
+    }
+}
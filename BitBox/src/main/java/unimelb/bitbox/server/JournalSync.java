@@ -0,0 +1,218 @@
+package unimelb.bitbox.server;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.JournalRequest;
+import unimelb.bitbox.messages.JournalResponse;
+import unimelb.bitbox.messages.Message;
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.fs.ChangeJournal;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Catches up peers that reconnect using our {@link ChangeJournal}, and keeps track of how far through each peer's
+ * journal we have got.
+ *
+ * After the handshake, each side sends a JOURNAL_REQUEST with the last sequence number it saw from the other's
+ * journal. If that's still in our journal we send just the later changes; otherwise we fall back to a full sync.
+ * Either way we finish with a JOURNAL_RESPONSE giving the sequence number the peer is now up to. Live changes carry
+ * their sequence numbers too, so the position stays current while connected.
+ *
+ * A position only moves past a change once that change has been carried out or turned down, which for a new file means
+ * once it has finished downloading, and only over changes with no gaps before them. The JOURNAL_RESPONSE fills in the
+ * gaps for the changes the peer didn't need to send us, once everything that came before it has been dealt with.
+ * Otherwise a change that was lost, or a download that failed, would never be asked for again.
+ *
+ * Positions are saved next to our own journal at each periodic sync, so they survive a restart. A saved position may
+ * be a little behind, but receiving a change twice does no harm.
+ *
+ * @author Eleanor McMurtry
+ */
+public class JournalSync {
+    // The last sequence number we've processed from each journal, by journal ID
+    private final Map<String, Long> positions = new ConcurrentHashMap<>();
+    private final AtomicBoolean changed = new AtomicBoolean(false);
+    // How far each connected peer's changes have got
+    private final Map<Peer, Progress> progress = new ConcurrentHashMap<>();
+
+    /**
+     * The changes received from one peer since it connected.
+     */
+    private class Progress {
+        private final String journalId;
+        // Every change up to here has been dealt with (guarded by this)
+        private long position;
+        // Changes after the position that have been dealt with, but have gaps before them
+        private final TreeSet<Long> done = new TreeSet<>();
+        // Changes that haven't been dealt with yet, with or without sequence numbers
+        private final Set<CompletableFuture<Boolean>> pending = new HashSet<>();
+
+        Progress(String journalId) {
+            this.journalId = journalId;
+            position = positions.getOrDefault(journalId, -1L);
+        }
+
+        synchronized void received(Maybe<Long> sequence, CompletableFuture<Boolean> settled) {
+            pending.add(settled);
+            settled.thenAccept(applied -> settle(sequence, settled, applied));
+        }
+
+        private synchronized void settle(Maybe<Long> sequence, CompletableFuture<Boolean> settled, boolean applied) {
+            pending.remove(settled);
+            if (applied) {
+                sequence.consume(done::add);
+                advance();
+            }
+        }
+
+        /**
+         * The peer has sent every change up to the sequence number that we need. Once the ones that arrived have all
+         * been carried out, we're up to there.
+         */
+        synchronized void caughtUp(long sequence) {
+            List<CompletableFuture<Boolean>> before = new ArrayList<>(pending);
+            CompletableFuture.allOf(before.toArray(new CompletableFuture[0])).thenRun(() -> {
+                if (before.stream().allMatch(CompletableFuture::join)) {
+                    skipTo(sequence);
+                }
+            });
+        }
+
+        private synchronized void skipTo(long sequence) {
+            position = Math.max(position, sequence);
+            advance();
+        }
+
+        private void advance() {
+            done.headSet(position, true).clear();
+            while (done.remove(position + 1)) {
+                ++position;
+            }
+            if (position > positions.getOrDefault(journalId, -1L)) {
+                positions.merge(journalId, position, Math::max);
+                changed.set(true);
+            }
+        }
+    }
+
+    private static File positionsFile() {
+        return new File(Configuration.getJournalFile() + ".positions");
+    }
+
+    /**
+     * Reads the positions saved by an earlier run, if there are any.
+     */
+    void load() {
+        Properties saved = new Properties();
+        try (InputStream in = new FileInputStream(positionsFile())) {
+            saved.load(in);
+            for (String journalId : saved.stringPropertyNames()) {
+                positions.put(journalId, Long.parseLong(saved.getProperty(journalId)));
+            }
+        } catch (FileNotFoundException ignored) {
+            // Nothing saved yet
+        } catch (IOException | NumberFormatException e) {
+            PeerServer.log().warning("Failed reading journal positions: " + e.getMessage());
+            positions.clear();
+        }
+    }
+
+    /**
+     * Writes the positions to disk, if they have changed since last time.
+     */
+    void save() {
+        if (!changed.getAndSet(false)) {
+            return;
+        }
+        Properties saved = new Properties();
+        positions.forEach((journalId, sequence) -> saved.setProperty(journalId, sequence.toString()));
+        try (OutputStream out = new FileOutputStream(positionsFile())) {
+            saved.store(out, null);
+        } catch (IOException e) {
+            PeerServer.log().warning("Failed writing journal positions: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Asks the peer for the changes we missed since we were last connected.
+     */
+    void requestChanges(Peer peer) {
+        String journalId = peer.getJournalId();
+        progress(peer);
+        peer.sendMessage(new JournalRequest(journalId, positions.getOrDefault(journalId, -1L)));
+    }
+
+    /**
+     * Answers a JOURNAL_REQUEST, sending either the changes the peer missed or a full sync.
+     */
+    void sendChanges(Peer peer, String journalId, long sequence) {
+        ChangeJournal journal = PeerServer.fsManager().journal();
+        // Take the head first: anything after it reaches the peer as a live change
+        long head = journal.head();
+        var missed = journal.since(journalId, sequence);
+        // The peer takes this to mean it has been sent everything up to the head, so it goes after all of it
+        Runnable caughtUp = () -> peer.sendMessage(new JournalResponse(journal.id(), head, missed.isJust(), peer));
+
+        if (missed.isJust()) {
+            List<ChangeJournal.Entry> entries = missed.get().stream()
+                                                      .filter(entry -> entry.sequence <= head)
+                                                      .collect(Collectors.toList());
+            // Often the peer has most of these already, e.g. the files it sent us itself
+            List<Message> messages = entries.stream()
+                                            .filter(entry -> !peer.probablyHas(entry.event, entry.fileDescriptor))
+                                            .map(PeerServer::syncMessage)
+                                            .collect(Collectors.toList());
+            PeerServer.log().fine(peer.getForeignName() + ": sending " + messages.size() + " of "
+                                  + entries.size() + " changes since " + sequence);
+            EventBatcher.send(peer, messages);
+            caughtUp.run();
+        } else {
+            PeerServer.log().fine(peer.getForeignName() + ": journal position " + sequence
+                                  + " not available, sending full synchronisation");
+            PeerServer.synchroniseFiles(peer, caughtUp);
+        }
+    }
+
+    /**
+     * Notes that we've received a change from the peer, which may have a sequence number from its journal.
+     * @param settled completes once the change has been carried out or turned down, with whether it was
+     */
+    void received(Peer peer, Maybe<Long> sequence, CompletableFuture<Boolean> settled) {
+        progress(peer).consume(changes -> changes.received(sequence, settled));
+    }
+
+    /**
+     * Notes that the peer has sent us everything in its journal up to the sequence number that we need.
+     */
+    void caughtUp(Peer peer, long sequence) {
+        progress(peer).consume(changes -> changes.caughtUp(sequence));
+    }
+
+    /**
+     * Forgets the changes received from a peer that has disconnected. Anything not yet dealt with is asked for again
+     * when it reconnects.
+     */
+    void forget(Peer peer) {
+        progress.remove(peer);
+    }
+
+    private Maybe<Progress> progress(Peer peer) {
+        String journalId = peer.getJournalId();
+        if (journalId.isEmpty()) {
+            return Maybe.nothing();
+        }
+        return Maybe.just(progress.computeIfAbsent(peer, ignored -> new Progress(journalId)));
+    }
+}
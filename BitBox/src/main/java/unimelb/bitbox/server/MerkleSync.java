@@ -0,0 +1,187 @@
+package unimelb.bitbox.server;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.messages.Message;
+import unimelb.bitbox.messages.MerkleRequest;
+import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.fs.ContentSummary;
+import unimelb.bitbox.util.fs.FileSystemEvent;
+import unimelb.bitbox.util.fs.MerkleTree;
+import unimelb.bitbox.util.network.JSONDocument;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synchronises with peers by comparing {@link MerkleTree}s, instead of sending a request for every file.
+ *
+ * We send our root hash in a MERKLE_REQUEST. If the peer's differs, it replies with the hashes of its children, and
+ * we look further into each child whose hash doesn't match: files get a FILE_CREATE_REQUEST, directories the peer
+ * doesn't have get created outright, and directories that differ get another MERKLE_REQUEST. When nothing has
+ * changed, a sync is just one small request and response. Once the peer has answered every request, everything it
+ * needed has been queued to send.
+ *
+ * @author Eleanor McMurtry
+ */
+public class MerkleSync {
+    // Bumped whenever the share changes, so we know the cached tree is out of date
+    private final AtomicLong version = new AtomicLong();
+    private volatile Maybe<CachedTree> cached = Maybe.nothing();
+    // The syncs in progress with each peer (guarded by rounds)
+    private final Map<Peer, Round> rounds = new HashMap<>();
+
+    private static class Round {
+        int unanswered = 0;
+        final List<Runnable> whenDone = new ArrayList<>();
+    }
+
+    private static class CachedTree {
+        final long version;
+        final MerkleTree tree;
+        final Maybe<ContentSummary> summary;
+
+        CachedTree(long version, MerkleTree tree, Maybe<ContentSummary> summary) {
+            this.version = version;
+            this.tree = tree;
+            this.summary = summary;
+        }
+    }
+
+    /**
+     * Marks the cached tree as out of date.
+     */
+    void invalidate() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return a tree of the share as it is now, building it again if anything has changed
+     */
+    public MerkleTree tree() {
+        return current().tree;
+    }
+
+    /**
+     * @return a summary of the share for peers to check their changes against, from the same snapshot as
+     * {@link #tree()}, or nothing if the share is too big to summarise
+     */
+    public Maybe<ContentSummary> summary() {
+        return current().summary;
+    }
+
+    private CachedTree current() {
+        Maybe<CachedTree> current = cached;
+        long latest = version.get();
+        if (current.isJust() && current.get().version == latest) {
+            return current.get();
+        }
+
+        // If the share changes while we build, the version will have moved on and the next caller builds again
+        List<FileSystemEvent> events = new ArrayList<>();
+        PeerServer.fsManager().generateSyncEvents().forEach(events::add);
+        CachedTree built = new CachedTree(latest, MerkleTree.build(events), ContentSummary.of(events));
+        cached = Maybe.just(built);
+        // Lets the journal tell on startup whether anything changed while we weren't running
+        PeerServer.fsManager().journal().checkpoint(built.tree.root().hash());
+        return built;
+    }
+
+    /**
+     * Starts synchronising with the peer, from the root of the share.
+     */
+    void begin(Peer peer) {
+        begin(peer, () -> {});
+    }
+
+    /**
+     * Starts synchronising with the peer, from the root of the share.
+     * @param whenDone run once the peer has answered every request, so everything it needed has been queued
+     */
+    void begin(Peer peer, Runnable whenDone) {
+        // Changes that were never reported would otherwise be missed, so rebuild the tree each time
+        invalidate();
+        synchronized (rounds) {
+            rounds.computeIfAbsent(peer, ignored -> new Round()).whenDone.add(whenDone);
+        }
+        request(peer, new MerkleRequest("", tree().root().hash()));
+    }
+
+    /**
+     * Forgets the syncs in progress with a peer that has disconnected.
+     */
+    void forget(Peer peer) {
+        synchronized (rounds) {
+            rounds.remove(peer);
+        }
+    }
+
+    private void request(Peer peer, MerkleRequest request) {
+        synchronized (rounds) {
+            Maybe.of(rounds.get(peer)).consume(round -> ++round.unanswered);
+        }
+        peer.sendMessage(request);
+    }
+
+    private void answered(Peer peer) {
+        List<Runnable> whenDone;
+        synchronized (rounds) {
+            Round round = rounds.get(peer);
+            if (round == null || --round.unanswered > 0) {
+                return;
+            }
+            rounds.remove(peer);
+            whenDone = round.whenDone;
+        }
+        whenDone.forEach(Runnable::run);
+    }
+
+    /**
+     * Deals with a MERKLE_RESPONSE from the peer, sending whatever it needs to catch up with us under that path.
+     * @param children the peer's hashes of the path's children, if it has the path and it differs from ours
+     */
+    void compare(Peer peer, String pathName, String theirHash, Maybe<JSONDocument> children) {
+        try {
+            compareNode(peer, pathName, theirHash, children);
+        } finally {
+            answered(peer);
+        }
+    }
+
+    private void compareNode(Peer peer, String pathName, String theirHash, Maybe<JSONDocument> children) {
+        Maybe<MerkleTree.Node> maybeNode = tree().find(pathName);
+        if (!maybeNode.isJust() || maybeNode.get().hash().equals(theirHash)) {
+            return;
+        }
+        MerkleTree.Node node = maybeNode.get();
+
+        List<FileSystemEvent> events = new ArrayList<>();
+        if (!node.isDirectory() || !children.isJust()) {
+            // The peer doesn't have a directory here, so send everything
+            events.addAll(node.subtreeEvents());
+        } else {
+            for (MerkleTree.Node child : node.children()) {
+                // Empty if the peer doesn't have this child at all
+                String childHash = children.get().getString(child.name).orElse("");
+                if (childHash.equals(child.hash())) {
+                    continue;
+                }
+                if (child.isDirectory() && !childHash.isEmpty()) {
+                    request(peer, new MerkleRequest(child.pathName, child.hash()));
+                } else {
+                    events.addAll(child.subtreeEvents());
+                }
+            }
+        }
+
+        List<Message> messages = new ArrayList<>();
+        events.forEach(event -> messages.add(PeerServer.syncMessage(event)));
+        if (!messages.isEmpty()) {
+            PeerServer.log().fine(peer.getForeignName() + ": " + messages.size() + " entries differ under `"
+                                  + pathName + "`");
+            EventBatcher.send(peer, messages);
+        }
+    }
+}
@@ -5,36 +5,75 @@ import functional.algebraic.Result;
 import org.jetbrains.annotations.NotNull;
 import unimelb.bitbox.messages.*;
 import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.util.concurrency.KeepAlive;
+import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.fs.ContentSummary;
 import unimelb.bitbox.util.fs.FileDescriptor;
 import unimelb.bitbox.util.network.FilePacket;
 import unimelb.bitbox.util.network.HostPort;
 import unimelb.bitbox.util.network.JSONDocument;
 import unimelb.bitbox.util.network.JSONException;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * The message processor collects messages from the various PeerConnections, and then responds appropriately.
  *
+ * Messages are handled by several threads at once. All messages from one peer go to the same thread, so they are
+ * handled in the order they arrived. Messages from different peers may be handled in any order, except that
+ * responses working on the same path wait for each other (see {@link unimelb.bitbox.util.concurrency.PathLocks}).
+ *
  * @author Eleanor McMurtry
  */
-public class MessageProcessor implements Runnable  {
-    private final BlockingQueue<ReceivedMessage> messages = new LinkedBlockingQueue<>();
+public class MessageProcessor {
+    private static final Set<MessageType> BATCHABLE_RESPONSES = EnumSet.of(
+            MessageType.FILE_CREATE_RESPONSE, MessageType.FILE_MODIFY_RESPONSE, MessageType.FILE_DELETE_RESPONSE,
+            MessageType.DIRECTORY_CREATE_RESPONSE, MessageType.DIRECTORY_DELETE_RESPONSE);
+    private static final Map<MessageType, MessageType> BATCHABLE_REQUESTS = new EnumMap<>(Map.of(
+            MessageType.FILE_CREATE_REQUEST, MessageType.FILE_CREATE_RESPONSE,
+            MessageType.FILE_MODIFY_REQUEST, MessageType.FILE_MODIFY_RESPONSE,
+            MessageType.FILE_DELETE_REQUEST, MessageType.FILE_DELETE_RESPONSE,
+            MessageType.DIRECTORY_CREATE_REQUEST, MessageType.DIRECTORY_CREATE_RESPONSE,
+            MessageType.DIRECTORY_DELETE_REQUEST, MessageType.DIRECTORY_DELETE_RESPONSE));
+    private final List<Shard> shards = new ArrayList<>();
+
+    MessageProcessor(int threads) {
+        for (int i = 0; i < threads; ++i) {
+            shards.add(new Shard());
+        }
+    }
+
+    /**
+     * Starts the processing threads.
+     */
+    void start() {
+        shards.forEach(KeepAlive::submit);
+    }
 
     public void add(ReceivedMessage message) {
-        messages.add(message);
+        shards.get(Math.floorMod(System.identityHashCode(message.peer), shards.size())).messages.add(message);
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                processMessage(messages.take());
-            } catch (InterruptedException e) {
-                PeerServer.log().warning("receiving thread interrupted");
-                e.printStackTrace();
+    private class Shard implements Runnable {
+        // Not bounded here: each connection stops reading once its own messages take up too much room
+        private final BlockingQueue<ReceivedMessage> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    processMessage(messages.take());
+                } catch (InterruptedException e) {
+                    PeerServer.log().warning("receiving thread interrupted");
+                    e.printStackTrace();
+                }
             }
         }
     }
@@ -54,20 +93,24 @@ public class MessageProcessor implements Runnable  {
             String logMessage = message.peer.getForeignName() + " received: " + command
                     + friendlyName.map(name -> " (via " + name + ")").orElse("");
             PeerServer.log().fine(logMessage);
-            PeerServer.log().fine(doc.toString());
+            PeerServer.log().fine(text);
 
-            respondToMessage(message.peer, MessageType.fromString(command).get(), doc);
+            respondToMessage(message.peer, MessageType.fromString(command).get(), doc, message);
         } catch (JSONException e) {
             PeerServer.log().warning(e.getMessage());
             invalidProtocolResponse(message.peer, e.getMessage());
+        } finally {
+            message.processed();
         }
     }
 
     /**
      * Respond to the message, after error checking and parsing.
+     * Work that is handed on to the read/write threads defers the message, so it keeps its place in the inbound queue
+     * until the work is done.
      */
 
-    private void respondToMessage(Peer peer, MessageType command, JSONDocument document)
+    private void respondToMessage(Peer peer, MessageType command, JSONDocument document, ReceivedMessage message)
             throws JSONException {
         Maybe<Message> parsedResponse = Maybe.nothing();
 
@@ -77,31 +120,53 @@ public class MessageProcessor implements Runnable  {
                                                               .andThen(fd -> FileDescriptor.fromJSON(name, fd)));
         var position = document.getLong("position");
         var length = document.getLong("length");
+        var raw = document.getBoolean("raw").orElse(false);
         var packet = fileDescriptor.andThen(fd ->
               position.andThen(pos ->
-              length.map(len -> new FilePacket(peer, fd, pos, len))));
+              length.map(len -> new FilePacket(peer, fd, pos, len, raw))));
         var content = document.getString("content");
         var hostPort = document.getJSON("hostPort").andThen(HostPort::fromJSON);
 
         switch (command) {
             /* Trivial requests */
             case FILE_CREATE_REQUEST:
-                peer.sendMessage(new FileCreateResponse(fileDescriptor.get(), peer));
-                break;
             case FILE_MODIFY_REQUEST:
-                peer.sendMessage(new FileModifyResponse(fileDescriptor.get(), peer));
+            case FILE_DELETE_REQUEST:
+            case DIRECTORY_CREATE_REQUEST:
+            case DIRECTORY_DELETE_REQUEST:
+                Response change = metadataResponse(peer, command, document);
+                peer.sendMessage(change);
+                noteChange(peer, command, document, change);
                 break;
             case FILE_BYTES_REQUEST:
-                PeerServer.rwManager().readFile(packet.get());
+                PeerServer.rwManager().readFile(packet.get(), message.defer());
                 break;
-            case FILE_DELETE_REQUEST:
-                peer.sendMessage(new FileDeleteResponse(fileDescriptor.get(), peer));
+            case BATCH_REQUEST:
+                // A bad item gets a failed response of its own, rather than spoiling the rest of the batch
+                List<Response> responses = new ArrayList<>();
+                for (JSONDocument item : document.getJSONArray("items").get()) {
+                    var itemCommand = item.getString("command").andThen(MessageType::fromString);
+                    try {
+                        Response itemResponse = metadataResponse(peer, itemCommand.get(), item);
+                        responses.add(itemResponse);
+                        noteChange(peer, itemCommand.get(), item, itemResponse);
+                    } catch (JSONException e) {
+                        Maybe<MessageType> responseCommand = itemCommand.matchThen(
+                                type -> Maybe.of(BATCHABLE_REQUESTS.get(type)), err -> Maybe.nothing());
+                        responses.add(new FailedItemResponse(peer, responseCommand, item, e.getMessage()));
+                    }
+                }
+                peer.sendMessage(new BatchResponse(peer, responses));
                 break;
-            case DIRECTORY_CREATE_REQUEST:
-                peer.sendMessage(new DirectoryCreateResponse(pathName.get(), peer));
+            case MERKLE_REQUEST:
+                peer.sendMessage(new MerkleResponse(pathName.get(), document.getString("hash").get(), peer));
                 break;
-            case DIRECTORY_DELETE_REQUEST:
-                peer.sendMessage(new DirectoryDeleteResponse(pathName.get(), peer));
+            case JOURNAL_REQUEST:
+                PeerServer.journalSync().sendChanges(peer, document.getString("journalId").get(),
+                                                     document.getLong("sequence").get());
+                break;
+            case PING_REQUEST:
+                peer.sendMessage(new PingResponse(document.getLong("sent").get(), peer));
                 break;
             /* Trivial responses */
             case FILE_CREATE_RESPONSE:
@@ -119,14 +184,53 @@ public class MessageProcessor implements Runnable  {
             case DIRECTORY_DELETE_RESPONSE:
                 parsedResponse = Maybe.just(new DirectoryDeleteResponse(pathName.get(), peer));
                 break;
+            case BATCH_RESPONSE:
+                // Treat each item as though it arrived by itself; a bad item is skipped, not the rest of the batch
+                for (JSONDocument item : document.getJSONArray("items").get()) {
+                    try {
+                        MessageType itemCommand = item.getString("command").andThen(MessageType::fromString).get();
+                        if (!BATCHABLE_RESPONSES.contains(itemCommand)) {
+                            throw new JSONException("unexpected " + itemCommand + " in batch");
+                        }
+                        respondToMessage(peer, itemCommand, item, message);
+                    } catch (JSONException e) {
+                        PeerServer.log().warning(peer.getForeignName() + ": skipping bad item in batch: "
+                                                 + e.getMessage());
+                    }
+                }
+                break;
+            case MERKLE_RESPONSE:
+                parsedResponse = Maybe.just(new MerkleResponse(pathName.get(), "", peer));
+                PeerServer.merkleSync().compare(peer, pathName.get(), document.getString("hash").get(),
+                                                document.getJSON("children").map(Maybe::just).orElse(Maybe.nothing()));
+                break;
+            case JOURNAL_RESPONSE:
+                parsedResponse = Maybe.just(new JournalResponse(document.getString("journalId").get(),
+                                                                document.getLong("sequence").get(), true, peer));
+                PeerServer.journalSync().caughtUp(peer, document.getLong("sequence").get());
+                break;
+            case PING_RESPONSE:
+                parsedResponse = Maybe.just(new PingResponse(document.getLong("sent").get(), peer));
+                peer.pingAnswered(document.getLong("sent").get());
+                break;
             case HANDSHAKE_RESPONSE:
                 parsedResponse = Maybe.just(new HandshakeResponse(peer, hostPort.get()));
+                document.getLong("maximumBlockSize").ifOk(peer::setBlockSizeLimit);
+
+                document.getStringArray("features").ifOk(peer::setFeatures);
+                document.getString("journalId").ifOk(peer::setJournalId);
+                document.getJSON("contentSummary").andThen(ContentSummary::fromJSON).ifOk(peer::setContentSummary);
+                openUdpChannel(peer, document);
 
                 if (peer.needsResponse()) {
                     peer.activate(hostPort.get());
+                    if (Configuration.useBulkChannel()) {
+                        document.getString("bulkToken")
+                                .ifOk(token -> PeerServer.connection().openBulkChannel(peer, token));
+                    }
 
                     PeerServer.log().fine(peer + ": sending synchronisation requests");
-                    PeerServer.synchroniseFiles(peer);
+                    PeerServer.handshakeSync(peer);
                 }
                 break;
 
@@ -137,7 +241,14 @@ public class MessageProcessor implements Runnable  {
 
                 if (PeerServer.fsManager().fileLoading(fileDescriptor.get())) {
                     if (document.getBoolean("status").get()) {
-                        PeerServer.rwManager().writeFile(packet.get(), content.get());
+                        peer.bytesReceived(fileDescriptor.get(), position.get(), length.get());
+                        // Peers that don't send a checksum get their blocks written unchecked
+                        Maybe<Long> checksum = document.getLong("checksum").matchThen(Maybe::just, err -> Maybe.nothing());
+                        if (message.payload.isJust()) {
+                            PeerServer.rwManager().writeFile(packet.get(), message.payload.get(), checksum, message.defer());
+                        } else {
+                            PeerServer.rwManager().writeFile(packet.get(), content.get(), checksum, message.defer());
+                        }
                     } else if (document.getBoolean("retry").orElse(false)) {
                         // If the request failed for a random reason, let's request the bytes again!
                         PeerServer.log().fine("retrying byte request for " + pathName);
@@ -158,11 +269,20 @@ public class MessageProcessor implements Runnable  {
                                            .orElse(false)) {
                     PeerServer.log().warning("already connected to " + hostPort.get());
                     peer.close();
+                } else if (!PeerServer.connection().canStorePeer()) {
+                    PeerServer.log().fine("Sending CONNECTION_REFUSED to " + hostPort.get());
+                    peer.sendMessageAndClose(new ConnectionRefused("connection list full"));
                 } else {
                     PeerServer.log().fine("responding to " + hostPort.get());
+                    document.getLong("maximumBlockSize").ifOk(peer::setBlockSizeLimit);
+                    document.getStringArray("features").ifOk(peer::setFeatures);
+                    document.getString("journalId").ifOk(peer::setJournalId);
+                    document.getJSON("contentSummary").andThen(ContentSummary::fromJSON)
+                            .ifOk(peer::setContentSummary);
+                    openUdpChannel(peer, document);
                     peer.sendMessage(new HandshakeResponse(peer, hostPort.get()));
 
-                    PeerServer.synchroniseFiles(peer);
+                    PeerServer.handshakeSync(peer);
                 }
                 break;
 
@@ -186,6 +306,11 @@ public class MessageProcessor implements Runnable  {
                 }
                 break;
 
+            // Bulk connections are set up as soon as they're read, so this should never reach us
+            case BULK_CHANNEL_REQUEST:
+                invalidProtocolResponse(peer, "unexpected BULK_CHANNEL_REQUEST");
+                break;
+
             case INVALID_PROTOCOL:
                 PeerServer.log().severe("invalid protocol response from "
                         + peer.getForeignName() + ": " + document.getString("message").get());
@@ -205,6 +330,53 @@ public class MessageProcessor implements Runnable  {
         });
     }
 
+    /**
+     * Notes that we've received the change, so we know how far through the peer's journal we are once it has been
+     * dealt with; and if it was passed on to us, notes who from so that we can pass it on in turn.
+     */
+    private static void noteChange(Peer peer, MessageType command, JSONDocument document, Response response) {
+        Maybe<Long> sequence = document.getLong("sequence").matchThen(Maybe::just, err -> Maybe.nothing());
+        PeerServer.journalSync().received(peer, sequence, response.settled());
+        PeerServer.gossip().received(peer, command, document);
+    }
+
+    /**
+     * If the peer invited us in its handshake to send file bytes over UDP, starts doing so.
+     */
+    private static void openUdpChannel(Peer peer, JSONDocument document) {
+        document.getLong("udpPort")
+                .ifOk(port -> document.getLong("udpSession")
+                                      .ifOk(session -> peer.openUdpChannel(port, session)));
+    }
+
+    /**
+     * Generates the response to a file or directory request. These are the requests that may be batched.
+     */
+    private static Response metadataResponse(Peer peer, MessageType command, JSONDocument document)
+            throws JSONException {
+        String pathName = document.getString("pathName").get();
+        switch (command) {
+            case DIRECTORY_CREATE_REQUEST:
+                return new DirectoryCreateResponse(pathName, peer);
+            case DIRECTORY_DELETE_REQUEST:
+                return new DirectoryDeleteResponse(pathName, peer);
+        }
+
+        FileDescriptor fileDescriptor = document.getJSON("fileDescriptor")
+                                                .andThen(fd -> FileDescriptor.fromJSON(pathName, fd))
+                                                .get();
+        switch (command) {
+            case FILE_CREATE_REQUEST:
+                return new FileCreateResponse(fileDescriptor, peer);
+            case FILE_MODIFY_REQUEST:
+                return new FileModifyResponse(fileDescriptor, peer);
+            case FILE_DELETE_REQUEST:
+                return new FileDeleteResponse(fileDescriptor, peer);
+            default:
+                throw new JSONException("unexpected " + command + " in batch");
+        }
+    }
+
     /**
      * A helper method to send an INVALID_PROTOCOL message.
      */
@@ -4,15 +4,21 @@ import functional.algebraic.Maybe;
 import unimelb.bitbox.client.ClientServer;
 import unimelb.bitbox.messages.*;
 import unimelb.bitbox.peers.Peer;
+import unimelb.bitbox.peers.PeerFeature;
 import unimelb.bitbox.peers.ReadWriteManager;
 import unimelb.bitbox.util.concurrency.KeepAlive;
+import unimelb.bitbox.util.concurrency.OrderedExecutor;
 import unimelb.bitbox.util.config.Configuration;
+import unimelb.bitbox.util.fs.ChangeJournal;
 import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.fs.FileEventType;
 import unimelb.bitbox.util.fs.FileSystemEvent;
 import unimelb.bitbox.util.fs.FileSystemManager;
 import unimelb.bitbox.util.fs.FileSystemObserver;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,8 +33,15 @@ public class PeerServer implements FileSystemObserver {
     /* Objects used by the class */
     private final Logger log = Logger.getLogger(PeerServer.class.getName());
     private final FileSystemManager fileSystemManager;
-    private final MessageProcessor processor = new MessageProcessor();
+    private final MessageProcessor processor = new MessageProcessor(Configuration.getProcessorThreads());
     private final ReadWriteManager rwManager = new ReadWriteManager();
+    private final OrderedExecutor ioExecutor = new OrderedExecutor(Configuration.getIoThreads());
+    // Encodes prepared messages and queues them to be sent, in order for each peer
+    private final OrderedExecutor sendExecutor = new OrderedExecutor(Configuration.getIoThreads());
+    private final EventBatcher batcher = new EventBatcher();
+    private final MerkleSync merkleSync = new MerkleSync();
+    private final JournalSync journalSync = new JournalSync();
+    private final Gossip gossip = new Gossip();
     private ConnectionHandler connection;
 
     /* Getters */
@@ -36,6 +49,11 @@ public class PeerServer implements FileSystemObserver {
         return get().fileSystemManager;
     }
     public static ReadWriteManager rwManager() { return get().rwManager; }
+    public static OrderedExecutor ioExecutor() { return get().ioExecutor; }
+    public static OrderedExecutor sendExecutor() { return get().sendExecutor; }
+    public static MerkleSync merkleSync() { return get().merkleSync; }
+    public static JournalSync journalSync() { return get().journalSync; }
+    public static Gossip gossip() { return get().gossip; }
 
     public static Logger log() {
         return get().log;
@@ -52,22 +70,80 @@ public class PeerServer implements FileSystemObserver {
     }
 
     /* File system event handling */
+
+    /**
+     * Brings a newly connected peer up to date: with just the changes it missed if it has a position in our journal,
+     * or a full sync otherwise.
+     */
+    static void handshakeSync(Peer peer) {
+        // Measure the link straight away rather than at the next regular ping
+        peer.ping();
+        if (peer.supports(PeerFeature.JOURNAL)) {
+            // The peer asks for our changes the same way, and we answer when its request arrives
+            get().journalSync.requestChanges(peer);
+        } else {
+            synchroniseFiles(peer);
+        }
+    }
+
     static void synchroniseFiles(Peer peer) {
-        fsManager().generateSyncEvents().forEach(ev -> peer.sendMessage(processEvent(ev)));
+        synchroniseFiles(peer, () -> {});
+    }
+
+    /**
+     * @param whenQueued run once everything the peer needs has been queued to send
+     */
+    static void synchroniseFiles(Peer peer, Runnable whenQueued) {
+        if (peer.supports(PeerFeature.MERKLE)) {
+            get().merkleSync.begin(peer, whenQueued);
+        } else {
+            EventBatcher.send(peer, fullSyncMessages());
+            whenQueued.run();
+        }
+    }
+
+    /**
+     * @return the messages that create the entire share on a peer that knows nothing about it
+     */
+    private static List<Message> fullSyncMessages() {
+        List<Message> messages = new ArrayList<>();
+        fsManager().generateSyncEvents().forEach(ev -> messages.add(syncMessage(ev)));
+        return messages;
+    }
+
+    /**
+     * @return the message for a sync event, which doesn't get in the way of live changes
+     */
+    static Message syncMessage(FileSystemEvent ev) {
+        Message message = processEvent(ev.event, ev.fileDescriptor);
+        message.setPriority(MessagePriority.SYNC);
+        return message;
+    }
+
+    /**
+     * @return the message for a change from our journal, tagged with its sequence number
+     */
+    static Message syncMessage(ChangeJournal.Entry entry) {
+        Message message = processEvent(entry.event, entry.fileDescriptor);
+        message.setPriority(MessagePriority.SYNC);
+        message.setSequence(entry.sequence);
+        return message;
     }
 
     @Override
     public void processFileSystemEvent(FileSystemEvent ev) {
-        connection.broadcastMessage(processEvent(ev));
+        merkleSync.invalidate();
+        Message message = processEvent(ev.event, ev.fileDescriptor);
+        ev.sequence().consume(message::setSequence);
+        batcher.add(message, gossip.tag(message, ev));
     }
 
-    private static Message processEvent(FileSystemEvent ev) {
-        FileDescriptor fd = ev.fileDescriptor;
-        switch (ev.event) {
+    private static Message processEvent(FileEventType event, FileDescriptor fd) {
+        switch (event) {
             case DIRECTORY_CREATE:
-                return new DirectoryCreateRequest(ev.pathName);
+                return new DirectoryCreateRequest(fd.pathName);
             case DIRECTORY_DELETE:
-                return new DirectoryDeleteRequest(ev.pathName);
+                return new DirectoryDeleteRequest(fd.pathName);
             case FILE_CREATE:
                 return new FileCreateRequest(fd);
             case FILE_DELETE:
@@ -75,11 +151,22 @@ public class PeerServer implements FileSystemObserver {
             case FILE_MODIFY:
                 return new FileModifyRequest(fd);
             default:
-                throw new RuntimeException("unrecognised event " + ev.event);
+                throw new RuntimeException("unrecognised event " + event);
         }
     }
     private static void synchroniseFiles() {
-        fsManager().generateSyncEvents().forEach(get()::processFileSystemEvent);
+        // Peers that can compare hash trees only get what differs; the rest get everything
+        List<Message> fullSync = null;
+        for (Peer peer : get().connection.getActivePeers()) {
+            if (peer.supports(PeerFeature.MERKLE)) {
+                get().merkleSync.begin(peer);
+            } else {
+                if (fullSync == null) {
+                    fullSync = fullSyncMessages();
+                }
+                EventBatcher.send(peer, fullSync);
+            }
+        }
     }
 
     public static int getPeerCount() {
@@ -107,10 +194,11 @@ public class PeerServer implements FileSystemObserver {
 
         // Create the file system manager
         fileSystemManager = new FileSystemManager(Configuration.getPath());
+        journalSync.load();
 
-		// Create the processor thread
-        KeepAlive.submit(processor);
-		log.fine("Processor thread started");
+		// Create the processor threads
+        processor.start();
+		log.fine("Processor threads started");
 
         // Start the connection handler
         connection = new ConnectionHandler();
@@ -122,6 +210,12 @@ public class PeerServer implements FileSystemObserver {
 		KeepAlive.submit(this::regularlySynchronise);
 		log.fine("Synchroniser thread started");
 
+        // Keep measuring the links to our peers, so we know which to download from
+        KeepAlive.submit(this::regularlyPing);
+
+        // Notice downloads that have stopped making progress
+        KeepAlive.submit(this::regularlyCheckDownloads);
+
 		// Create the server thread
         KeepAlive.submit(ClientServer::run);
         log.fine("Client server started");
@@ -137,7 +231,31 @@ public class PeerServer implements FileSystemObserver {
                 log.warning("Synchronise thread interrupted");
             }
             synchroniseFiles();
+            journalSync.save();
             rwManager.reportDownloads();
         }
     }
+
+    private void regularlyPing() {
+        while (true) {
+            try {
+                Thread.sleep(Configuration.getPingInterval() * 1000);
+            } catch (InterruptedException e) {
+                log.warning("Ping thread interrupted");
+            }
+            connection.getActivePeers().forEach(Peer::ping);
+        }
+    }
+
+    private void regularlyCheckDownloads() {
+        while (true) {
+            try {
+                // Often enough that a stalled download is noticed soon after its deadline
+                Thread.sleep(Math.max(1, Configuration.getStallTimeout() / 4) * 1000);
+            } catch (InterruptedException e) {
+                log.warning("Download checking thread interrupted");
+            }
+            rwManager.checkDeadlines();
+        }
+    }
 }
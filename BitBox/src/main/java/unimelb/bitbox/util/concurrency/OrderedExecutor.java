@@ -0,0 +1,60 @@
+package unimelb.bitbox.util.concurrency;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs tasks on a fixed set of threads, where tasks with the same key run one at a time in the order they were
+ * submitted. Tasks with different keys run in parallel. A task may have several keys, in which case it waits for the
+ * earlier tasks with any of them, and the later tasks with any of them wait for it.
+ *
+ * Tasks that are waiting their turn don't hold a thread, so a slow task only holds up the tasks that share its keys.
+ *
+ * @author Eleanor McMurtry
+ */
+public class OrderedExecutor {
+    private final ExecutorService threads;
+    // The last task submitted with each key, until it has run (guarded by this)
+    private final Map<Object, CompletableFuture<Void>> last = new HashMap<>();
+
+    public OrderedExecutor(int threads) {
+        this.threads = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Submits a task to run after every earlier task with the same key.
+     * @return a future that completes when the task has run, or completes exceptionally if the task threw
+     */
+    public CompletableFuture<Void> submit(Object key, Runnable task) {
+        return submit(Collections.singletonList(key), task);
+    }
+
+    /**
+     * Submits a task to run after every earlier task that has any of the same keys.
+     * @return a future that completes when the task has run, or completes exceptionally if the task threw
+     */
+    public synchronized CompletableFuture<Void> submit(Collection<?> keys, Runnable task) {
+        CompletableFuture<?>[] earlier = keys.stream()
+                                             .map(last::get)
+                                             .filter(Objects::nonNull)
+                                             .distinct()
+                                             .toArray(CompletableFuture[]::new);
+        // A task that threw doesn't stop the ones after it
+        CompletableFuture<Void> result = CompletableFuture.allOf(earlier)
+                                                          .handle((ignored, error) -> null)
+                                                          .thenRunAsync(task, threads);
+        keys.forEach(key -> last.put(key, result));
+        result.whenComplete((ignored, error) -> forget(keys, result));
+        return result;
+    }
+
+    private synchronized void forget(Collection<?> keys, CompletableFuture<Void> task) {
+        keys.forEach(key -> last.remove(key, task));
+    }
+}
@@ -0,0 +1,66 @@
+package unimelb.bitbox.util.concurrency;
+
+import unimelb.bitbox.util.fs.FileSystemManager;
+
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps operations on the same path from running at the same time.
+ *
+ * Working on a path holds that path's lock exclusively, and the locks of the directories above it shared. So two
+ * operations on different files in a directory can run together, but deleting the directory waits for both.
+ *
+ * Paths are hashed onto a fixed set of locks, so unrelated paths occasionally wait for each other, but nothing needs
+ * cleaning up afterwards. The locks are always taken in the same order, so this can't deadlock.
+ *
+ * @author Eleanor McMurtry
+ */
+public final class PathLocks {
+    private static final int STRIPES = 1024;
+    private static final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[STRIPES];
+    static {
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private PathLocks() {
+    }
+
+    /**
+     * Runs the task while holding the lock for the given path.
+     * @param pathName the path, relative to the share directory, with either platform's separators
+     */
+    public static void run(String pathName, Runnable task) {
+        // The same path must take the same locks however it was written
+        pathName = FileSystemManager.separatorsToSlash(pathName);
+        // Exclusive locks win if a stripe is needed both ways; the map keeps the stripes in order
+        TreeMap<Integer, Boolean> stripes = new TreeMap<>();
+        stripes.put(stripe(pathName), true);
+        for (int end = pathName.indexOf('/'); end >= 0; end = pathName.indexOf('/', end + 1)) {
+            stripes.merge(stripe(pathName.substring(0, end)), false, Boolean::logicalOr);
+        }
+
+        Lock[] held = new Lock[stripes.size()];
+        int count = 0;
+        try {
+            for (var entry : stripes.entrySet()) {
+                ReentrantReadWriteLock lock = locks[entry.getKey()];
+                Lock toHold = entry.getValue() ? lock.writeLock() : lock.readLock();
+                toHold.lock();
+                held[count++] = toHold;
+            }
+            task.run();
+        } finally {
+            while (count > 0) {
+                held[--count].unlock();
+            }
+        }
+    }
+
+    private static int stripe(String pathName) {
+        return Math.floorMod(pathName.hashCode(), STRIPES);
+    }
+}
@@ -0,0 +1,47 @@
+package unimelb.bitbox.util.concurrency;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the rate of some quantity (usually bytes) to a rate that can change at any time.
+ * The bucket holds up to one second's worth of tokens, so short bursts are allowed.
+ *
+ * Taking more tokens than are available puts the bucket into debt, and the caller is told how long to wait for the
+ * debt to be paid off. This means a caller never has to split up what it wants to send.
+ *
+ * @author Eleanor McMurtry
+ */
+public class TokenBucket {
+    // The rate, in units per second; zero or less means unlimited
+    private final LongSupplier rate;
+    private double tokens = Double.MAX_VALUE;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(LongSupplier rate) {
+        this.rate = rate;
+    }
+
+    public boolean isLimited() {
+        return rate.getAsLong() > 0;
+    }
+
+    /**
+     * Takes the given number of tokens.
+     * @return how long the caller should wait (in nanoseconds) before using them
+     */
+    public synchronized long reserve(long amount) {
+        long now = System.nanoTime();
+        long currentRate = rate.getAsLong();
+        if (currentRate <= 0) {
+            // Start with a full bucket if a limit is set later
+            tokens = Double.MAX_VALUE;
+            lastRefill = now;
+            return 0;
+        }
+
+        tokens = Math.min(currentRate, tokens + (now - lastRefill) / 1e9 * currentRate);
+        lastRefill = now;
+        tokens -= amount;
+        return tokens >= 0 ? 0 : (long) (-tokens / currentRate * 1e9);
+    }
+}
@@ -0,0 +1,57 @@
+package unimelb.bitbox.util.config;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A time of day during which different bandwidth limits apply, written as `HH:MM-HH:MM=upload/download` (in bytes
+ * per second, with 0 meaning unlimited). A window may wrap around midnight, e.g. `22:00-06:00`.
+ *
+ * @author Eleanor McMurtry
+ */
+public class BandwidthWindow {
+    public final LocalTime start;
+    public final LocalTime end;
+    public final int uploadLimit;
+    public final int downloadLimit;
+
+    private BandwidthWindow(LocalTime start, LocalTime end, int uploadLimit, int downloadLimit) {
+        this.start = start;
+        this.end = end;
+        this.uploadLimit = uploadLimit;
+        this.downloadLimit = downloadLimit;
+    }
+
+    static BandwidthWindow parse(String key, String text) throws ConfigException {
+        String[] sides = text.trim().split("=");
+        String[] times = sides[0].split("-");
+        String[] limits = sides.length == 2 ? sides[1].split("/") : new String[0];
+        if (sides.length != 2 || times.length != 2 || limits.length != 2) {
+            throw ConfigException.formatError(key, "expected HH:MM-HH:MM=upload/download, got " + text);
+        }
+        BandwidthWindow window;
+        try {
+            window = new BandwidthWindow(LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()),
+                                         Integer.parseInt(limits[0].trim()), Integer.parseInt(limits[1].trim()));
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw ConfigException.formatError(key, "invalid bandwidth window " + text + ": " + e.getMessage());
+        }
+        if (window.uploadLimit < 0 || window.downloadLimit < 0) {
+            throw ConfigException.formatError(key, "limits must not be negative in " + text);
+        }
+        return window;
+    }
+
+    public boolean contains(LocalTime time) {
+        if (start.isBefore(end)) {
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+        // Wraps around midnight
+        return !time.isBefore(start) || time.isBefore(end);
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end + "=" + uploadLimit + "/" + downloadLimit;
+    }
+}
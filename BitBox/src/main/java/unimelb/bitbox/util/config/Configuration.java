@@ -1,11 +1,13 @@
 package unimelb.bitbox.util.config;
 
+import functional.algebraic.Maybe;
 import functional.algebraic.Result;
 import unimelb.bitbox.util.network.Conversion;
 import unimelb.bitbox.util.network.HostPort;
 import unimelb.bitbox.util.network.HostPortParseException;
 
 import java.io.*;
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -25,11 +27,65 @@ public class Configuration {
     private static String advertisedName;
     private static int maximumConnections;
     private static int blockSize;
+    private static int maximumBlockSize;
+    private static boolean bulkChannel;
+    private static int batchSize;
+    private static int batchDelay;
+    private static int writeBatchSize;
+    private static int writeBatchDelay;
+    private static int inboundQueueSize;
+    private static int outboundQueueSize;
+    private static int readWriteThreads;
+    private static int processorThreads;
+    private static int ioThreads;
     private static int syncInterval;
+    private static String journalFile;
+    private static int journalSize;
+    private static int gossipFanout;
+    private static int connectTimeout;
+    private static int reconnectDelay;
+    private static int maximumReconnectDelay;
+    private static int pingInterval;
+    private static int udpPort;
+    private static int udpLossPercent;
+    private static int maximumDownloads;
+    private static int maximumPeerDownloads;
+    private static DownloadOrder downloadOrder;
+    private static List<String> downloadPriority;
+    private static int stallTimeout;
     private static List<HostPort> peers;
 
+    // Bandwidth limits can be reloaded while running, so are kept together and replaced at once
+    private static volatile BandwidthLimits bandwidth;
+    private static String filename;
+
     private static boolean initialised = false;
 
+    // Defaults for optional entries
+    private static final int DEFAULT_MAXIMUM_BLOCK_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_BATCH_SIZE = 256;
+    private static final int DEFAULT_BATCH_DELAY = 50;
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 64 * 1024;
+    private static final int DEFAULT_WRITE_BATCH_DELAY = 0;
+    // The write buffer has to hold any single encoded character, and anything much smaller just wastes system calls
+    private static final int MINIMUM_WRITE_BATCH_SIZE = 1024;
+    private static final int DEFAULT_INBOUND_QUEUE_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_OUTBOUND_QUEUE_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_READ_WRITE_THREADS = 16;
+    private static final int DEFAULT_IO_THREADS = 4;
+    private static final String DEFAULT_JOURNAL_FILE = "journal";
+    private static final int DEFAULT_JOURNAL_SIZE = 10000;
+    private static final int DEFAULT_GOSSIP_FANOUT = 0;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    private static final int DEFAULT_RECONNECT_DELAY = 1000;
+    private static final int DEFAULT_MAXIMUM_RECONNECT_DELAY = 60 * 1000;
+    private static final int DEFAULT_PING_INTERVAL = 10;
+    private static final int DEFAULT_UDP_PORT = 0;
+    private static final int DEFAULT_UDP_LOSS_PERCENT = 0;
+    private static final int DEFAULT_MAXIMUM_DOWNLOADS = 8;
+    private static final int DEFAULT_MAXIMUM_PEER_DOWNLOADS = 4;
+    private static final int DEFAULT_STALL_TIMEOUT = 30;
+
     private static Result<Properties, IOException> loadProperties(File file) {
         Properties properties = new Properties();
         try (InputStream inputStream = new FileInputStream(file)) {
@@ -54,7 +110,93 @@ public class Configuration {
             advertisedName = getOrThrow(properties, "advertisedName");
             maximumConnections = getIntOrThrow(properties, "maximumConnections");
             blockSize = getIntOrThrow(properties, "blockSize");
+            maximumBlockSize = getIntOrDefault(properties, "maximumBlockSize",
+                                               Math.max(blockSize, DEFAULT_MAXIMUM_BLOCK_SIZE));
             syncInterval = getIntOrThrow(properties, "syncInterval");
+            bulkChannel = getBooleanOrDefault(properties, "bulkChannel", true);
+            batchSize = getIntOrDefault(properties, "batchSize", DEFAULT_BATCH_SIZE);
+            batchDelay = getIntOrDefault(properties, "batchDelay", DEFAULT_BATCH_DELAY);
+            writeBatchSize = getIntOrDefault(properties, "writeBatchSize", DEFAULT_WRITE_BATCH_SIZE);
+            writeBatchDelay = getIntOrDefault(properties, "writeBatchDelay", DEFAULT_WRITE_BATCH_DELAY);
+            if (writeBatchSize < MINIMUM_WRITE_BATCH_SIZE) {
+                throw ConfigException.formatError("writeBatchSize", "must be at least " + MINIMUM_WRITE_BATCH_SIZE);
+            }
+            inboundQueueSize = getIntOrDefault(properties, "inboundQueueSize", DEFAULT_INBOUND_QUEUE_SIZE);
+            outboundQueueSize = getIntOrDefault(properties, "outboundQueueSize", DEFAULT_OUTBOUND_QUEUE_SIZE);
+            readWriteThreads = getIntOrDefault(properties, "readWriteThreads", DEFAULT_READ_WRITE_THREADS);
+            if (inboundQueueSize <= 0) {
+                throw ConfigException.formatError("inboundQueueSize", "must be positive");
+            }
+            if (outboundQueueSize <= 0) {
+                throw ConfigException.formatError("outboundQueueSize", "must be positive");
+            }
+            processorThreads = getIntOrDefault(properties, "processorThreads",
+                                               Runtime.getRuntime().availableProcessors());
+            ioThreads = getIntOrDefault(properties, "ioThreads", DEFAULT_IO_THREADS);
+            if (ioThreads <= 0) {
+                throw ConfigException.formatError("ioThreads", "must be positive");
+            }
+            if (processorThreads <= 0) {
+                throw ConfigException.formatError("processorThreads", "must be positive");
+            }
+            if (readWriteThreads <= 0) {
+                throw ConfigException.formatError("readWriteThreads", "must be positive");
+            }
+            journalFile = properties.getProperty("journalFile", DEFAULT_JOURNAL_FILE);
+            journalSize = getIntOrDefault(properties, "journalSize", DEFAULT_JOURNAL_SIZE);
+            if (journalSize <= 0) {
+                throw ConfigException.formatError("journalSize", "must be positive");
+            }
+            gossipFanout = getIntOrDefault(properties, "gossipFanout", DEFAULT_GOSSIP_FANOUT);
+            if (gossipFanout < 0) {
+                throw ConfigException.formatError("gossipFanout", "must not be negative");
+            }
+            connectTimeout = getIntOrDefault(properties, "connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+            reconnectDelay = getIntOrDefault(properties, "reconnectDelay", DEFAULT_RECONNECT_DELAY);
+            maximumReconnectDelay = getIntOrDefault(properties, "maximumReconnectDelay",
+                                                    Math.max(reconnectDelay, DEFAULT_MAXIMUM_RECONNECT_DELAY));
+            if (connectTimeout <= 0) {
+                throw ConfigException.formatError("connectTimeout", "must be positive");
+            }
+            if (reconnectDelay <= 0) {
+                throw ConfigException.formatError("reconnectDelay", "must be positive");
+            }
+            if (maximumReconnectDelay < reconnectDelay) {
+                throw ConfigException.formatError("maximumReconnectDelay", "must be at least reconnectDelay");
+            }
+            pingInterval = getIntOrDefault(properties, "pingInterval", DEFAULT_PING_INTERVAL);
+            if (pingInterval <= 0) {
+                throw ConfigException.formatError("pingInterval", "must be positive");
+            }
+            udpPort = getIntOrDefault(properties, "udpPort", DEFAULT_UDP_PORT);
+            if (udpPort < 0 || udpPort > 65535) {
+                throw ConfigException.formatError("udpPort", "must be a port number, or 0 to turn UDP off");
+            }
+            udpLossPercent = getIntOrDefault(properties, "udpLossPercent", DEFAULT_UDP_LOSS_PERCENT);
+            if (udpLossPercent < 0 || udpLossPercent >= 100) {
+                throw ConfigException.formatError("udpLossPercent", "must be at least 0 and less than 100");
+            }
+            maximumDownloads = getIntOrDefault(properties, "maximumDownloads", DEFAULT_MAXIMUM_DOWNLOADS);
+            maximumPeerDownloads = getIntOrDefault(properties, "maximumPeerDownloads", DEFAULT_MAXIMUM_PEER_DOWNLOADS);
+            if (maximumDownloads <= 0) {
+                throw ConfigException.formatError("maximumDownloads", "must be positive");
+            }
+            if (maximumPeerDownloads <= 0) {
+                throw ConfigException.formatError("maximumPeerDownloads", "must be positive");
+            }
+            downloadOrder = DownloadOrder.parse("downloadOrder", properties.getProperty("downloadOrder", "smallest"));
+            downloadPriority = new ArrayList<>();
+            for (String prefix : properties.getProperty("downloadPriority", "").split(",")) {
+                if (!prefix.trim().isEmpty()) {
+                    downloadPriority.add(prefix.trim());
+                }
+            }
+            stallTimeout = getIntOrDefault(properties, "stallTimeout", DEFAULT_STALL_TIMEOUT);
+            if (stallTimeout <= 0) {
+                throw ConfigException.formatError("stallTimeout", "must be positive");
+            }
+            bandwidth = loadBandwidthLimits(properties);
+            Configuration.filename = filename;
 
             String[] peersStrings = getOrThrow(properties, "peers").split(",");
 
@@ -80,6 +222,48 @@ public class Configuration {
         }
     }
 
+    /**
+     * Reads the bandwidth limits from the configuration file again. The other settings are left as they are.
+     */
+    public static void reloadBandwidthLimits() throws ConfigException {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        try {
+            bandwidth = loadBandwidthLimits(loadProperties(new File(filename)).get());
+        } catch (FileNotFoundException __) {
+            throw ConfigException.fileMissing();
+        } catch (IOException e) {
+            throw ConfigException.via(e);
+        }
+    }
+
+    private static BandwidthLimits loadBandwidthLimits(Properties properties) throws ConfigException {
+        List<BandwidthWindow> schedule = new ArrayList<>();
+        String scheduleString = properties.getProperty("bandwidthSchedule", "");
+        for (String window : scheduleString.split(",")) {
+            if (!window.trim().isEmpty()) {
+                schedule.add(BandwidthWindow.parse("bandwidthSchedule", window));
+            }
+        }
+        return new BandwidthLimits(getLimit(properties, "uploadLimit"),
+                                   getLimit(properties, "downloadLimit"),
+                                   getLimit(properties, "peerUploadLimit"),
+                                   getLimit(properties, "peerDownloadLimit"),
+                                   schedule);
+    }
+
+    /**
+     * @return the bandwidth limit with the given key, or 0 (unlimited) if it isn't set
+     */
+    private static int getLimit(Properties properties, String key) throws ConfigException {
+        int limit = getIntOrDefault(properties, key, 0);
+        if (limit < 0) {
+            throw ConfigException.formatError(key, "must not be negative");
+        }
+        return limit;
+    }
+
     private static String getOrThrow(Properties properties, String key) throws ConfigException {
         var result = properties.getProperty(key);
         if (key == null) {
@@ -94,6 +278,23 @@ public class Configuration {
         }
         return Integer.parseInt(result);
     }
+    private static int getIntOrDefault(Properties properties, String key, int defaultValue) throws ConfigException {
+        if (properties.getProperty(key) == null) {
+            return defaultValue;
+        }
+        return getIntOrThrow(properties, key);
+    }
+
+    private static boolean getBooleanOrDefault(Properties properties, String key, boolean defaultValue) throws ConfigException {
+        var result = properties.getProperty(key);
+        if (result == null) {
+            return defaultValue;
+        }
+        if (!result.equals("true") && !result.equals("false")) {
+            throw ConfigException.formatError(key, "not a valid boolean: " + result);
+        }
+        return Boolean.parseBoolean(result);
+    }
 
     // private constructor to prevent initialization
     private Configuration() {
@@ -134,6 +335,301 @@ public class Configuration {
         return blockSize;
     }
 
+    /**
+     * The largest block we will serve or request, regardless of what a peer asks for.
+     */
+    public static int getMaximumBlockSize() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return maximumBlockSize;
+    }
+
+    /**
+     * Whether we offer and accept a second connection to each peer for file bytes.
+     */
+    public static boolean useBulkChannel() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return bulkChannel;
+    }
+
+    /**
+     * The most file system events to send to a peer in a single message.
+     */
+    public static int getBatchSize() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return batchSize;
+    }
+
+    /**
+     * How long (in milliseconds) to wait for more file system events before sending a batch.
+     */
+    public static int getBatchDelay() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return batchDelay;
+    }
+
+    /**
+     * How many bytes of queued messages to gather before writing them to a peer's socket. This is at least 1 KiB.
+     */
+    public static int getWriteBatchSize() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return writeBatchSize;
+    }
+
+    /**
+     * How long (in milliseconds) to wait for more messages before writing to a peer's socket. Zero means only
+     * messages that are already queued are gathered.
+     */
+    public static int getWriteBatchDelay() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return writeBatchDelay;
+    }
+
+    /**
+     * How many bytes of received messages from one connection may be waiting to be dealt with before we stop
+     * reading from its socket.
+     */
+    public static int getInboundQueueSize() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return inboundQueueSize;
+    }
+
+    /**
+     * How many bytes of file bytes responses may be waiting to be written to one peer before further blocks are held
+     * back unread.
+     */
+    public static int getOutboundQueueSize() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return outboundQueueSize;
+    }
+
+    /**
+     * How many threads read and write file bytes.
+     */
+    public static int getReadWriteThreads() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return readWriteThreads;
+    }
+
+    /**
+     * How many threads handle received messages.
+     */
+    public static int getProcessorThreads() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return processorThreads;
+    }
+
+    /**
+     * How many threads do the disk work for file and directory responses.
+     */
+    public static int getIoThreads() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return ioThreads;
+    }
+
+    /**
+     * The most bytes per second to send to all peers together right now, taking the schedule into account.
+     * Zero means unlimited.
+     */
+    public static long getUploadLimit() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        BandwidthLimits limits = bandwidth;
+        return limits.currentWindow().map(window -> (long) window.uploadLimit).orElse((long) limits.upload);
+    }
+
+    /**
+     * The most bytes per second to download from all peers together right now, taking the schedule into account.
+     * Zero means unlimited.
+     */
+    public static long getDownloadLimit() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        BandwidthLimits limits = bandwidth;
+        return limits.currentWindow().map(window -> (long) window.downloadLimit).orElse((long) limits.download);
+    }
+
+    /**
+     * The most bytes per second to send to any one peer. Zero means unlimited.
+     */
+    public static long getPeerUploadLimit() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return bandwidth.peerUpload;
+    }
+
+    /**
+     * The most bytes per second to download from any one peer. Zero means unlimited.
+     */
+    public static long getPeerDownloadLimit() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return bandwidth.peerDownload;
+    }
+
+    /**
+     * Where to keep the journal of changes to the share.
+     */
+    public static String getJournalFile() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return journalFile;
+    }
+
+    /**
+     * How many changes the journal remembers. A peer that has missed more than this gets a full sync instead.
+     */
+    public static int getJournalSize() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return journalSize;
+    }
+
+    /**
+     * How many peers each change is passed on to, with each of them passing it on in turn. 0 means every peer.
+     */
+    public static int getGossipFanout() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return gossipFanout;
+    }
+
+    /**
+     * How long to keep trying to connect to a peer, in milliseconds.
+     */
+    public static int getConnectTimeout() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return connectTimeout;
+    }
+
+    /**
+     * How long to wait before the first retry of a failed connection, in milliseconds. Each further failure doubles
+     * the wait, up to {@link #getMaximumReconnectDelay()}.
+     */
+    public static int getReconnectDelay() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return reconnectDelay;
+    }
+
+    public static int getMaximumReconnectDelay() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return maximumReconnectDelay;
+    }
+
+    /**
+     * How often to measure the round-trip time to each peer, in seconds.
+     */
+    public static int getPingInterval() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return pingInterval;
+    }
+
+    /**
+     * The port to send and receive file bytes on over UDP, with peers that also have UDP turned on. 0 means file bytes
+     * only go over TCP.
+     */
+    public static int getUdpPort() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return udpPort;
+    }
+
+    /**
+     * The percentage of outgoing datagrams to throw away, to test how UDP copes with a lossy network. Should be 0
+     * other than when testing.
+     */
+    public static int getUdpLossPercent() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return udpLossPercent;
+    }
+
+    /**
+     * The most files to download at once; any more wait their turn, in the order given by {@link #getDownloadOrder()}.
+     */
+    public static int getMaximumDownloads() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return maximumDownloads;
+    }
+
+    /**
+     * The most files to download from any one peer at once.
+     */
+    public static int getMaximumPeerDownloads() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return maximumPeerDownloads;
+    }
+
+    public static DownloadOrder getDownloadOrder() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return downloadOrder;
+    }
+
+    /**
+     * Path prefixes to download before anything else, most important first. Files under none of them come last.
+     */
+    public static List<String> getDownloadPriority() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return Collections.unmodifiableList(downloadPriority);
+    }
+
+    /**
+     * How long a download can go without receiving anything before we ask for the bytes again, in seconds. If it
+     * misses the deadline again, it moves to another peer that has the file.
+     */
+    public static int getStallTimeout() {
+        if (!initialised) {
+            throw new IllegalStateException("Must initialise configuration first");
+        }
+        return stallTimeout;
+    }
+
     public static int getSyncInterval() {
         if (!initialised) {
             throw new IllegalStateException("Must initialise configuration first");
@@ -168,4 +664,36 @@ public class Configuration {
         }
         return new HostPort(advertisedName, port);
     }
-}
\ No newline at end of file
+}
+
+/**
+ * The bandwidth limits from the configuration file.
+ */
+class BandwidthLimits {
+    final int upload;
+    final int download;
+    final int peerUpload;
+    final int peerDownload;
+    private final List<BandwidthWindow> schedule;
+
+    BandwidthLimits(int upload, int download, int peerUpload, int peerDownload, List<BandwidthWindow> schedule) {
+        this.upload = upload;
+        this.download = download;
+        this.peerUpload = peerUpload;
+        this.peerDownload = peerDownload;
+        this.schedule = schedule;
+    }
+
+    /**
+     * @return the first scheduled window that contains the current time, if any
+     */
+    Maybe<BandwidthWindow> currentWindow() {
+        if (schedule.isEmpty()) {
+            return Maybe.nothing();
+        }
+        LocalTime now = LocalTime.now();
+        return Maybe.of(schedule.stream()
+                                .filter(window -> window.contains(now))
+                                .findFirst());
+    }
+}
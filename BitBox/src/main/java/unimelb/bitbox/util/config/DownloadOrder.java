@@ -0,0 +1,27 @@
+package unimelb.bitbox.util.config;
+
+import java.util.Locale;
+
+/**
+ * Which waiting download to start next, when there's room for another.
+ *
+ * @author Eleanor McMurtry
+ */
+public enum DownloadOrder {
+    /**
+     * The smallest file first, so that as many files as possible are finished soon.
+     */
+    SMALLEST,
+    /**
+     * The download that has been waiting longest first.
+     */
+    OLDEST;
+
+    static DownloadOrder parse(String key, String text) throws ConfigException {
+        try {
+            return valueOf(text.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw ConfigException.formatError(key, "expected smallest or oldest, got " + text);
+        }
+    }
+}
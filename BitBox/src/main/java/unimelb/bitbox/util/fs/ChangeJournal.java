@@ -0,0 +1,234 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.network.JSONDocument;
+import unimelb.bitbox.util.network.JSONException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A numbered record of the most recent changes to the share, so that a peer that reconnects can be sent just the
+ * changes it missed instead of the whole share.
+ *
+ * The journal is kept on disk, one JSON document per line, so it survives a restart. Changes made while we weren't
+ * running never make it into the journal, though. So each time the share's {@link MerkleTree} is rebuilt we write a
+ * checkpoint of its root hash, and on startup we only keep the journal if the share still matches the last
+ * checkpoint. Otherwise the journal starts again under a new ID, and peers fall back to a full sync.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ChangeJournal {
+    /**
+     * A single change in the journal.
+     */
+    public static class Entry {
+        public final long sequence;
+        public final FileEventType event;
+        public final FileDescriptor fileDescriptor;
+
+        private Entry(long sequence, FileEventType event, FileDescriptor fileDescriptor) {
+            this.sequence = sequence;
+            this.event = event;
+            this.fileDescriptor = fileDescriptor;
+        }
+
+        private JSONDocument toJSON() {
+            return new JSONDocument().append("sequence", sequence)
+                                     .append("event", event)
+                                     .join(fileDescriptor.toJSON());
+        }
+
+        private static Entry fromJSON(JSONDocument doc) throws JSONException {
+            long sequence = doc.getLong("sequence").get();
+            FileEventType event = FileEventType.valueOf(doc.getString("event").get());
+            String pathName = doc.getString("pathName").get();
+            FileDescriptor fd = doc.getJSON("fileDescriptor").matchThen(
+                    json -> FileDescriptor.fromJSON(pathName, json).orElse(FileDescriptor.directory(pathName)),
+                    ignored -> FileDescriptor.directory(pathName));
+            return new Entry(sequence, event, fd);
+        }
+    }
+
+    private final File file;
+    private final int capacity;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private String id;
+    private long head = 0;
+    private Writer writer;
+    private int linesWritten = 0;
+    // The last checkpoint written, so that we don't write the same one again
+    private long checkpointSequence = -1;
+    private String checkpointHash = "";
+
+    private ChangeJournal(File file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Loads the journal from the file, or starts a new one if the file is missing or no longer describes the share.
+     * @param rootHash the hash of the share as it is now
+     */
+    static ChangeJournal open(File file, int capacity, String rootHash) {
+        ChangeJournal journal = new ChangeJournal(file, capacity);
+        if (!journal.load(rootHash)) {
+            journal.id = UUID.randomUUID().toString();
+            journal.head = 0;
+            journal.entries.clear();
+            journal.checkpointSequence = -1;
+            PeerServer.log().fine("Starting new change journal " + journal.id);
+        } else {
+            PeerServer.log().fine("Resuming change journal " + journal.id + " at " + journal.head);
+        }
+        journal.rewrite();
+        return journal;
+    }
+
+    /**
+     * @return whether the file held a journal that is still valid
+     */
+    private boolean load(String rootHash) {
+        boolean checkpointed = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                              StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null) {
+                return false;
+            }
+            id = JSONDocument.parse(line).get().getString("id").get();
+
+            while ((line = reader.readLine()) != null) {
+                JSONDocument doc = JSONDocument.parse(line).get();
+                String hash = doc.getString("checkpoint").orElse("");
+                if (!hash.isEmpty()) {
+                    checkpointHash = hash;
+                    checkpointSequence = doc.getLong("sequence").get();
+                    checkpointed = checkpointSequence == head;
+                } else {
+                    Entry entry = Entry.fromJSON(doc);
+                    addEntry(entry);
+                    head = entry.sequence;
+                    checkpointed = false;
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            PeerServer.log().warning("Failed reading change journal: " + e.getMessage());
+            return false;
+        }
+        return checkpointed && checkpointHash.equals(rootHash);
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public synchronized long head() {
+        return head;
+    }
+
+    /**
+     * Adds a change to the journal, and gives the event its sequence number.
+     */
+    synchronized void record(FileSystemEvent event) {
+        Entry entry = new Entry(++head, event.event, event.fileDescriptor);
+        event.setSequence(entry.sequence);
+        addEntry(entry);
+        append(entry.toJSON());
+    }
+
+    /**
+     * Notes that the share had the given hash as of the latest change.
+     */
+    public synchronized void checkpoint(String rootHash) {
+        if (checkpointSequence == head && checkpointHash.equals(rootHash)) {
+            return;
+        }
+        checkpointSequence = head;
+        checkpointHash = rootHash;
+        append(checkpointJSON());
+    }
+
+    /**
+     * @param journalId the ID of the journal the sequence number came from
+     * @param sequence  the last change the peer has seen
+     * @return every later change, or nothing if the peer's position isn't in this journal any more
+     */
+    public synchronized Maybe<List<Entry>> since(String journalId, long sequence) {
+        long oldest = entries.isEmpty() ? head + 1 : entries.getFirst().sequence;
+        if (!journalId.equals(id) || sequence > head || sequence + 1 < oldest) {
+            return Maybe.nothing();
+        }
+
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.sequence > sequence) {
+                result.add(entry);
+            }
+        }
+        return Maybe.just(result);
+    }
+
+    private void addEntry(Entry entry) {
+        entries.addLast(entry);
+        while (entries.size() > capacity) {
+            entries.removeFirst();
+        }
+    }
+
+    private JSONDocument checkpointJSON() {
+        return new JSONDocument().append("checkpoint", checkpointHash)
+                                 .append("sequence", checkpointSequence);
+    }
+
+    private void append(JSONDocument doc) {
+        // Once the file holds plenty of dropped entries, start it again with just the current ones
+        if (linesWritten > 2 * capacity) {
+            rewrite();
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(doc.toString());
+            writer.write('\n');
+            writer.flush();
+            ++linesWritten;
+        } catch (IOException e) {
+            PeerServer.log().warning("Failed writing change journal: " + e.getMessage());
+        }
+    }
+
+    private void rewrite() {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+            writer.write(new JSONDocument().append("id", id).toString());
+            writer.write('\n');
+            for (Entry entry : entries) {
+                writer.write(entry.toJSON().toString());
+                writer.write('\n');
+            }
+            linesWritten = entries.size();
+            if (checkpointSequence == head) {
+                writer.write(checkpointJSON().toString());
+                writer.write('\n');
+                ++linesWritten;
+            }
+            writer.flush();
+        } catch (IOException e) {
+            PeerServer.log().warning("Failed writing change journal: " + e.getMessage());
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+import functional.algebraic.Result;
+import unimelb.bitbox.util.network.IJSONData;
+import unimelb.bitbox.util.network.JSONDocument;
+import unimelb.bitbox.util.network.JSONException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A Bloom filter of the files and directories in a share, so that a peer can tell which of its changes we
+ * almost certainly have already and not bother sending them.
+ *
+ * A file is recorded by its path and MD5, so a file with the same name but different content doesn't match. The
+ * filter can say a file is there when it isn't (about 1% of the time), but never the other way around. Anything
+ * wrongly skipped is picked up by the next periodic sync.
+ *
+ * @author Eleanor McMurtry
+ */
+public class ContentSummary implements IJSONData {
+    private static final int BITS_PER_ENTRY = 10;
+    // Keeps the handshake a reasonable size. Past this many bits each entry gets fewer bits, and if there are too few
+    // to be useful we don't send a summary at all.
+    private static final int MAXIMUM_BITS = 256 * 1024 * 8;
+    private static final int MINIMUM_BITS_PER_ENTRY = 5;
+    private static final int MINIMUM_BITS = 64;
+    private static final int MAXIMUM_HASHES = 16;
+    // Stands in for the MD5 of a directory
+    private static final String DIRECTORY = "/";
+
+    private final BitSet bits;
+    private final int size;
+    private final int hashes;
+
+    private ContentSummary(BitSet bits, int size, int hashes) {
+        this.bits = bits;
+        this.size = size;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Builds a summary from the events that would create the share, as given by
+     * {@link FileSystemManager#generateSyncEvents()}.
+     * @return the summary, or nothing if the share is too big for a summary to be worth sending
+     */
+    public static Maybe<ContentSummary> of(List<FileSystemEvent> events) {
+        long entries = Math.max(1, events.size());
+        if (entries * MINIMUM_BITS_PER_ENTRY > MAXIMUM_BITS) {
+            return Maybe.nothing();
+        }
+
+        int size = (int) Math.max(MINIMUM_BITS, Math.min(MAXIMUM_BITS, entries * BITS_PER_ENTRY));
+        // The number of hashes that gives the fewest false positives for this many bits per entry
+        int hashes = (int) Math.max(1, Math.min(MAXIMUM_HASHES, Math.round(Math.log(2) * size / entries)));
+        ContentSummary summary = new ContentSummary(new BitSet(size), size, hashes);
+        for (FileSystemEvent event : events) {
+            summary.add(key(event.event, event.fileDescriptor));
+        }
+        return Maybe.just(summary);
+    }
+
+    public static Result<ContentSummary, JSONException> fromJSON(JSONDocument doc) {
+        return doc.getLong("size").andThen(size -> {
+            return doc.getLong("hashes").andThen(hashes -> {
+                return doc.getString("bits").andThen(encoded -> {
+                    if (size <= 0 || size > MAXIMUM_BITS || hashes <= 0 || hashes > MAXIMUM_HASHES) {
+                        return Result.error(new JSONException("content summary has invalid parameters"));
+                    }
+                    try {
+                        BitSet bits = BitSet.valueOf(Base64.getDecoder().decode(encoded));
+                        if (bits.length() > size) {
+                            return Result.error(new JSONException("content summary larger than its size"));
+                        }
+                        return Result.value(new ContentSummary(bits, size.intValue(), hashes.intValue()));
+                    } catch (IllegalArgumentException e) {
+                        return Result.error(new JSONException("content summary is not valid base64"));
+                    }
+                });
+            });
+        });
+    }
+
+    /**
+     * @return whether the share almost certainly has the result of this change already. Deletions are never skipped,
+     * since the filter can't say what's missing.
+     */
+    public boolean probablyHas(FileEventType event, FileDescriptor fileDescriptor) {
+        switch (event) {
+            case FILE_CREATE:
+            case FILE_MODIFY:
+            case DIRECTORY_CREATE:
+                return contains(key(event, fileDescriptor));
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public JSONDocument toJSON() {
+        return new JSONDocument().append("size", size)
+                                 .append("hashes", hashes)
+                                 .append("bits", Base64.getEncoder().encodeToString(bits.toByteArray()));
+    }
+
+    private static byte[] key(FileEventType event, FileDescriptor fileDescriptor) {
+        String md5 = event == FileEventType.DIRECTORY_CREATE ? DIRECTORY : fileDescriptor.md5();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(fileDescriptor.pathName.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(md5.getBytes(StandardCharsets.UTF_8));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // If MD5 isn't available, we're screwed anyway.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void add(byte[] key) {
+        ByteBuffer buffer = ByteBuffer.wrap(key);
+        long first = buffer.getLong();
+        long second = buffer.getLong();
+        for (int i = 0; i < hashes; ++i) {
+            bits.set(index(first, second, i));
+        }
+    }
+
+    private boolean contains(byte[] key) {
+        ByteBuffer buffer = ByteBuffer.wrap(key);
+        long first = buffer.getLong();
+        long second = buffer.getLong();
+        for (int i = 0; i < hashes; ++i) {
+            if (!bits.get(index(first, second, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Derives the hash functions from two halves of one digest
+    private int index(long first, long second, int i) {
+        return (int) Math.floorMod(first + i * second, (long) size);
+    }
+}
@@ -6,6 +6,8 @@ import unimelb.bitbox.util.network.IJSONData;
 import unimelb.bitbox.util.network.JSONDocument;
 import unimelb.bitbox.util.network.JSONException;
 
+import java.util.Objects;
+
 /**
  * Additional information about a given file.
  *
@@ -135,6 +137,10 @@ public class FileDescriptor implements IJSONData {
 
     @Override
     public int hashCode() {
-        return toString().hashCode();
+        // Consistent with equals, without encoding the whole descriptor as JSON every time
+        if (isDirectory) {
+            return pathName.hashCode();
+        }
+        return Objects.hash(pathName, data.get().lastModified, data.get().md5, data.get().fileSize);
     }
 }
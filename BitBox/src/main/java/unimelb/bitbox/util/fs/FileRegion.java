@@ -0,0 +1,107 @@
+package unimelb.bitbox.util.fs;
+
+import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.network.RawPayload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A section of a file on disk that can be copied straight into a socket, without the bytes passing through the heap.
+ *
+ * @author Eleanor McMurtry
+ */
+public class FileRegion implements RawPayload {
+    // How many block checksums to remember; the same blocks tend to be asked for by every peer in turn
+    private static final int REMEMBERED_CHECKSUMS = 4096;
+
+    // Keyed by the file's MD5 and the block's position and length, so a checksum holds for any copy of the content
+    private static final Map<String, Long> checksums = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > REMEMBERED_CHECKSUMS;
+        }
+    });
+
+    private final File file;
+    private final String md5;
+    private final long lastModified;
+    private final long position;
+    private final long length;
+
+    FileRegion(File file, String md5, long lastModified, long position, long length) {
+        this.file = file;
+        this.md5 = md5;
+        this.lastModified = lastModified;
+        this.position = position;
+        this.length = length;
+    }
+
+    /**
+     * @return the CRC-32C of the bytes in the region, so the peer can check the block before writing it. The file is
+     * mapped rather than read, so this doesn't copy the bytes onto the heap either.
+     */
+    public long checksum() throws IOException {
+        String key = md5 + ":" + position + ":" + length;
+        Long known = checksums.get(key);
+        if (known != null) {
+            return known;
+        }
+
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+        }
+        // If the file changed underneath us, the checksum is for the wrong content, so don't keep it
+        if (file.lastModified() == lastModified) {
+            checksums.put(key, crc.getValue());
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel target) throws IOException {
+        long written = 0;
+        // If the file changed since we checked its hash, don't send the new contents.
+        if (file.lastModified() == lastModified) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (written < length) {
+                    long count = channel.transferTo(position + written, length - written, target);
+                    if (count <= 0) {
+                        break;
+                    }
+                    written += count;
+                }
+            } catch (IOException e) {
+                PeerServer.log().warning("failed sending bytes of " + file + ": " + e.getMessage());
+            }
+        }
+
+        if (written < length) {
+            // We've already promised the peer this many bytes, so keep the stream in sync.
+            // The peer will notice the bad data when it checks the block's checksum.
+            PeerServer.log().warning("file " + file + " changed while sending; padding block");
+            ByteBuffer zeroes = ByteBuffer.allocate((int) Math.min(length - written, 64 * 1024));
+            while (written < length) {
+                zeroes.clear();
+                zeroes.limit((int) Math.min(zeroes.capacity(), length - written));
+                while (zeroes.hasRemaining()) {
+                    written += target.write(zeroes);
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package unimelb.bitbox.util.fs;
 
+import functional.algebraic.Maybe;
+
 import java.nio.file.FileSystems;
 
 /**
@@ -36,6 +38,10 @@ public class FileSystemEvent {
      * Additional information for the file/directory.
      */
     public final FileDescriptor fileDescriptor;
+    /**
+     * The event's number in the {@link ChangeJournal}, if it was recorded there.
+     */
+    private volatile Maybe<Long> sequence = Maybe.nothing();
 
     /**
      * Constructor for file events.
@@ -68,6 +74,14 @@ public class FileSystemEvent {
         this.event = event;
     }
 
+    public Maybe<Long> sequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = Maybe.just(sequence);
+    }
+
     public String toString() {
         return event.name() + " " + pathName;
     }
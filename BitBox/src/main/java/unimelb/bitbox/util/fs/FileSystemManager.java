@@ -4,6 +4,7 @@ import functional.algebraic.Maybe;
 import functional.algebraic.Result;
 import functional.throwing.ThrowingFunction;
 import unimelb.bitbox.server.PeerServer;
+import unimelb.bitbox.util.config.Configuration;
 import unimelb.bitbox.util.network.FileTransfer;
 
 import java.io.*;
@@ -38,8 +39,10 @@ import java.util.function.Predicate;
  * <li>{@link #fileMatches(FileDescriptor)}</li>
  * <li>{@link #generateSyncEvents()}</li>
  * <li>{@link #isSafePathName(String)}</li>
+ * <li>{@link #journal()}</li>
  * <li>{@link #readFile(String, long, long)}</li>
  * <li>{@link #makeDirectory(String)}</li>
+ * <li>{@link #openRegion(String, long, long)}</li>
  * <li>{@link #modifyFileLoader(String, String, long, long)}</li>
  * <li>{@link #writeFile(String, ByteBuffer, long)}</li>
  *
@@ -76,6 +79,8 @@ public final class FileSystemManager extends Thread {
             canonicalRoot = file.getCanonicalPath();
             PeerServer.log().fine("monitoring " + canonicalRoot);
             initialScanDirectoryTree(root);
+            journal = ChangeJournal.open(new File(Configuration.getJournalFile()), Configuration.getJournalSize(),
+                                         MerkleTree.build(generateSyncEvents()).root().hash());
             PeerServer.log().fine("starting file system monitor thread");
             start();
         }
@@ -297,11 +302,41 @@ public final class FileSystemManager extends Thread {
         });
     }
 
+    /**
+     * Finds a file containing the matching specific content, without reading it. The returned payload copies the
+     * bytes straight from the file to a channel when it is written.
+     *
+     * @param md5      The MD5 hash of the content of the file to read from.
+     * @param position The position in the file to start reading from.
+     * @param length   The number of bytes to read.
+     * @return A {@link FileRegion} if a matching file was found, otherwise
+     *         an error describing the unsuccessful state.
+     */
+    public Result<Maybe<FileRegion>, IOException> openRegion(String md5, long position, long length) {
+        return Result.of(() -> {
+            if (hashMap.containsKey(md5)) {
+                for (String attempt : hashMap.get(md5)) {
+                    synchronized (watchedFiles.get(attempt)) {
+                        File file = new File(attempt);
+                        long lastModified = watchedFiles.get(attempt).lastModified();
+                        if (file.exists() && hashFile(file, attempt, lastModified).equals(md5)) {
+                            if (file.length() < position + length) {
+                                throw new IOException("file too short: " + file.length() + "/" + (position + length));
+                            }
+                            return Maybe.just(new FileRegion(file, md5, lastModified, position, length));
+                        }
+                    }
+                }
+            }
+            return Maybe.nothing();
+        });
+    }
+
     /**
      * Requests the file loader for the associated file name to check if all of the content for the file
-     * has been written. It does this by checking the MD5 hash of the written bytes to see if
-     * they match the MD5 hash of the intended file. <b>NOTE:</b> Hashing the file contents is
-     * time consuming and so this check should not be done often. If the check succeeds then
+     * has been written. The loader keeps track of which bytes have been written, so this is cheap
+     * until they all have; then it checks the MD5 hash of the written bytes to see if they match
+     * the MD5 hash of the intended file. If they don't, the loader starts again. If the check succeeds then
      * the loader file is renamed to the name the file it should be (i.e. without the prefix),
      * and the loader is no longer accessible. If a file exists in its intended place at this point
      * in time then the file is deleted.
@@ -358,6 +393,15 @@ public final class FileSystemManager extends Thread {
         });
     }
 
+    /**
+     * @return the parts of the file that its loader has written so far, or nothing if there is no loader for it. The
+     * set is kept up to date as more bytes are written, and shouldn't be changed.
+     */
+    public Maybe<RangeSet> receivedRanges(FileDescriptor fd) {
+        String fullPathName = root + FileSystems.getDefault().getSeparator() + separatorsToSystem(fd.pathName);
+        return loadingFiles.get(fullPathName).map(loader -> loader.received);
+    }
+
     /**
      * Called to create a file loader in the case when a file name already exists. The existing
      * file must have a last modified timestamp that is less than or equal to the supplied one. See
@@ -412,6 +456,13 @@ public final class FileSystemManager extends Thread {
 
     // synchronization
 
+    /**
+     * @return the journal of changes to the share since it was first scanned
+     */
+    public ChangeJournal journal() {
+        return journal;
+    }
+
     /**
      * Typically called at the beginning of a connection, in order to ensure that
      * the remote directory has all of the same contents as the local directory.
@@ -493,7 +544,10 @@ public final class FileSystemManager extends Thread {
     private class FileLoader {
         public final FileDescriptor fileDescriptor;
         private final File file;
-        private final RandomAccessChannel channel;
+        // Opened when the first bytes arrive, so that a download waiting to start doesn't hold the file open
+        private RandomAccessChannel channel;
+        // The parts of the file that have been written so far
+        private final RangeSet received = new RangeSet();
 
         private FileLoader(FileDescriptor fileDescriptor) throws IOException {
             this.fileDescriptor = fileDescriptor;
@@ -502,13 +556,21 @@ public final class FileSystemManager extends Thread {
 
             PeerServer.log().fine("creating file " + file.getPath());
             if (!file.createNewFile()) throw new IOException("failed to create file: "+ fileDescriptor.pathName);
-            channel = new RandomAccessChannel(file);
         }
 
-        void cancel() throws IOException {
+        private synchronized RandomAccessChannel channel() throws IOException {
+            if (channel == null) {
+                channel = new RandomAccessChannel(file);
+            }
+            return channel;
+        }
+
+        synchronized void cancel() throws IOException {
             PeerServer.log().fine("closing transfer " + file.getPath());
             if (file.exists()) {
-                channel.close();
+                if (channel != null) {
+                    channel.close();
+                }
                 FileManagerException.check(file.delete(), "Failed deleting file " + fileDescriptor.pathName);
             }
 
@@ -544,10 +606,17 @@ public final class FileSystemManager extends Thread {
         void writeFile(ByteBuffer src, long position) throws IOException {
             FileManagerException.check(position <= fileDescriptor.fileSize(), "trying to write bytes beyond what is expected for " + file.getPath());
             FileManagerException.check(file.exists(), "file deleted during transfer: " + file.getPath());
-            channel.write(src, position);
+            long length = src.remaining();
+            channel().write(src, position);
+            received.add(position, position + length);
         }
 
         boolean checkWriteComplete() throws IOException {
+            // Only hash the file once every byte of it has arrived
+            if (!received.covers(fileDescriptor.fileSize())) {
+                return false;
+            }
+            RandomAccessChannel channel = channel();
             String currentMd5 = hashRandomAccess(fileDescriptor.pathName, channel);
             PeerServer.log().fine("compare: " + currentMd5 + " // " + fileDescriptor.md5());
             if (currentMd5.equals(fileDescriptor.md5())) {
@@ -564,6 +633,9 @@ public final class FileSystemManager extends Thread {
                 PeerServer.log().info("Download of " + dest.getPath() + " complete.");
                 return true;
             }
+            // Something we were sent was wrong, and we can't tell what, so start again
+            PeerServer.log().warning("content of " + file.getPath() + " doesn't match once complete; downloading it again");
+            received.clear();
             return false;
         }
 
@@ -597,6 +669,7 @@ public final class FileSystemManager extends Thread {
     private final Set<String> watchedDirectories;
     private final Map<String, HashSet<String>> hashMap;
     private final FileSystemObserver fileSystemObserver;
+    private final ChangeJournal journal;
     private final Map<String, FileDescriptor> watchedFiles;
     private final String root;
     private final String canonicalRoot;
@@ -611,6 +684,7 @@ public final class FileSystemManager extends Thread {
             pathEvents.addAll(scanDirectoryTree(root));
             for (FileSystemEvent pathEvent : pathEvents) {
                 PeerServer.log().fine(pathEvent.toString());
+                journal.record(pathEvent);
                 fileSystemObserver.processFileSystemEvent(pathEvent);
             }
 
@@ -640,6 +714,7 @@ public final class FileSystemManager extends Thread {
 
             for (FileSystemEvent pathEvent : pathEvents) {
                 PeerServer.log().fine(pathEvent.toString());
+                journal.record(pathEvent);
                 fileSystemObserver.processFileSystemEvent(pathEvent);
             }
 
@@ -797,6 +872,13 @@ public final class FileSystemManager extends Thread {
         return sb.toString();
     }
 
+    /**
+     * @return the path with its components separated by '/', whichever platform's separators it was given with
+     */
+    public static String separatorsToSlash(String pathName) {
+        return pathName.replace('\\', '/');
+    }
+
     private static String separatorsToSystem(String res) {
         // From Windows to Linux/Mac
         // From Linux/Mac to Windows
@@ -0,0 +1,186 @@
+package unimelb.bitbox.util.fs;
+
+import functional.algebraic.Maybe;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * A hash tree over the share directory, so that two peers can find where their shares differ by comparing a handful
+ * of hashes instead of listing every file.
+ *
+ * A file's hash covers its name and the MD5 of its content. A directory's hash covers its name and the hashes of its
+ * children, in name order. So two directories have the same hash exactly when everything inside them matches.
+ *
+ * The tree is a snapshot: it does not change when the share does, so it has to be built again.
+ *
+ * Paths in the tree always separate their components with '/', as peers on other platforms see them the same way.
+ *
+ * @author Eleanor McMurtry
+ */
+public class MerkleTree {
+    private static final String SEPARATOR = "/";
+    private static final Pattern SPLITTER = Pattern.compile(Pattern.quote(SEPARATOR));
+
+    private final Node root = new Node("", "", Maybe.nothing());
+
+    /**
+     * A file or directory in the tree.
+     */
+    public static class Node {
+        public final String name;
+        public final String pathName;
+        // Nothing for the root, which is the share directory itself
+        private final Maybe<FileSystemEvent> event;
+        private final Map<String, Node> children = new TreeMap<>();
+        private String hash;
+
+        private Node(String name, String pathName, Maybe<FileSystemEvent> event) {
+            this.name = name;
+            this.pathName = pathName;
+            this.event = event;
+        }
+
+        public boolean isDirectory() {
+            return !event.isJust() || event.get().event == FileEventType.DIRECTORY_CREATE;
+        }
+
+        public String hash() {
+            return hash;
+        }
+
+        public Collection<Node> children() {
+            return Collections.unmodifiableCollection(children.values());
+        }
+
+        /**
+         * @return the event that creates this file or directory, if it isn't the root
+         */
+        public Maybe<FileSystemEvent> event() {
+            return event;
+        }
+
+        /**
+         * @return the events that create this node and everything below it, with each directory before its contents
+         */
+        public List<FileSystemEvent> subtreeEvents() {
+            List<FileSystemEvent> events = new ArrayList<>();
+            addSubtreeEvents(events);
+            return events;
+        }
+
+        private void addSubtreeEvents(List<FileSystemEvent> events) {
+            event.consume(events::add);
+            children.values().forEach(child -> child.addSubtreeEvents(events));
+        }
+
+        private String computeHash(MessageDigest digest) {
+            children.values().forEach(child -> child.computeHash(digest));
+
+            digest.reset();
+            if (isDirectory()) {
+                update(digest, "dir");
+                update(digest, name);
+                children.values().forEach(child -> update(digest, child.hash));
+            } else {
+                update(digest, "file");
+                update(digest, name);
+                update(digest, event.get().fileDescriptor.md5());
+            }
+            hash = hex(digest.digest());
+            return hash;
+        }
+    }
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Builds a tree from the events that would create the share, as given by
+     * {@link FileSystemManager#generateSyncEvents()}.
+     */
+    public static MerkleTree build(Iterable<FileSystemEvent> events) {
+        MerkleTree tree = new MerkleTree();
+        for (FileSystemEvent event : events) {
+            tree.insert(event);
+        }
+
+        try {
+            tree.root.computeHash(MessageDigest.getInstance("MD5"));
+        } catch (NoSuchAlgorithmException e) {
+            // If MD5 isn't available, we're screwed anyway.
+            throw new RuntimeException(e);
+        }
+        return tree;
+    }
+
+    public Node root() {
+        return root;
+    }
+
+    /**
+     * @param pathName the path relative to the share directory, with either platform's separators; the empty string
+     *                 is the share directory itself
+     */
+    public Maybe<Node> find(String pathName) {
+        Node node = root;
+        if (pathName.isEmpty()) {
+            return Maybe.just(node);
+        }
+        for (String part : SPLITTER.split(FileSystemManager.separatorsToSlash(pathName))) {
+            node = node.children.get(part);
+            if (node == null) {
+                return Maybe.nothing();
+            }
+        }
+        return Maybe.just(node);
+    }
+
+    private void insert(FileSystemEvent event) {
+        String[] parts = SPLITTER.split(FileSystemManager.separatorsToSlash(event.pathName));
+        Node node = root;
+        StringBuilder pathName = new StringBuilder();
+        for (int i = 0; i < parts.length; ++i) {
+            if (i > 0) {
+                pathName.append(SEPARATOR);
+            }
+            pathName.append(parts[i]);
+
+            Node child = node.children.get(parts[i]);
+            if (i == parts.length - 1) {
+                // Keep any children that were added before the directory itself
+                Node replacement = new Node(parts[i], pathName.toString(), Maybe.just(event));
+                if (child != null) {
+                    replacement.children.putAll(child.children);
+                }
+                node.children.put(parts[i], replacement);
+            } else if (child == null) {
+                // The parent directory hasn't been seen yet; it should come along later
+                child = new Node(parts[i], pathName.toString(), Maybe.nothing());
+                node.children.put(parts[i], child);
+            }
+            node = node.children.get(parts[i]);
+        }
+    }
+
+    private static void update(MessageDigest digest, String text) {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte aByte : bytes) {
+            sb.append(Integer.toString((aByte & 0xff) + 0x100, 16).substring(1));
+        }
+        return sb.toString();
+    }
+}
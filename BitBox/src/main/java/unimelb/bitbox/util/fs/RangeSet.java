@@ -0,0 +1,128 @@
+package unimelb.bitbox.util.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The parts of a file we have, as a set of non-overlapping byte ranges. Adjacent and overlapping ranges are merged,
+ * so a download that is going well only ever has a handful of entries, however many blocks it has received and in
+ * whatever order they arrived.
+ *
+ * @author Eleanor McMurtry
+ */
+public class RangeSet {
+    /**
+     * The bytes from start (inclusive) to end (exclusive).
+     */
+    public static class Range {
+        public final long start;
+        public final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ")";
+        }
+    }
+
+    // Start of each range to its end
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private long covered = 0;
+
+    public synchronized void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        // Absorb a range that starts before this one and reaches it
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            remove(before.getKey());
+        }
+        // Absorb any ranges that start inside this one
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            remove(next.getKey());
+        }
+        ranges.put(start, end);
+        covered += end - start;
+    }
+
+    private void remove(long start) {
+        covered -= ranges.remove(start) - start;
+    }
+
+    /**
+     * @return the number of bytes in the set
+     */
+    public synchronized long covered() {
+        return covered;
+    }
+
+    /**
+     * @return whether the set has every byte from 0 up to size
+     */
+    public synchronized boolean covers(long size) {
+        if (size <= 0) {
+            return true;
+        }
+        Map.Entry<Long, Long> first = ranges.firstEntry();
+        return first != null && first.getKey() == 0 && first.getValue() >= size;
+    }
+
+    /**
+     * @return the first byte from position onwards that isn't in the set, which is size if there is none
+     */
+    public synchronized long firstMissing(long position, long size) {
+        Map.Entry<Long, Long> containing = ranges.floorEntry(position);
+        if (containing != null && containing.getValue() > position) {
+            position = containing.getValue();
+        }
+        return Math.min(position, size);
+    }
+
+    /**
+     * @return the ranges between 0 and size that aren't in the set, in order
+     */
+    public synchronized List<Range> missing(long size) {
+        List<Range> gaps = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (range.getKey() >= size) {
+                break;
+            }
+            if (range.getKey() > position) {
+                gaps.add(new Range(position, range.getKey()));
+            }
+            position = Math.max(position, range.getValue());
+        }
+        if (position < size) {
+            gaps.add(new Range(position, size));
+        }
+        return gaps;
+    }
+
+    public synchronized void clear() {
+        ranges.clear();
+        covered = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        ranges.forEach((start, end) -> builder.append(new Range(start, end)));
+        return builder.toString();
+    }
+}
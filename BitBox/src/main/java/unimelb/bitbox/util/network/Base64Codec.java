@@ -0,0 +1,121 @@
+package unimelb.bitbox.util.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base 64 encoding and decoding that works directly between byte arrays and buffers, so that file blocks can be
+ * encoded on their way to the socket and decoded on their way from it without building any intermediate Strings.
+ *
+ * @author Eleanor McMurtry
+ */
+public final class Base64Codec {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private static final int[] VALUES = new int[256];
+
+    static {
+        java.util.Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; ++i) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    /**
+     * @return the number of characters needed to encode the given number of bytes, including padding
+     */
+    public static long encodedLength(long length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Encodes bytes from src into dst. Unless this is the last part of the data, only whole groups of three bytes
+     * are encoded, and any leftover bytes stay in src for next time.
+     * Both buffers must be backed by arrays, and dst must have room for the output.
+     */
+    public static void encode(ByteBuffer src, ByteBuffer dst, boolean last) {
+        byte[] in = src.array();
+        byte[] out = dst.array();
+        int i = src.arrayOffset() + src.position();
+        int end = src.arrayOffset() + src.limit();
+        int o = dst.arrayOffset() + dst.position();
+
+        while (end - i >= 3) {
+            int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff);
+            out[o] = ALPHABET[bits >>> 18];
+            out[o + 1] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o + 2] = ALPHABET[(bits >>> 6) & 0x3f];
+            out[o + 3] = ALPHABET[bits & 0x3f];
+            i += 3;
+            o += 4;
+        }
+        if (last && end > i) {
+            int bits = (in[i] & 0xff) << 16 | (end - i == 2 ? (in[i + 1] & 0xff) << 8 : 0);
+            out[o] = ALPHABET[bits >>> 18];
+            out[o + 1] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o + 2] = end - i == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            out[o + 3] = '=';
+            i = end;
+            o += 4;
+        }
+
+        src.position(i - src.arrayOffset());
+        dst.position(o - dst.arrayOffset());
+    }
+
+    /**
+     * @return an upper bound on the number of bytes the given number of characters decodes to
+     */
+    public static int decodedLength(int length) {
+        return length / 4 * 3 + 3;
+    }
+
+    /**
+     * Decodes base 64 text from the given part of an array into dst, which must be backed by an array and have room.
+     * Backslashes are skipped, because some JSON encoders escape the '/' character.
+     * @return false if the text was not valid base 64
+     */
+    public static boolean decode(byte[] src, int from, int to, ByteBuffer dst) {
+        byte[] out = dst.array();
+        int o = dst.arrayOffset() + dst.position();
+        int bits = 0;
+        int count = 0;
+
+        for (int i = from; i < to; ++i) {
+            byte c = src[i];
+            if (c == '\\') {
+                continue;
+            }
+            if (c == '=') {
+                break;
+            }
+            int value = VALUES[c & 0xff];
+            if (value < 0) {
+                return false;
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                out[o] = (byte) (bits >>> 16);
+                out[o + 1] = (byte) (bits >>> 8);
+                out[o + 2] = (byte) bits;
+                o += 3;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        // Deal with the final partial group
+        if (count == 1) {
+            return false;
+        } else if (count == 2) {
+            out[o++] = (byte) (bits >>> 4);
+        } else if (count == 3) {
+            out[o++] = (byte) (bits >>> 10);
+            out[o++] = (byte) (bits >>> 2);
+        }
+        dst.position(o - dst.arrayOffset());
+        return true;
+    }
+
+    private Base64Codec() {
+    }
+}
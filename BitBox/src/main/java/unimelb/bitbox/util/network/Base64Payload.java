@@ -0,0 +1,95 @@
+package unimelb.bitbox.util.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends the bytes of another payload as the base 64 "content" field of the message, for peers that can't accept
+ * raw payloads. The bytes are encoded in small chunks on their way to the socket, rather than being read into
+ * memory and then turned into a String.
+ *
+ * @author Eleanor McMurtry
+ */
+public class Base64Payload implements RawPayload {
+    // A multiple of 3, so that chunks don't need padding
+    private static final int CHUNK_SIZE = 48 * 1024;
+    private static final byte[] TRAILER = "\"}\n".getBytes(StandardCharsets.UTF_8);
+
+    private final RawPayload source;
+
+    public Base64Payload(RawPayload source) {
+        this.source = source;
+    }
+
+    @Override
+    public long length() {
+        return Base64Codec.encodedLength(source.length()) + TRAILER.length;
+    }
+
+    /**
+     * The message is sent without its closing brace, so that the content can be written as its last field.
+     */
+    @Override
+    public String frame(String json) {
+        return json.substring(0, json.lastIndexOf('}')) + (json.endsWith("{}") ? "" : ",") + "\"content\":\"";
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel target) throws IOException {
+        ByteBuffer in = BufferPool.acquire(CHUNK_SIZE);
+        ByteBuffer out = BufferPool.acquire((int) Base64Codec.encodedLength(CHUNK_SIZE));
+        try {
+            source.writeTo(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int count = 0;
+                    int limit = src.limit();
+                    while (src.hasRemaining()) {
+                        int chunk = Math.min(src.remaining(), in.remaining());
+                        src.limit(src.position() + chunk);
+                        in.put(src);
+                        src.limit(limit);
+                        count += chunk;
+                        if (!in.hasRemaining()) {
+                            flush(in, out, target, false);
+                        }
+                    }
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return target.isOpen();
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            flush(in, out, target, true);
+            writeFully(target, ByteBuffer.wrap(TRAILER));
+        } finally {
+            BufferPool.release(in);
+            BufferPool.release(out);
+        }
+    }
+
+    private static void flush(ByteBuffer in, ByteBuffer out, WritableByteChannel target, boolean last)
+            throws IOException {
+        in.flip();
+        out.clear();
+        Base64Codec.encode(in, out, last);
+        // Pooled buffers may be larger than we asked for, so keep the limit at the chunk size
+        in.compact().limit(CHUNK_SIZE);
+        out.flip();
+        writeFully(target, out);
+    }
+
+    private static void writeFully(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package unimelb.bitbox.util.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Recycles the large buffers that file blocks pass through, so that a steady transfer doesn't keep allocating
+ * (and then collecting) a new buffer for every block.
+ *
+ * Buffers are grouped by capacity in powers of two. A buffer that is never released is simply garbage collected.
+ *
+ * @author Eleanor McMurtry
+ */
+public final class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 24;
+    // The most memory to keep idle in each size class
+    private static final int RETAINED_BYTES = 32 * 1024 * 1024;
+
+    // Indexed by shift; the sizes below MIN_SHIFT are never used
+    private static final List<Queue<ByteBuffer>> pools = createPools();
+
+    private static List<Queue<ByteBuffer>> createPools() {
+        List<Queue<ByteBuffer>> result = new ArrayList<>(MAX_SHIFT + 1);
+        for (int shift = 0; shift <= MAX_SHIFT; ++shift) {
+            result.add(shift < MIN_SHIFT ? null : new ConcurrentLinkedQueue<>());
+        }
+        return result;
+    }
+
+    private static int shiftFor(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(shift, MIN_SHIFT);
+    }
+
+    /**
+     * @return a heap buffer with its limit set to the requested size; its contents are undefined
+     */
+    public static ByteBuffer acquire(int size) {
+        int shift = shiftFor(size);
+        if (shift > MAX_SHIFT) {
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = pools.get(shift).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << shift);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     * Buffers that didn't come from the pool are ignored.
+     */
+    public static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int shift = shiftFor(capacity);
+        if (buffer.isDirect() || buffer.isReadOnly() || shift > MAX_SHIFT || capacity != 1 << shift) {
+            return;
+        }
+
+        Queue<ByteBuffer> pool = pools.get(shift);
+        if (pool.size() < Math.max(2, RETAINED_BYTES >> shift)) {
+            pool.offer(buffer);
+        }
+    }
+
+    private BufferPool() {
+    }
+}
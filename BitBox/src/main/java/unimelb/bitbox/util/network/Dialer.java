@@ -0,0 +1,172 @@
+package unimelb.bitbox.util.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Opens outgoing connections without waiting on the operating system's connect timeout.
+ *
+ * A host name may resolve to several addresses, some of which don't work (e.g. an IPv6 address on a network without
+ * IPv6). So we try them "happy eyeballs" style: start with the first, and if it hasn't connected after a short delay,
+ * start the next one alongside it, alternating between IPv6 and IPv4. Whichever connects first is used, and the rest
+ * are dropped.
+ *
+ * @author Eleanor McMurtry
+ */
+public final class Dialer {
+    // How long to give each address before also trying the next one
+    private static final long ATTEMPT_DELAY = 250;
+
+    private Dialer() {
+    }
+
+    /**
+     * Connects to any of the addresses the host name resolves to.
+     * @param timeout how long to keep trying, in milliseconds, including looking up the name
+     * @return a connected channel, in blocking mode
+     */
+    public static SocketChannel connect(HostPort hostPort, long timeout) throws IOException {
+        long start = System.currentTimeMillis();
+        List<InetAddress> addresses;
+        try {
+            addresses = HostResolver.resolve(hostPort.hostname).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("timed out looking up " + hostPort.hostname);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted looking up " + hostPort.hostname);
+        } catch (ExecutionException e) {
+            // Lookups that fail give an empty list, so this shouldn't happen
+            throw new UnknownHostException(hostPort.hostname);
+        }
+        if (addresses.isEmpty()) {
+            throw new UnknownHostException(hostPort.hostname);
+        }
+        return connect(interleave(addresses), hostPort.port, timeout - (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Connects to one of the addresses, trying them in order.
+     * @param timeout how long to keep trying, in milliseconds
+     * @return a connected channel, in blocking mode
+     */
+    public static SocketChannel connect(List<InetAddress> addresses, int port, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        List<SocketChannel> attempts = new ArrayList<>();
+        IOException lastError = new SocketTimeoutException("connection timed out");
+        SocketChannel connected = null;
+
+        try (Selector selector = Selector.open()) {
+            int next = 0;
+            long nextStart = System.currentTimeMillis();
+            while (connected == null) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    break;
+                }
+
+                if (next < addresses.size() && now >= nextStart) {
+                    SocketChannel channel = SocketChannel.open();
+                    attempts.add(channel);
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(new InetSocketAddress(addresses.get(next), port))) {
+                            connected = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT);
+                        nextStart = now + ATTEMPT_DELAY;
+                    } catch (IOException e) {
+                        // Move straight on to the next address
+                        lastError = e;
+                        channel.close();
+                    }
+                    ++next;
+                    continue;
+                }
+                if (next >= addresses.size() && selector.keys().isEmpty()) {
+                    // Every address has failed
+                    break;
+                }
+
+                long wake = next < addresses.size() ? Math.min(nextStart, deadline) : deadline;
+                selector.select(Math.max(1, wake - now));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            connected = channel;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        lastError = e;
+                        key.cancel();
+                        channel.close();
+                        nextStart = System.currentTimeMillis();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel channel : attempts) {
+                if (channel != connected) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        if (connected == null) {
+            throw lastError;
+        }
+        // The selector is closed, so the channel is no longer registered and can block again
+        connected.configureBlocking(true);
+        return connected;
+    }
+
+    /**
+     * Orders the addresses so that IPv6 and IPv4 take turns, starting with whichever family the resolver put first.
+     */
+    private static List<InetAddress> interleave(List<InetAddress> addresses) {
+        if (addresses.isEmpty()) {
+            return addresses;
+        }
+        boolean firstIsV6 = addresses.get(0) instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        }
+
+        List<InetAddress> ordered = new ArrayList<>();
+        for (int i = 0; i < Math.max(first.size(), second.size()); ++i) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // We weren't going to use it anyway
+        }
+    }
+}
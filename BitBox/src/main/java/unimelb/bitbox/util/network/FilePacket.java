@@ -1,6 +1,5 @@
 package unimelb.bitbox.util.network;
 
-import unimelb.bitbox.messages.FileBytesRequest;
 import unimelb.bitbox.messages.FileBytesResponse;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
@@ -28,14 +27,27 @@ public class FilePacket {
      * The number of bytes to read or write.
      */
     public final long length;
+    /**
+     * Whether the bytes should be sent as a raw payload rather than inside the message.
+     */
+    public final boolean raw;
 
     /**
      * Construct a packet, linked to a particular peer, a file, a position, and a number of bytes.
      */
     public FilePacket(Peer peer, FileDescriptor fileDescriptor, long position, long length) {
+        this(peer, fileDescriptor, position, length, false);
+    }
+
+    /**
+     * Construct a packet as above, also specifying whether the peer asked for the bytes to be sent raw.
+     */
+    public FilePacket(Peer peer, FileDescriptor fileDescriptor, long position, long length, boolean raw) {
+        this.raw = raw;
         transfer = new FileTransfer(peer, fileDescriptor);
         this.position = position;
-        this.length = Math.min(Configuration.getBlockSize(), length);
+        // Whatever block size the peer chose, don't read more than we're willing to hold at once
+        this.length = Math.min(Configuration.getMaximumBlockSize(), length);
     }
 
     public Peer peer() {
@@ -56,22 +68,28 @@ public class FilePacket {
 
     /**
      * Sends the next set of bytes as described by this packet.
+     * @param onSent run once the response has been written, or dropped because the connection closed
+     */
+    public void sendBytesResponse(Runnable onSent) {
+        transfer.peer.sendMessage(new FileBytesResponse(this), onSent);
+    }
+
+    /**
+     * @return the position of the block after this one
      */
-    public void sendBytesResponse() {
-        transfer.peer.sendMessage(new FileBytesResponse(this));
+    public long nextPosition() {
+        return position + length;
     }
 
     /**
-     * Requests the next set of bytes as described by this packet.
+     * Requests the block at the given position from the given peer, which need not be the one that sent this packet.
      */
-    public void sendBytesRequest() {
-        long nextPosition = position + length;
-        transfer.peer.sendMessage(new FileBytesRequest(fd(), nextPosition));
-        float completion = (float) nextPosition / (float) fd().fileSize() * 100;
-        String completionPercent = String.format("%.1f", completion);
+    public void sendBytesRequest(Peer source, long nextPosition) {
+        source.requestBytes(fd(), nextPosition);
+        String completionPercent = String.format("%.1f", transfer.getCompletion());
         PeerServer.log().info("Downloading " + shortPathName() + " (" + completionPercent + "% complete, total "
                               + Conversion.humanFileSize(fd().fileSize()) + ")");
-        PeerServer.log().fine(peer().getForeignName() + ": requesting bytes for " + pathName() +
+        PeerServer.log().fine(source.getForeignName() + ": requesting bytes for " + pathName() +
                 " at position: [" + nextPosition + "/" + fd().fileSize() + "]");
     }
 
@@ -1,10 +1,20 @@
 package unimelb.bitbox.util.network;
 
 import functional.algebraic.Maybe;
-import unimelb.bitbox.messages.FileBytesRequest;
 import unimelb.bitbox.peers.Peer;
 import unimelb.bitbox.server.PeerServer;
 import unimelb.bitbox.util.fs.FileDescriptor;
+import unimelb.bitbox.util.fs.RangeSet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a file that is being transferred.
@@ -21,7 +31,18 @@ public class FileTransfer {
      */
     public final FileDescriptor fileDescriptor;
 
-    private Maybe<FilePacket> packet = Maybe.nothing();
+    // Every peer that has offered us this file, and the one we're currently downloading it from
+    private final Set<Peer> sources = ConcurrentHashMap.newKeySet();
+    private volatile Peer source;
+    // The blocks we've asked for and not yet received, by position, so that the same block isn't asked for twice
+    private final Map<Long, Peer> requested = new HashMap<>();
+    // When the download last got anywhere, and how many deadlines it has missed since
+    private volatile long lastProgress = System.nanoTime();
+    private final AtomicInteger stalls = new AtomicInteger();
+    // Peers we moved the download away from because it stalled, which we'd rather not go back to
+    private final Set<Peer> stalledSources = ConcurrentHashMap.newKeySet();
+    // Completes once the download is over, with whether the file was written (or a newer version took its place)
+    private final CompletableFuture<Boolean> outcome = new CompletableFuture<>();
 
     /**
      * Create a file transfer for a given peer and file.
@@ -29,27 +50,158 @@ public class FileTransfer {
     public FileTransfer(Peer peer, FileDescriptor fileDescriptor) {
         this.peer = peer;
         this.fileDescriptor = fileDescriptor;
+        source = peer;
+        sources.add(peer);
     }
 
-    public String pathName() {
-        return fileDescriptor.pathName;
+    /**
+     * @return the peer we're currently downloading from, which starts out as the peer that offered us the file
+     */
+    public Peer source() {
+        return source;
+    }
+
+    public void setSource(Peer source) {
+        this.source = source;
+    }
+
+    /**
+     * @return completes with true once the file has been written or a newer version has taken its place, or with
+     *         false if the download was given up
+     */
+    public CompletableFuture<Boolean> outcome() {
+        return outcome;
+    }
+
+    public void finished(boolean applied) {
+        outcome.complete(applied);
+    }
+
+    /**
+     * @return every peer that has offered us this file
+     */
+    public Set<Peer> sources() {
+        return Collections.unmodifiableSet(sources);
+    }
+
+    /**
+     * Records that another peer has offered us this file.
+     * @return whether we didn't know already
+     */
+    public boolean addSource(Peer peer) {
+        return sources.add(peer);
+    }
+
+    public void removeSource(Peer peer) {
+        sources.remove(peer);
+    }
+
+    /**
+     * Records that we're about to ask the peer for the block starting at this position.
+     * @return false if we've already asked for that block and it hasn't arrived yet, so shouldn't again
+     */
+    public synchronized boolean markRequested(Peer peer, long position) {
+        return requested.putIfAbsent(position, peer) == null;
+    }
+
+    /**
+     * Records that the block starting at this position has arrived, so that it can be asked for again if need be.
+     */
+    public synchronized void answered(long position) {
+        requested.remove(position);
+    }
+
+    /**
+     * Forgets every block we've asked for, because they evidently aren't coming.
+     */
+    public synchronized void clearRequests() {
+        requested.clear();
     }
 
     /**
-     * Set a new packet as the current packet of the transfer.
+     * Records that part of the file has arrived from the peer, which is evidently working again if it had stalled.
      */
-    public void updatePacket(FilePacket packet) {
-        this.packet = Maybe.just(packet);
+    public void progressed(Peer peer) {
+        progressed();
+        stalledSources.remove(peer);
+    }
+
+    private void progressed() {
+        lastProgress = System.nanoTime();
+        stalls.set(0);
+    }
+
+    /**
+     * @return how long it has been since part of the file arrived, or since the download started, in seconds
+     */
+    public long secondsSinceProgress() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - lastProgress);
+    }
+
+    /**
+     * Records that the download stalled with this peer, so that we only go back to it if we must.
+     */
+    public void avoid(Peer peer) {
+        stalledSources.add(peer);
+    }
+
+    public boolean isAvoided(Peer peer) {
+        return stalledSources.contains(peer);
+    }
+
+    /**
+     * Records that the download has missed a deadline, and starts the clock on the next one.
+     * @return how many deadlines in a row the download has now missed
+     */
+    public int stalled() {
+        lastProgress = System.nanoTime();
+        return stalls.incrementAndGet();
+    }
+
+    /**
+     * @return the parts of the file we haven't received yet, in order
+     */
+    public List<RangeSet.Range> missingRanges() {
+        return received().map(ranges -> ranges.missing(fileDescriptor.fileSize()))
+                         .orElse(() -> Collections.singletonList(new RangeSet.Range(0, fileDescriptor.fileSize())));
+    }
+
+    /**
+     * @return the position of the first byte we haven't received yet
+     */
+    public long nextPosition() {
+        return nextPosition(0);
+    }
+
+    /**
+     * @return the position of the first byte from the given position onwards that we haven't received yet, or failing
+     * that the first before it. Blocks can arrive out of order, e.g. when more than one peer has been sending them.
+     */
+    public long nextPosition(long from) {
+        long size = fileDescriptor.fileSize();
+        return received().map(ranges -> {
+            long next = ranges.firstMissing(from, size);
+            return next < size ? next : ranges.firstMissing(0, size);
+        }).orElse(0L);
+    }
+
+    private Maybe<RangeSet> received() {
+        return PeerServer.fsManager().receivedRanges(fileDescriptor);
+    }
+
+    public String pathName() {
+        return fileDescriptor.pathName;
     }
 
     /**
-     * Returns the percentage of completion for this transfer.
+     * Returns the percentage of completion for this transfer, counting every byte received so far.
      */
     public float getCompletion() {
-        if (!packet.isJust()) {
+        long size = fileDescriptor.fileSize();
+        if (size == 0) {
             return 0;
         }
-        return 100 * (float) packet.get().position / (float) fileDescriptor.fileSize();
+        return 100 * (float) received().map(RangeSet::covered).orElse(0L) / (float) size;
     }
 
     @Override
@@ -59,7 +211,7 @@ public class FileTransfer {
 
     @Override
     public String toString() {
-        return fileDescriptor + " via " + peer;
+        return fileDescriptor + " via " + source;
     }
 
     @Override
@@ -68,10 +220,13 @@ public class FileTransfer {
     }
 
     public void sendInitialBytesRequest() {
-        peer.sendMessage(new FileBytesRequest(fileDescriptor, 0));
+        progressed();
+        Peer source = this.source;
+        markRequested(source, 0);
+        source.requestBytes(fileDescriptor, 0);
         PeerServer.log().info("Beginning download of " + fileDescriptor.pathName
                               + " (" + Conversion.humanFileSize(fileDescriptor.fileSize()) + ")");
-        PeerServer.log().fine(peer.getForeignName() + ": sent FILE_BYTES_REQUEST for " +
+        PeerServer.log().fine(source.getForeignName() + ": sent FILE_BYTES_REQUEST for " +
                                fileDescriptor.pathName + " at position: [0/" + fileDescriptor.fileSize() + "]");
     }
 }
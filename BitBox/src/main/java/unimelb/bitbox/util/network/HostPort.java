@@ -1,14 +1,13 @@
 package unimelb.bitbox.util.network;
 
 import functional.algebraic.Result;
-import unimelb.bitbox.server.PeerServer;
-
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 
 /**
  * A class to store a host and port together.
  *
+ * Host names are resolved in the background by {@link HostResolver}, and only once they're compared, so creating a
+ * HostPort never waits on DNS.
+ *
  * @author Eleanor McMurtry
  */
 public class HostPort implements IJSONData {
@@ -21,8 +20,6 @@ public class HostPort implements IJSONData {
      */
     public final int port;
 
-    private final HostPort alias;
-
     /**
      * Create a HostPort object from a {@link JSONDocument}.
      */
@@ -57,35 +54,17 @@ public class HostPort implements IJSONData {
         } catch (NumberFormatException e) {
             return Result.error(new HostPortParseException("malformed port: " + parts[1]));
         }
-        return Result.value(new HostPort(host, port, false));
-    }
-
-    private static HostPort fromAlias(String host, int port) {
-        String hostUsed = host.replace("/", "");
-        try {
-            hostUsed = InetAddress.getByName(hostUsed).getHostAddress();
-        } catch (UnknownHostException ignored) {
-            PeerServer.log().warning("Unknown host " + hostUsed + ":" + port);
-        }
-        return new HostPort(hostUsed, port, true);
+        return Result.value(new HostPort(host, port));
     }
 
     public HostPort(String host, long port) {
-        this(host, (int) port, false);
-    }
-
-    public HostPort(String host, int port) {
-        this(host, port, false);
+        this(host, (int) port);
     }
 
-    private HostPort(String hostname, int port, boolean aliased) {
+    public HostPort(String hostname, int port) {
         // Remove slashes at the start for consistency
         this.hostname = hostname.replace("/", "");
         this.port = port;
-        // If this wasn't an alias HostPort, cache an alias for later; otherwise, we are our own alias
-        alias = aliased
-              ? this
-              : fromAlias(hostname, port);
     }
 
     /**
@@ -99,7 +78,7 @@ public class HostPort implements IJSONData {
      * Return the address described by this HostPort in `host:port` form, after network resolution has been performed.
      */
     public String asAliasedAddress() {
-        return alias.toString();
+        return HostResolver.cached(hostname).orElse(hostname) + ":" + port;
     }
 
     @Override
@@ -112,6 +91,11 @@ public class HostPort implements IJSONData {
         return (rhs instanceof HostPort) && (rhs.toString().equals(toString()));
     }
 
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
     @Override
     public JSONDocument toJSON() {
         JSONDocument doc = new JSONDocument();
@@ -121,16 +105,17 @@ public class HostPort implements IJSONData {
     }
 
     /**
-     * Returns true if this HostPort is equal to the other HostPort after resolving both hostnames.
+     * Returns true if this HostPort is equal to the other HostPort after resolving both hostnames. A name that hasn't
+     * been resolved yet is compared as it is.
      */
     public boolean fuzzyEquals(HostPort hostPort) {
-        return alias.equals(hostPort.alias);
+        return equals(hostPort) || asAliasedAddress().equals(hostPort.asAliasedAddress());
     }
 
     /**
      * Returns whether the network resolution gave a different result.
      */
     public boolean isAliased() {
-        return alias != this;
+        return !asAliasedAddress().equals(asAddress());
     }
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+package unimelb.bitbox.util.network;
+
+import functional.algebraic.Maybe;
+import unimelb.bitbox.server.PeerServer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Looks up host names in the background, and remembers the answers for a while.
+ *
+ * Host names turn up in every handshake and peer list, and a slow DNS server shouldn't hold up the threads handling
+ * messages. So those threads only ever see what's already in the cache, via {@link #cached(String)}, which starts a
+ * lookup if there isn't a fresh answer. Code that can afford to wait, like connecting to a peer, uses
+ * {@link #resolve(String)}.
+ *
+ * Names that don't resolve are remembered too, for a shorter time, so we don't keep asking about them. The cache holds
+ * at most {@value #MAX_ENTRIES} names, dropping those that have expired first and then the least recently used, and
+ * only {@value #THREADS} lookups run at once.
+ *
+ * @author Eleanor McMurtry
+ */
+public final class HostResolver {
+    private static final long TIME_TO_LIVE = 60 * 1000;
+    private static final long NEGATIVE_TIME_TO_LIVE = 10 * 1000;
+    private static final int MAX_ENTRIES = 1024;
+    private static final int THREADS = 4;
+
+    // Kept in order of use, so the least recently used name is dropped when it fills up (guarded by cache)
+    private static final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+    private static class Entry {
+        // The last answer, which is still given out while a new one is looked up; null until there is one
+        volatile List<InetAddress> addresses = null;
+        volatile long expires = 0;
+        // The lookup in progress, if any, so nobody starts another one (guarded by cache)
+        CompletableFuture<List<InetAddress>> lookup = null;
+
+        boolean isFresh(long now) {
+            return addresses != null && expires > now;
+        }
+    }
+
+    private HostResolver() {
+    }
+
+    /**
+     * Looks up every address for the host name, using the cache if the answer is fresh.
+     * @return the addresses, or an empty list if the name doesn't resolve
+     */
+    public static CompletableFuture<List<InetAddress>> resolve(String hostname) {
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            Entry entry = cache.get(hostname);
+            if (entry == null) {
+                if (cache.size() >= MAX_ENTRIES) {
+                    cache.values().removeIf(old -> old.lookup == null && !old.isFresh(now));
+                }
+                entry = new Entry();
+                cache.put(hostname, entry);
+            } else if (entry.isFresh(now)) {
+                return CompletableFuture.completedFuture(entry.addresses);
+            }
+            if (entry.lookup == null) {
+                entry.lookup = lookup(hostname, entry);
+            }
+            return entry.lookup;
+        }
+    }
+
+    /**
+     * Gives the address for the host name without waiting. If we don't have a fresh answer, a lookup is started for
+     * next time, and an out of date answer is given if there is one.
+     * @return the first address in text form, or nothing if we don't know it (yet)
+     */
+    public static Maybe<String> cached(String hostname) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(hostname);
+        }
+        if (entry == null || !entry.isFresh(System.currentTimeMillis())) {
+            resolve(hostname);
+        }
+        List<InetAddress> addresses = entry == null ? null : entry.addresses;
+        if (addresses == null || addresses.isEmpty()) {
+            return Maybe.nothing();
+        }
+        return Maybe.just(addresses.get(0).getHostAddress());
+    }
+
+    private static CompletableFuture<List<InetAddress>> lookup(String hostname, Entry entry) {
+        CompletableFuture<List<InetAddress>> result = new CompletableFuture<>();
+        executor.submit(() -> {
+            List<InetAddress> addresses = Collections.emptyList();
+            try {
+                addresses = Arrays.asList(InetAddress.getAllByName(hostname));
+            } catch (UnknownHostException | SecurityException e) {
+                PeerServer.log().warning("Unknown host " + hostname);
+            } finally {
+                entry.expires = System.currentTimeMillis()
+                        + (addresses.isEmpty() ? NEGATIVE_TIME_TO_LIVE : TIME_TO_LIVE);
+                entry.addresses = addresses;
+                synchronized (cache) {
+                    entry.lookup = null;
+                }
+                result.complete(addresses);
+            }
+        });
+        return result;
+    }
+}
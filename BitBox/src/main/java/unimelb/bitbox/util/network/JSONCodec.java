@@ -0,0 +1,366 @@
+package unimelb.bitbox.util.network;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the JSON used by the BitBox protocol.
+ *
+ * Parsing builds the {@link JSONDocument} maps directly from the text in a single pass, storing integers as
+ * {@link Long} and objects as nested {@link JSONDocument}s, so nothing needs converting afterwards.
+ * Writing appends to a caller-supplied {@link StringBuilder}, so that the buffer can be reused.
+ *
+ * Output never escapes '/', but input may (as json-simple does), so we can still talk to older peers.
+ *
+ * Objects and arrays are parsed recursively, so how deeply they may be nested is limited; otherwise a peer could
+ * overflow the stack of the thread reading its messages with a line of '['s.
+ *
+ * @author Eleanor McMurtry
+ */
+final class JSONCodec {
+    // Don't hold on to a huge builder after encoding a large message
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+    // Far deeper than any message in the protocol
+    static final int MAX_DEPTH = 64;
+
+    private final String json;
+    private int pos = 0;
+    private int depth = 0;
+
+    private JSONCodec(String json) {
+        this.json = json;
+    }
+
+    /* Decoding */
+
+    /**
+     * Parses a JSON object.
+     * @throws JSONException if the text is not a single well-formed JSON object
+     */
+    static JSONDocument parse(String json) throws JSONException {
+        JSONCodec codec = new JSONCodec(json);
+        codec.skipWhitespace();
+        JSONDocument result = codec.readObject();
+        codec.skipWhitespace();
+        if (codec.pos != json.length()) {
+            throw codec.error("unexpected trailing characters");
+        }
+        return result;
+    }
+
+    private JSONException error(String message) {
+        return new JSONException(message + " at position " + pos);
+    }
+
+    private char peek() throws JSONException {
+        if (pos >= json.length()) {
+            throw error("unexpected end of input");
+        }
+        return json.charAt(pos);
+    }
+
+    private void expect(char c) throws JSONException {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        ++pos;
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            ++pos;
+        }
+    }
+
+    private JSONDocument readObject() throws JSONException {
+        expect('{');
+        Map<String, Object> map = new LinkedHashMap<>();
+        skipWhitespace();
+        if (peek() == '}') {
+            ++pos;
+            return new JSONDocument(map);
+        }
+
+        while (true) {
+            skipWhitespace();
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            map.put(key, readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                ++pos;
+            } else {
+                expect('}');
+                return new JSONDocument(map);
+            }
+        }
+    }
+
+    private List<Object> readArray() throws JSONException {
+        expect('[');
+        List<Object> list = new ArrayList<>();
+        skipWhitespace();
+        if (peek() == ']') {
+            ++pos;
+            return list;
+        }
+
+        while (true) {
+            skipWhitespace();
+            list.add(readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                ++pos;
+            } else {
+                expect(']');
+                return list;
+            }
+        }
+    }
+
+    private Object readValue() throws JSONException {
+        char c = peek();
+        switch (c) {
+            case '{':
+            case '[':
+                if (depth >= MAX_DEPTH) {
+                    throw error("nested too deeply");
+                }
+                ++depth;
+                Object nested = c == '{' ? readObject() : readArray();
+                --depth;
+                return nested;
+            case '"':
+                return readString();
+            case 't':
+                readLiteral("true");
+                return true;
+            case 'f':
+                readLiteral("false");
+                return false;
+            case 'n':
+                readLiteral("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return readNumber();
+                }
+                throw error("unexpected character '" + c + "'");
+        }
+    }
+
+    private void readLiteral(String literal) throws JSONException {
+        if (!json.startsWith(literal, pos)) {
+            throw error("expected " + literal);
+        }
+        pos += literal.length();
+    }
+
+    private Object readNumber() throws JSONException {
+        int start = pos;
+        boolean integral = true;
+        if (json.charAt(pos) == '-') {
+            ++pos;
+        }
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                integral = false;
+            } else if (c < '0' || c > '9') {
+                break;
+            }
+            ++pos;
+        }
+
+        String number = json.substring(start, pos);
+        try {
+            if (integral) {
+                return Long.parseLong(number);
+            }
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("malformed number `" + number + "`");
+        }
+    }
+
+    private String readString() throws JSONException {
+        expect('"');
+        // Most strings have no escapes, so we can just take a substring
+        int start = pos;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                return json.substring(start, pos++);
+            }
+            if (c == '\\') {
+                break;
+            }
+            ++pos;
+        }
+
+        StringBuilder builder = new StringBuilder(pos - start + 16);
+        builder.append(json, start, pos);
+        while (true) {
+            char c = peek();
+            ++pos;
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+
+            char escaped = peek();
+            ++pos;
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append(escaped);
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw error("truncated unicode escape");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("malformed unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    throw error("unknown escape '\\" + escaped + "'");
+            }
+        }
+    }
+
+    /* Encoding */
+
+    /**
+     * Encodes the document using this thread's reusable buffer.
+     */
+    static String encode(JSONDocument document) {
+        StringBuilder builder = BUFFER.get();
+        builder.setLength(0);
+        writeObject(builder, document.entries());
+        String result = builder.toString();
+
+        if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    private static void writeObject(StringBuilder builder, Map<String, Object> map) {
+        builder.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            writeString(builder, entry.getKey());
+            builder.append(':');
+            writeValue(builder, entry.getValue());
+        }
+        builder.append('}');
+    }
+
+    private static void writeValue(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            writeString(builder, (String) value);
+        } else if (value instanceof Long || value instanceof Integer) {
+            builder.append(((Number) value).longValue());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof JSONDocument) {
+            writeObject(builder, ((JSONDocument) value).entries());
+        } else if (value instanceof Iterable) {
+            builder.append('[');
+            boolean first = true;
+            for (Object item : (Iterable<?>) value) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                writeValue(builder, item);
+            }
+            builder.append(']');
+        } else {
+            writeString(builder, value.toString());
+        }
+    }
+
+    private static void writeString(StringBuilder builder, String str) {
+        builder.append('"');
+        int length = str.length();
+        int start = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = str.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                continue;
+            }
+
+            // Copy the run of ordinary characters in one go
+            builder.append(str, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    builder.append(String.format("\\u%04x", (int) c));
+                    break;
+            }
+        }
+        builder.append(str, start, length);
+        builder.append('"');
+    }
+}
@@ -1,39 +1,39 @@
 package unimelb.bitbox.util.network;
 
 import functional.algebraic.Result;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Represents a JSON object.
+ * Represents a JSON object. Fields are kept in the order they were added, and encoded by {@link JSONCodec}.
  *
  * @author Aaron Harwood
  * @author Eleanor McMurtry
  */
 public class JSONDocument {
-    private JSONObject obj = new JSONObject();
+    private final Map<String, Object> obj;
 
-    public JSONDocument() {}
-    public JSONDocument(JSONObject obj) {
+    public JSONDocument() {
+        obj = new LinkedHashMap<>();
+    }
+    JSONDocument(Map<String, Object> obj) {
         this.obj = obj;
     }
     public static Result<JSONDocument, JSONException> parse(String json) {
         try {
-            JSONParser parser = new JSONParser();
-            JSONObject obj = (JSONObject) parser.parse(json);
-            return Result.value(new JSONDocument(obj));
-        } catch (ClassCastException | NullPointerException e) {
-            return Result.error(new JSONException("Error parsing JSON string `" + json + "`:\n" + e.getMessage()));
-        } catch (ParseException e) {
-            return Result.error(new JSONException(json, e));
+            return Result.value(JSONCodec.parse(json));
+        } catch (JSONException e) {
+            return Result.error(e);
         }
     }
 
+    Map<String, Object> entries() {
+        return obj;
+    }
+
     // Allow a limited subset of appends
     public JSONDocument append(String key, String val) {
         obj.put(key, val);
@@ -52,7 +52,7 @@ public class JSONDocument {
         return this;
     }
     public JSONDocument append(String key, JSONDocument val) {
-        obj.put(key, val.obj);
+        obj.put(key, val);
         return this;
     }
     public JSONDocument append(String key, IJSONData val) {
@@ -60,17 +60,15 @@ public class JSONDocument {
         return this;
     }
     public JSONDocument append(String key, Iterable<?> val) {
-        JSONArray list = new JSONArray();
-        for (Object o : val){
-            if (o instanceof JSONDocument){
-                list.add(((JSONDocument)o).obj);
-            } else if (o instanceof IJSONData) {
-                list.add(((IJSONData) o).toJSON().obj);
+        List<Object> list = new ArrayList<>();
+        for (Object o : val) {
+            if (o instanceof IJSONData) {
+                list.add(((IJSONData) o).toJSON());
             } else {
                 list.add(o);
             }
         }
-        obj.put(key,list);
+        obj.put(key, list);
         return this;
     }
     public JSONDocument appendIfMissing(String key, String val) {
@@ -99,7 +97,7 @@ public class JSONDocument {
     }
 
     public JSONDocument join(JSONDocument other) {
-        other.obj.forEach(obj::put);
+        obj.putAll(other.obj);
         return this;
     }
     public JSONDocument join(IJSONData other) {
@@ -113,99 +111,64 @@ public class JSONDocument {
         return obj.containsKey(key);
     }
 
-    private <T> Result<T, JSONException> get(String key) {
-        if (!containsKey(key)) {
-            return Result.error(new JSONException("Field `" + key + "` missing"));
+    /**
+     * Looks up the field once, and checks it has the expected type.
+     */
+    private <T> Result<T, JSONException> get(String key, Class<T> type) {
+        Object result = obj.get(key);
+        if (type.isInstance(result)) {
+            return Result.value(type.cast(result));
         }
-        try {
-            // If it's a JSONObject, Java won't allow implicit conversion constructors, so we have to deal with that
-            // case separately.
-            Object result = obj.get(key);
-            if (result instanceof JSONObject) {
-                return Result.value((T)new JSONDocument((JSONObject)result));
-            }
-            return Result.value((T)result);
-        } catch (ClassCastException ignored) {
-            return Result.error(new JSONException("Field `" + key + "` of wrong type"));
+        if (result == null && !obj.containsKey(key)) {
+            return Result.error(new JSONException("Field `" + key + "` missing"));
         }
+        return Result.error(new JSONException("wrong type for field " + key));
     }
 
     public Result<Long, JSONException> getLong(String key) {
-        return get(key).andThen(val -> val instanceof Long
-                ? get(key)
-                : Result.error(new JSONException("wrong type for field " + key)));
+        return get(key, Long.class);
     }
     public Result<String, JSONException> getString(String key) {
-        return get(key).andThen(val -> val instanceof String
-                ? get(key)
-                : Result.error(new JSONException("wrong type for field " + key)));
+        return get(key, String.class);
     }
     public Result<Boolean, JSONException> getBoolean(String key) {
-        return get(key).andThen(val -> val instanceof Boolean
-                ? get(key)
-                : Result.error(new JSONException("wrong type for field " + key)));
+        return get(key, Boolean.class);
     }
     public Result<JSONDocument, JSONException> getJSON(String key) {
-        return get(key).andThen(val -> val instanceof JSONDocument
-                ? get(key)
-                : Result.error(new JSONException("wrong type for field " + key)));
+        return get(key, JSONDocument.class);
     }
 
-    private <T> Result<List<T>, JSONException> getArray(String key) {
-        if (!containsKey(key)) {
-            return Result.error(new JSONException("Field `" + key + "` missing"));
-        }
-        JSONArray jsonArray;
-        try {
-            jsonArray = (JSONArray) obj.get(key);
-        } catch (ClassCastException ignored) {
-            return Result.error(new JSONException("Field `" + key + "` of wrong type"));
-        }
-        try {
-            List<T> res = new ArrayList<>();
-            for (Object o : jsonArray) {
-                if (o instanceof JSONObject) {
-                    res.add((T) new JSONDocument((JSONObject) o));
-                } else {
-                    res.add((T) o);
+    private <T> Result<List<T>, JSONException> getArray(String key, Class<T> type) {
+        return get(key, List.class).andThen(list -> {
+            List<T> res = new ArrayList<>(list.size());
+            for (Object o : list) {
+                if (!type.isInstance(o)) {
+                    return Result.error(new JSONException("List field `" + key + "` contains value of wrong type"));
                 }
+                res.add(type.cast(o));
             }
             return Result.value(res);
-        } catch (ClassCastException ignored) {
-            return Result.error(new JSONException("List field `" + key + "` contains value of wrong type"));
-        }
+        });
     }
     public Result<List<JSONDocument>, JSONException> getJSONArray(String key) {
-        return this.<JSONDocument>getArray(key).andThen(list -> {
-            if (list.size() == 0 || list.get(0) != null) {
-                return Result.value(list);
-            } else {
-                return Result.error(new JSONException("wrong type for field " + key));
-            }
-        });
+        return getArray(key, JSONDocument.class);
     }
     public Result<List<String>, JSONException> getStringArray(String key) {
-        return this.<String>getArray(key).andThen(list -> {
-            if (list.size() == 0 || list.get(0) != null) {
-                return Result.value(list);
-            } else {
-                return Result.error(new JSONException("wrong type for field " + key));
-            }
-        });
+        return getArray(key, String.class);
     }
 
     public String networkEncode() { return this + "\n"; }
 
     @Override
-    public String toString() { return obj.toJSONString(); }
+    public String toString() { return JSONCodec.encode(this); }
 
     @Override
     public boolean equals(Object rhs) {
-        return rhs instanceof JSONDocument && (rhs.toString().equals(toString()));
+        return rhs instanceof JSONDocument && ((JSONDocument) rhs).obj.equals(obj);
     }
 
     @Override
     public int hashCode() {
-        return toString().hashCode();
+        return obj.hashCode();
     }
 }
@@ -0,0 +1,80 @@
+package unimelb.bitbox.util.network;
+
+import functional.algebraic.Maybe;
+import functional.algebraic.Result;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Bytes that are sent directly after a message, rather than being encoded inside the JSON.
+ *
+ * On the wire, a message with a payload is written as `RAW length json\n` followed by exactly `length` bytes.
+ * Peers only send payloads in response to requests that asked for them, so the extra framing never reaches a peer
+ * that doesn't understand it.
+ *
+ * @author Eleanor McMurtry
+ */
+public interface RawPayload {
+    String PREFIX = "RAW ";
+
+    /**
+     * @return the number of bytes that {@link #writeTo(WritableByteChannel)} will write
+     */
+    long length();
+
+    /**
+     * Writes exactly {@link #length()} bytes to the channel.
+     */
+    void writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * @return the text to place before the JSON of a message carrying this payload
+     */
+    default String header() {
+        return PREFIX + length() + " ";
+    }
+
+    /**
+     * @return the complete text to send before the payload, given the JSON of the message
+     */
+    default String frame(String json) {
+        return header() + json + "\n";
+    }
+
+    /**
+     * Reads the payload length from a received line, if the line has a payload header.
+     * A line that starts with the prefix but has a bad length is an error rather than a plain message: we can't know
+     * how many bytes follow it, so the rest of the stream can't be read.
+     * @param maximumLength the largest payload we told the peer it could send
+     * @return the length of the payload, or nothing if there was no payload header
+     */
+    static Result<Maybe<Long>, ProtocolException> parseHeader(String line, long maximumLength) {
+        if (!line.startsWith(PREFIX)) {
+            return Result.value(Maybe.nothing());
+        }
+        int end = line.indexOf(' ', PREFIX.length());
+        if (end < 0) {
+            return Result.error(new ProtocolException("malformed payload header"));
+        }
+        String digits = line.substring(PREFIX.length(), end);
+        // Anything with more digits than the maximum is too large, and checking this first means parsing can't overflow
+        if (digits.isEmpty() || digits.length() > Long.toString(maximumLength).length()
+                || !digits.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            return Result.error(new ProtocolException("malformed payload length: " + digits));
+        }
+        long length = Long.parseLong(digits);
+        if (length > maximumLength) {
+            return Result.error(new ProtocolException("payload too large: " + length));
+        }
+        return Result.value(Maybe.just(length));
+    }
+
+    /**
+     * @return the JSON part of a line that starts with a payload header
+     */
+    static String stripHeader(String line) {
+        return line.substring(line.indexOf(' ', PREFIX.length()) + 1);
+    }
+}
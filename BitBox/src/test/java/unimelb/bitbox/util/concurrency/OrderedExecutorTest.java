@@ -0,0 +1,88 @@
+package unimelb.bitbox.util.concurrency;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedExecutorTest {
+    @Test
+    public void tasksWithTheSameKeyRunInOrder() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor(4);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < 100; ++i) {
+            int task = i;
+            last = executor.submit("dir", () -> order.add(task));
+        }
+        last.get(5, TimeUnit.SECONDS);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            expected.add(i);
+        }
+        assertEquals(expected, order);
+    }
+
+    @Test
+    public void aSlowTaskDoesNotHoldUpOtherKeys() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor(2);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("slow", () -> await(release));
+
+        // Even with every other key landing behind it, none of these wait for the slow one
+        List<CompletableFuture<Void>> others = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            others.add(executor.submit("fast" + i, () -> {}));
+        }
+        CompletableFuture.allOf(others.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        release.countDown();
+    }
+
+    @Test
+    public void aTaskWithSeveralKeysWaitsForEachOfThem() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor(4);
+        CountDownLatch parent = new CountDownLatch(1);
+        CountDownLatch child = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        executor.submit("a", () -> { await(parent); order.add("a"); });
+        executor.submit("a/b", () -> { await(child); order.add("a/b"); });
+        CompletableFuture<Void> both = executor.submit(Arrays.asList("a", "a/b"), () -> order.add("both"));
+        CompletableFuture<Void> after = executor.submit("a/b", () -> order.add("after"));
+
+        child.countDown();
+        Thread.sleep(100);
+        assertTrue(order.toString(), !order.contains("both"));
+        parent.countDown();
+        after.get(5, TimeUnit.SECONDS);
+        both.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("a/b", "a", "both", "after"), order);
+    }
+
+    @Test
+    public void aTaskThatThrowsDoesNotStopTheNextOne() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor(1);
+        CompletableFuture<Void> failed = executor.submit("key", () -> {
+            throw new IllegalStateException("expected");
+        });
+        CompletableFuture<Void> next = executor.submit("key", () -> {});
+        next.get(5, TimeUnit.SECONDS);
+        assertTrue(failed.isCompletedExceptionally());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
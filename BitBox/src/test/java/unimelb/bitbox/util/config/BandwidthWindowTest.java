@@ -0,0 +1,36 @@
+package unimelb.bitbox.util.config;
+
+import org.junit.Test;
+
+import java.time.LocalTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthWindowTest {
+    @Test
+    public void parsesAWindowThatWrapsAroundMidnight() throws ConfigException {
+        BandwidthWindow window = BandwidthWindow.parse("bandwidthSchedule", " 22:00-06:00=1000/2000 ");
+        assertEquals(1000, window.uploadLimit);
+        assertEquals(2000, window.downloadLimit);
+        assertTrue(window.contains(LocalTime.of(23, 30)));
+        assertTrue(window.contains(LocalTime.of(5, 59)));
+        assertFalse(window.contains(LocalTime.of(12, 0)));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsANegativeUploadLimit() throws ConfigException {
+        BandwidthWindow.parse("bandwidthSchedule", "09:00-17:00=-1/0");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsANegativeDownloadLimit() throws ConfigException {
+        BandwidthWindow.parse("bandwidthSchedule", "09:00-17:00=0/-1");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsAWindowWithoutLimits() throws ConfigException {
+        BandwidthWindow.parse("bandwidthSchedule", "09:00-17:00");
+    }
+}
@@ -0,0 +1,58 @@
+package unimelb.bitbox.util.network;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the parser refuses input nested deeply enough to overflow the stack.
+ *
+ * @author Eleanor McMurtry
+ */
+public class JSONCodecTest {
+    private static String nested(int depth) {
+        StringBuilder builder = new StringBuilder("{\"items\":");
+        for (int i = 0; i < depth; ++i) {
+            builder.append('[');
+        }
+        for (int i = 0; i < depth; ++i) {
+            builder.append(']');
+        }
+        return builder.append('}').toString();
+    }
+
+    @Test
+    public void parsesNestingUpToTheLimit() throws JSONException {
+        JSONDocument document = JSONCodec.parse(nested(JSONCodec.MAX_DEPTH));
+        assertTrue(document.containsKey("items"));
+    }
+
+    @Test
+    public void rejectsDeepNestingWithoutOverflowingTheStack() {
+        try {
+            JSONCodec.parse(nested(1_000_000));
+            fail("expected a JSONException");
+        } catch (JSONException e) {
+            assertTrue(e.getMessage().contains("nested too deeply"));
+        }
+    }
+
+    @Test
+    public void rejectsDeeplyNestedObjects() {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i <= JSONCodec.MAX_DEPTH + 1; ++i) {
+            json.append("{\"a\":");
+        }
+        json.append("1");
+        for (int i = 0; i <= JSONCodec.MAX_DEPTH + 1; ++i) {
+            json.append('}');
+        }
+        try {
+            JSONCodec.parse(json.toString());
+            fail("expected a JSONException");
+        } catch (JSONException e) {
+            assertTrue(e.getMessage().contains("nested too deeply"));
+        }
+    }
+}